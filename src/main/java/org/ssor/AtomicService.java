@@ -1,12 +1,15 @@
 package org.ssor;
 
+import java.lang.annotation.Annotation;
 import java.lang.reflect.Method;
 import java.util.LinkedList;
 import java.util.List;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.ssor.annotation.ConflictKey;
 import org.ssor.exception.ConfigurationException;
+import org.ssor.util.SignatureCodec;
 
 /**
  * Atomic Service (AS) is stand-alone service that does not interact with other
@@ -34,6 +37,9 @@ public class AtomicService {
 	protected String proxyAlias;
 
 	protected List<String> concurrentDeliverableServiceNames;
+	// Row of the CDS matrix, bit i is set if the service of magic number i is
+	// concurrent deliverable with this service
+	protected long[] concurrentDeliverableServices = new long[0];
 
 	// protected boolean isConcurrentDeliverable = false;
 
@@ -46,10 +52,17 @@ public class AtomicService {
 	// The magic number of service, avoid sending service name
 	protected int magicNumber;
 
+	// Index of the arguments that form the conflict key, null if none
+	protected int[] conflictKey;
+
+	// Codec of the arguments, null if the parameter types are unknown
+	protected SignatureCodec codec;
+
 	public AtomicService(String name, Region activeRegion,
 			Class<?>[] parameterTypes) {
 		super();
 		this.name = name + getNameTrailer(parameterTypes);
+		codec = SignatureCodec.compile(parameterTypes);
 		this.region = activeRegion;
 		proxyAlias = name.substring(0, name.lastIndexOf("."));
 
@@ -75,6 +88,8 @@ public class AtomicService {
 		} catch (Throwable e) {
 			throw new ConfigurationException(e);
 		}
+
+		setConflictKey(getAnnotatedConflictKey(interfaceMethod));
 	}
 
 	public String getProxyAlias() {
@@ -89,6 +104,7 @@ public class AtomicService {
 			AtomicService[] redundantServices, Class<?>[] parameterTypes) {
 		super();
 		this.name = name + getNameTrailer(parameterTypes);
+		codec = SignatureCodec.compile(parameterTypes);
 		this.region = activeRegion;
 		this.redundantServices = redundantServices;
 		proxyAlias = name.substring(0, name.lastIndexOf("."));
@@ -115,11 +131,14 @@ public class AtomicService {
 		} catch (Throwable e) {
 			throw new ConfigurationException(e);
 		}
+
+		setConflictKey(getAnnotatedConflictKey(interfaceMethod));
 	}
 
 	public AtomicService(String name, Class<?>[] parameterTypes) {
 		super();
 		this.name = name + getNameTrailer(parameterTypes);
+		codec = SignatureCodec.compile(parameterTypes);
 		proxyAlias = name.substring(0, name.lastIndexOf("."));
 
 		String methodName = name.replace(proxyAlias + ".", "");
@@ -145,6 +164,8 @@ public class AtomicService {
 			throw new ConfigurationException(e);
 		}
 
+		setConflictKey(getAnnotatedConflictKey(interfaceMethod));
+
 		if (logger.isDebugEnabled())
 			logger.debug("Atomic service: " + this.name + " created");
 	}
@@ -157,9 +178,37 @@ public class AtomicService {
 	protected AtomicService(Class<?>[] parameterTypes, String name) {
 		super();
 		this.name = name + getNameTrailer(parameterTypes);
+		codec = SignatureCodec.compile(parameterTypes);
 		proxyAlias = name.substring(0, name.lastIndexOf("."));
 	}
 
+	/**
+	 * Obtain the arguments that are annotated by ConflictKey.
+	 * 
+	 * @param method
+	 *            the service method
+	 * @return the index of annotated arguments, null if none
+	 */
+	protected static int[] getAnnotatedConflictKey(Method method) {
+		final List<Integer> indices = new LinkedList<Integer>();
+		final Annotation[][] annotations = method.getParameterAnnotations();
+		for (int i = 0; i < annotations.length; i++) {
+			for (Annotation annotation : annotations[i]) {
+				if (annotation instanceof ConflictKey)
+					indices.add(i);
+			}
+		}
+
+		if (indices.size() == 0)
+			return null;
+
+		final int[] key = new int[indices.size()];
+		int i = 0;
+		for (Integer index : indices)
+			key[i++] = index;
+		return key;
+	}
+
 	protected String getNameTrailer(Class<?>[] parameterTypes) {
 		if (parameterTypes == null)
 			return "";
@@ -172,7 +221,7 @@ public class AtomicService {
 	}
 
 	public int isBlocking(String sessionId, Integer order, Integer concurrent) {
-		return region.isBlocking(sessionId, order, concurrent);
+		return region.getShard(sessionId).isBlocking(sessionId, order, concurrent);
 	}
 
 	/**
@@ -187,7 +236,7 @@ public class AtomicService {
 	 *         otherwise 1
 	 */
 	public int isExecutable(String sessionId, Sequence sequence) {
-		return region.isExecutable(sessionId, sequence, this);
+		return region.getShard(sessionId).isExecutable(sessionId, sequence, this);
 	}
 
 	/**
@@ -197,7 +246,7 @@ public class AtomicService {
 	 *            the sessiond ID
 	 */
 	public void increaseSeqno(String sessionId) {
-		region.increaseSeqno(sessionId);
+		region.getShard(sessionId).increaseSeqno(sessionId);
 	}
 
 	/**
@@ -207,7 +256,66 @@ public class AtomicService {
 	 *            the sessiond ID
 	 */
 	public void increaseConcurrentno(String sessionId) {
-		region.increaseConcurrentno(sessionId);
+		region.getShard(sessionId).increaseConcurrentno(sessionId);
+	}
+
+	/**
+	 * Register the current thread as waiting for the given sequence.
+	 * 
+	 * @param sessionId
+	 *            the sessiond ID
+	 * @param sequence
+	 *            the sequence that is not deliverable yet
+	 */
+	public void suspend(String sessionId, Sequence sequence) {
+		region.getShard(sessionId).suspend(sessionId, sequence);
+	}
+
+	/**
+	 * Buffer a delivery until the given sequence may be deliverable.
+	 * 
+	 * @param sessionId
+	 *            the sessiond ID
+	 * @param sequence
+	 *            the sequence that is not deliverable yet
+	 * @param task
+	 *            the task that resumes the delivery
+	 */
+	public void defer(String sessionId, Sequence sequence, Runnable task) {
+		region.getShard(sessionId).defer(sessionId, sequence, task);
+	}
+
+	/**
+	 * Unregister the current thread.
+	 * 
+	 * @param sessionId
+	 *            the sessiond ID
+	 * @param sequence
+	 *            the sequence that the thread waits for
+	 */
+	public void cancelSuspend(String sessionId, Sequence sequence) {
+		region.getShard(sessionId).cancelSuspend(sessionId, sequence);
+	}
+
+	/**
+	 * Wait on the mutual lock that is already held by the current thread.
+	 * 
+	 * @param sessionId
+	 *            the sessiond ID
+	 * @throws InterruptedException
+	 */
+	public void await(String sessionId) throws InterruptedException {
+		region.getShard(sessionId).await(sessionId);
+	}
+
+	/**
+	 * Unpark the threads that wait for the current expected sequence.
+	 * 
+	 * @param sessionId
+	 *            the sessiond ID
+	 */
+	public void resume(String sessionId) {
+		region.getShard(sessionId).resume(sessionId);
 	}
 
 	/**
@@ -243,7 +351,7 @@ public class AtomicService {
 	 * @return the corresponding sequence or null if this is not the sequencer
 	 */
 	public Sequence getNextSeqno(String sessionId, int UUID_ADDR) {
-		return region.getNextSeqno(sessionId, this, UUID_ADDR);
+		return region.getShard(sessionId).getNextSeqno(sessionId, this, UUID_ADDR);
 	}
 
 	/**
@@ -264,10 +372,23 @@ public class AtomicService {
 	 * @return if yes then return true, false otherwise
 	 */
 	public boolean isSequencer(int UUID_ADDR) {
-		// For all session level region, sequencer is the same
 		return region.isSequencer(UUID_ADDR);
 	}
 
+	/**
+	 * Validate if the given UUID of node is the sequencer of the given
+	 * session or conflict key, they may be sequenced by different shards.
+	 * 
+	 * @param sessionId
+	 *            the session ID or conflict key
+	 * @param UUID_ADDR
+	 *            the UUID
+	 * @return if yes then return true, false otherwise
+	 */
+	public boolean isSequencer(String sessionId, int UUID_ADDR) {
+		return region.getShard(sessionId).isSequencer(UUID_ADDR);
+	}
+
 	public boolean isRequireBlocking() {
 		return region.isRequireBlocking();
 	}
@@ -290,6 +411,95 @@ public class AtomicService {
 		return region.scope == Region.SESSIONAL_CONFLICT_REGION;
 	}
 
+	/**
+	 * If the service's region is partitioned by the conflict key of requests.
+	 * 
+	 * @return if yes then return true, false otherwise
+	 */
+	public boolean isPartitioned() {
+		return region instanceof PartitionedRegion;
+	}
+
+	/**
+	 * Build the conflict key from the arguments of a request, the partition
+	 * of region that orders the request is decided by this.
+	 * 
+	 * A key of several arguments is the tuple of them, thus two requests are
+	 * ordered against each other if all the key arguments are equal, while
+	 * the requests that differ in any of them may run concurrently. The
+	 * arguments are joined by "|", so two different tuples may result in the
+	 * same key (e.g. "a|b", "c" and "a", "b|c"), which only puts them into the
+	 * same partition and orders them, this never loses an order.
+	 * 
+	 * @param arguments
+	 *            the arguments of request
+	 * @return the conflict key, null if the service has none
+	 */
+	public String getConflictKey(Object[] arguments) {
+		if (conflictKey == null || arguments == null)
+			return null;
+
+		if (conflictKey.length == 1)
+			return toConflictKey(arguments[conflictKey[0]]);
+
+		final StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < conflictKey.length; i++)
+			builder.append(i == 0 ? "" : "|").append(
+					toConflictKey(arguments[conflictKey[i]]));
+		return builder.toString();
+	}
+
+	private static String toConflictKey(Object argument) {
+		// The name of enum does not depend on an overridden toString()
+		return argument instanceof Enum<?> ? ((Enum<?>) argument).name()
+				: String.valueOf(argument);
+	}
+
+	/**
+	 * Only the types whose string form is derived from value can be the
+	 * conflict key, so that the same key is partitioned the same on all
+	 * nodes.
+	 * 
+	 * @param type
+	 *            the type of argument
+	 * @return true if the argument can be (part of) the conflict key
+	 */
+	protected static boolean isConflictKeyType(Class<?> type) {
+		return type.isPrimitive() || type.isEnum() || type == String.class
+				|| type == Boolean.class || type == Character.class
+				|| type == Byte.class || type == Short.class
+				|| type == Integer.class || type == Long.class
+				|| type == Float.class || type == Double.class;
+	}
+
+	public boolean hasConflictKey() {
+		return conflictKey != null;
+	}
+
+	/**
+	 * @param conflictKey
+	 *            index of the arguments that form the conflict key, which
+	 *            must be of primitive, boxed primitive, String or enum type
+	 */
+	public void setConflictKey(int[] conflictKey) {
+		if (conflictKey != null && interfaceMethod != null) {
+			final Class<?>[] types = interfaceMethod.getParameterTypes();
+			for (int index : conflictKey) {
+				if (index < 0 || index >= types.length)
+					throw new ConfigurationException("Service: " + name
+							+ " does not have argument " + index
+							+ " for conflict key");
+				if (!isConflictKeyType(types[index]))
+					throw new ConfigurationException("Service: " + name
+							+ ", argument " + index + " of type: "
+							+ types[index].getName()
+							+ " can not be conflict key, only primitive, "
+							+ "boxed primitive, String and enum are allowed");
+			}
+		}
+		this.conflictKey = conflictKey;
+	}
+
 	/**
 	 * This may suspend the thread in case the region is under region
 	 * distribution.
@@ -300,6 +510,18 @@ public class AtomicService {
 		return region.getSequencerWhenRequest();
 	}
 
+	/**
+	 * The same as getSequencerWhenRequest() but on the shard of the given
+	 * session or conflict key.
+	 * 
+	 * @param sessionId
+	 *            the session ID or conflict key
+	 * @return if allow then return the sequencer UUID, otherwise suspend
+	 */
+	public Integer getSequencerWhenRequest(String sessionId) {
+		return region.getShard(sessionId).getSequencerWhenRequest();
+	}
+
 	/**
 	 * This is used for invocation interception, for validating if a given
 	 * service is the correct redundant service in a given index. So that the
@@ -356,6 +578,15 @@ public class AtomicService {
 		return region;
 	}
 
+	/**
+	 * @param sessionId
+	 *            the session ID
+	 * @return the region, or its shard for the given session if sessional
+	 */
+	public Region getRegion(String sessionId) {
+		return region == null ? null : region.getShard(sessionId);
+	}
+
 	/*
 	 * Compare @param that @return
 	 * 
@@ -375,7 +606,7 @@ public class AtomicService {
 	 * @return the lock
 	 */
 	public Object getMutualLock(String sessionId) {
-		return region.getMutualLock(sessionId);
+		return region.getShard(sessionId).getMutualLock(sessionId);
 	}
 
 	/**
@@ -427,6 +658,50 @@ public class AtomicService {
 		return concurrentDeliverableServiceNames.contains(lastServiceName);
 	}
 
+	/**
+	 * Decide if all the given services are concurrent deliverable with this
+	 * service.
+	 * 
+	 * @param services
+	 *            the bit set of magic numbers of the given services
+	 * @return true if yes, false otherwise.
+	 */
+	public boolean isConcurrentDeliverable(long[] services) {
+		long row = 0;
+		for (int i = 0; i < services.length; i++) {
+			row = i < concurrentDeliverableServices.length ? concurrentDeliverableServices[i]
+					: 0;
+			if ((services[i] & ~row) != 0)
+				return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Build the row of CDS matrix from the recorded services, this can only be
+	 * done after all the services have been registered, as it is indexed by
+	 * magic number.
+	 */
+	public void initConcurrentDeliverableServices() {
+		if (concurrentDeliverableServiceNames == null)
+			return;
+
+		long[] row = new long[0];
+		int number = 0;
+		for (String name : concurrentDeliverableServiceNames) {
+			number = ServiceManager.getMagicNumber(name);
+			if ((number >> 6) >= row.length) {
+				final long[] words = new long[(number >> 6) + 1];
+				System.arraycopy(row, 0, words, 0, row.length);
+				row = words;
+			}
+			row[number >> 6] |= 1L << number;
+		}
+
+		concurrentDeliverableServices = row;
+	}
+
 	public void setFIFO(boolean isFIFO) {
 		this.isFIFO = isFIFO;
 	}
@@ -435,10 +710,18 @@ public class AtomicService {
 		return magicNumber;
 	}
 
+	public SignatureCodec getCodec() {
+		return codec;
+	}
+
 	public Integer getRegionNumber() {
 		return region == null ? null : region.region;
 	}
 
+	public Integer getRegionNumber(String sessionId) {
+		return region == null ? null : region.getShard(sessionId).region;
+	}
+
 	public void setMagicNumber(int magicNumber) {
 		this.magicNumber = magicNumber;
 	}
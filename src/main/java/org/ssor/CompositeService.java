@@ -7,6 +7,7 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
 
+import org.ssor.exception.ConfigurationException;
 import org.ssor.protocol.replication.abcast.SequenceVector;
 
 /**
@@ -140,8 +141,8 @@ public class CompositeService extends AtomicService {
 			// be put into
 			// the sync block
 			// synchronized (services[indics[i]].activeRegion){
-			if ((sequence = services[indices[i]].region.getNextSeqno(sessionId,
-					services[indices[i]], UUID_ADDR)) != null)
+			if ((sequence = services[indices[i]].region.getShard(sessionId)
+					.getNextSeqno(sessionId, services[indices[i]], UUID_ADDR)) != null)
 				sequences.add(new SequenceVector(indices[i], sequence));
 			// }
 		}
@@ -165,8 +166,8 @@ public class CompositeService extends AtomicService {
 			// the sync block
 			// synchronized (services[index].activeRegion){
 			// if(services[index].isSequencer())
-			if ((sequence = services[index].region.getNextSeqno(sessionId,
-					services[index], UUID_ADDR)) != null)
+			if ((sequence = services[index].region.getShard(sessionId)
+					.getNextSeqno(sessionId, services[index], UUID_ADDR)) != null)
 				sequences.add(new SequenceVector(index, sequence));
 
 		}
@@ -192,6 +193,10 @@ public class CompositeService extends AtomicService {
 		return false;
 	}
 
+	public boolean isSequencer(String sessionId, int id) {
+		return false;
+	}
+
 	public Object getMutualLock(String sessionId) {
 		return new Object();
 	}
@@ -242,6 +247,12 @@ public class CompositeService extends AtomicService {
 
 				if (service.isSessional())
 					isNeedSessionId = true;
+				// The request carries one key only, which is the session ID
+				if (service.isPartitioned())
+					throw new ConfigurationException("Service: "
+							+ service.getName()
+							+ " is on partitioned region, it can not be nested by composite service: "
+							+ name);
 
 				list.add(service);
 			}
@@ -267,6 +278,10 @@ public class CompositeService extends AtomicService {
 		return null;
 	}
 
+	public Integer getSequencerWhenRequest(String sessionId) {
+		return null;
+	}
+
 	public boolean isSessional() {
 		return isNeedSessionId;
 	}
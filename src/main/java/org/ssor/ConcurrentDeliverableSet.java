@@ -0,0 +1,166 @@
+package org.ssor;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * An immutable set of the services that have been sequenced since the last
+ * sequential sequence of a region (the CDS set), each distinct set is interned
+ * and identified by a small id, so that it can be packed into the assignment
+ * state of a region and updated by CAS.
+ *
+ * The services are tracked as a bit set of magic numbers, thus the CDS
+ * decision is a few word-ANDs against the row of CDS matrix of the given
+ * service, and the transitions are memorized on each set, therefore after warm
+ * up, assignment does not lock or allocate. The sets are interned per group,
+ * see {@link Table}.
+ *
+ * @author Tao Chen
+ *
+ */
+final class ConcurrentDeliverableSet {
+
+	// Number of bits of the id within the assignment state
+	static final int ID_BITS = 16;
+
+	// The empty set is always the first one of a table
+	static final int EMPTY_ID = 0;
+
+	private static final int MAX_SETS = 1 << ID_BITS;
+
+	private final Table table;
+	private final int id;
+	// Bit i is set if the service of magic number i is in this set, there is
+	// no trailing empty word
+	private final long[] services;
+	// Index = magic number of the added service, copy on write
+	private volatile ConcurrentDeliverableSet[] transitions = new ConcurrentDeliverableSet[0];
+
+	private ConcurrentDeliverableSet(Table table, int id, long[] services) {
+		super();
+		this.table = table;
+		this.id = id;
+		this.services = services;
+	}
+
+	int getId() {
+		return id;
+	}
+
+	/**
+	 * @param service
+	 *            the given service
+	 * @return the set that contains the current services and the given one,
+	 *         null if the table is full
+	 */
+	ConcurrentDeliverableSet add(AtomicService service) {
+		final int number = service.getMagicNumber();
+		ConcurrentDeliverableSet[] array = transitions;
+		if (number < array.length && array[number] != null)
+			return array[number];
+
+		final long[] union = new long[Math.max(services.length,
+				(number >> 6) + 1)];
+		System.arraycopy(services, 0, union, 0, services.length);
+		union[number >> 6] |= 1L << number;
+		final ConcurrentDeliverableSet set = table.intern(union);
+		if (set == null)
+			return null;
+
+		synchronized (this) {
+			array = transitions;
+			if (number >= array.length) {
+				array = new ConcurrentDeliverableSet[number + 1];
+				System.arraycopy(transitions, 0, array, 0, transitions.length);
+			} else
+				array = array.clone();
+			array[number] = set;
+			transitions = array;
+		}
+
+		return set;
+	}
+
+	/**
+	 * @param service
+	 *            the given service
+	 * @return true if the given service can be delivered concurrently with all
+	 *         the services in the set, false otherwise or the set is empty
+	 */
+	boolean isConcurrentDeliverable(AtomicService service) {
+		return services.length != 0
+				&& service.isConcurrentDeliverable(services);
+	}
+
+	public String toString() {
+		final StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < services.length << 6; i++) {
+			if ((services[i >> 6] & (1L << i)) != 0)
+				builder.append(builder.length() == 0 ? "" : ", ").append(
+						ServiceManager.getServiceName(i));
+		}
+
+		return "(CDS set " + id + ": [" + builder + "])";
+	}
+
+	/**
+	 * The interned sets of a group, which are shared by all its regions. The
+	 * table is bounded by the bits of id, once it is full no set can be added,
+	 * and the regions fall back to sequential assignment.
+	 */
+	static final class Table {
+
+		private final int maxSets;
+		// Index = id
+		private final List<ConcurrentDeliverableSet> sets = new CopyOnWriteArrayList<ConcurrentDeliverableSet>();
+		// Used to intern the sets, key = the words of bit set, guarded by
+		// itself
+		private final Map<String, ConcurrentDeliverableSet> interned = new HashMap<String, ConcurrentDeliverableSet>();
+
+		private final ConcurrentDeliverableSet empty;
+
+		Table() {
+			this(MAX_SETS);
+		}
+
+		Table(int maxSets) {
+			this.maxSets = Math.min(maxSets, MAX_SETS);
+			empty = intern(new long[0]);
+		}
+
+		ConcurrentDeliverableSet get(int id) {
+			return sets.get(id);
+		}
+
+		ConcurrentDeliverableSet getEmpty() {
+			return empty;
+		}
+
+		/**
+		 * @return number of the interned sets
+		 */
+		int size() {
+			return sets.size();
+		}
+
+		private ConcurrentDeliverableSet intern(long[] services) {
+			final String key = Arrays.toString(services);
+			synchronized (interned) {
+				ConcurrentDeliverableSet set = interned.get(key);
+				if (set == null) {
+					if (sets.size() == maxSets)
+						return null;
+					set = new ConcurrentDeliverableSet(this, sets.size(),
+							services);
+					sets.add(set);
+					interned.put(key, set);
+				}
+
+				return set;
+			}
+		}
+	}
+}
@@ -105,7 +105,9 @@ public class Node implements Comparable<Node> {
 		int assign = 0;
 		for (Integer i : regions) {
 
-			// Do not change session sequencer during random sequencer balancing
+			// Do not change the sequencer of the first session shard during
+			// random sequencer balancing, the other shards are balanced as the
+			// normal regions
 			if (i == SessionRegion.SESSION_REGION)
 				list.add(new Decision(i, false));
 			// Do not change sequencer if this is interested by it
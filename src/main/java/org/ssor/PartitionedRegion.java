@@ -0,0 +1,74 @@
+package org.ssor;
+
+import org.ssor.exception.ConfigurationException;
+
+/**
+ * A conflict region that is divided into a number of partitions by the
+ * conflict key of requests, each partition is a region with its own sequence
+ * space and sequencer, thus the requests on different keys do not order
+ * against each other.
+ * 
+ * This is the partition 0 itself, the others are numbered as region +
+ * (partition << PARTITION_SHIFT) so that they can be elected and recovered as
+ * normal regions.
+ * 
+ * @author Tao Chen
+ * 
+ */
+public class PartitionedRegion extends Region {
+
+	public final static int PARTITION_SHIFT = 16;
+
+	private final static int MAX_PARTITIONS = 1 << (31 - PARTITION_SHIFT);
+
+	// Index = partition
+	private final Region[] partitions;
+
+	public PartitionedRegion(int region, int scope, int count) {
+		super(region, scope);
+		if (region >= 1 << PARTITION_SHIFT)
+			throw new ConfigurationException("Region: " + region
+					+ " can not be partitioned, the identifier must be less than "
+					+ (1 << PARTITION_SHIFT));
+		if (count < 1 || count > MAX_PARTITIONS)
+			throw new ConfigurationException("Region: " + region
+					+ " can not have " + count + " partitions, the maximum is "
+					+ MAX_PARTITIONS);
+
+		partitions = new Region[count];
+		partitions[0] = this;
+		for (int i = 1; i < count; i++)
+			partitions[i] = new Region(getPartitionNumber(region, i), scope);
+	}
+
+	/**
+	 * @param region
+	 *            the number of partitioned region
+	 * @param partition
+	 *            the index of partition
+	 * @return the region number of the partition
+	 */
+	public static int getPartitionNumber(int region, int partition) {
+		return region + (partition << PARTITION_SHIFT);
+	}
+
+	/**
+	 * Route the request to its partition by the hash of conflict key
+	 */
+	@Override
+	public Region getShard(String key) {
+		if (key == null || partitions.length == 1)
+			return this;
+
+		return partitions[(key.hashCode() & Integer.MAX_VALUE)
+				% partitions.length];
+	}
+
+	/**
+	 * @return all the partitions, index = partition
+	 */
+	public Region[] getPartitions() {
+		return partitions;
+	}
+
+}
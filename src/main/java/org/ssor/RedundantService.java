@@ -49,6 +49,19 @@ public class RedundantService extends AtomicService {
 
 	}
 
+	public void suspend(String sessionId, Sequence sequence) {
+	}
+
+	public void defer(String sessionId, Sequence sequence, Runnable task) {
+		task.run();
+	}
+
+	public void cancelSuspend(String sessionId, Sequence sequence) {
+	}
+
+	public void resume(String sessionId) {
+	}
+
 	public Sequence getNextSeqno(String sessionId, int UUID_ADDR) {
 		return null;
 	}
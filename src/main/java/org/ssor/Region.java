@@ -1,11 +1,13 @@
 package org.ssor;
 
 import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Queue;
-import java.util.Set;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -33,11 +35,12 @@ public class Region {
 	public static final int SESSIONAL_CONFLICT_REGION = 1;
 
 	public static final int CONFLICT_REGION = 2;
+	// The concurrentno takes 16 bits of the assignment state
+	protected static final int MAX_CONCURRENTNO = 0xFFFF;
 	// -1 is session level region
 	protected int region;
 	protected int scope = CONFLICT_REGION;
 	protected volatile int expectedSeqno = 0;
-	protected int seqno = -1;
 	protected volatile int sequencer;
 
 	/*
@@ -48,28 +51,43 @@ public class Region {
 	// Used to sync ordering execution
 	// Should not use service instance, since it needs to
 	// perform some concurrent works
-	protected Object mutualLock = new Byte[0];
-	// Maintain mutual exclusion while assigning sequence
-	protected Object assignLock = new Byte[0];
+	protected Object mutualLock;
+	// The state of assignment, packed as seqno (high 32 bits), concurrentno
+	// (16 bits) and id of the CDS set of the services since the last
+	// sequential sequence (low 16 bits). It is updated by CAS, thus the threads
+	// that assign sequences never block each other
+	protected volatile long assignState = packState(-1, 0,
+			ConcurrentDeliverableSet.EMPTY_ID);
+	// The table of the CDS sets, which is shared by the regions of the same
+	// group, see {@link #getConcurrentDeliverableSets()}
+	private volatile ConcurrentDeliverableSet.Table concurrentDeliverableSets;
+
+	private static final AtomicLongFieldUpdater<Region> ASSIGN_STATE = AtomicLongFieldUpdater
+			.newUpdater(Region.class, "assignState");
 
-	// Use hash set here since it only need to add 1 entry,
-	// iteration and remove all entries, no duplicate entry needed
-	protected Set<String> lastServices = new HashSet<String>();
-	//protected String lastServiceName = "";
+	/*
+	 * The following are allocated on demand, since a region is created per
+	 * session and most of the sessions never suspend a delivery or go through
+	 * fault tolerance
+	 */
 
-	protected int concurrentno = 0;
+	// Threads that suspend delivery, key = the expected seqno that may make
+	// them deliverable, guarded by mutualLock
+	protected Map<Integer, List<Thread>> waiters;
+	// Number of threads that wait on the mutualLock itself, guarded by
+	// mutualLock
+	protected int monitorWaiters = 0;
+	// Deliveries that are not deliverable yet, keyed as waiters, guarded by
+	// mutualLock
+	protected Map<Integer, List<Runnable>> reorderBuffer;
 
 	protected int expectedConcurrentno = 0;
 
-	@SuppressWarnings("unchecked")
-	protected Queue<Sequence> skippedSequences = CollectionFacade
-			.getPriorityQueue();
+	protected Queue<Sequence> skippedSequences;
 
 	// Used by the new sequencer to collect current state of other nodes, so it
 	// that can reach the same state
-	@SuppressWarnings("unchecked")
-	protected Queue<Sequence> collectedSequences = CollectionFacade
-			.getPriorityQueue();
+	protected Queue<Sequence> collectedSequences;
 
 	protected Sequence latestSequence;
 
@@ -79,37 +97,42 @@ public class Region {
 
 	// protected volatile boolean isSequencerConsensus = false;
 
-	// Used for sessional region only
+	// Used for sessional region only, the region of a session is not exposed
+	// thus it can be the mutual lock itself
 	protected Region() {
 		super();
 		this.scope = CONFLICT_REGION;
+		this.mutualLock = this;
 	}
 
 	public Region(int scope) {
 		super();
 		this.scope = scope;
+		this.mutualLock = new Byte[0];
 	}
 
 	public Region(int region, int scope) {
 		super();
-		if (region == SessionRegion.SESSION_REGION) {
+		if (SessionRegion.isSessionRegion(region)) {
 			throw new ConfigurationException(
-					"The region number -1 is used for session level consistency service");
+					"The negative region numbers are used for session level consistency service");
 		}
 		this.region = region;
 		this.scope = scope;
+		this.mutualLock = new Byte[0];
 	}
 
 	public Region(int region, int scope, int sequencer) {
 		super();
-		if (region == SessionRegion.SESSION_REGION) {
+		if (SessionRegion.isSessionRegion(region)) {
 			throw new ConfigurationException(
-					"The region number -1 is used for session level consistency service");
+					"The negative region numbers are used for session level consistency service");
 		}
 
 		this.region = region;
 		this.scope = scope;
 		this.sequencer = sequencer;
+		this.mutualLock = new Byte[0];
 	}
 
 	public void setSequencer(Integer sequencer) {
@@ -131,16 +154,17 @@ public class Region {
 	}
 
 	public void setState(Sequence sequence) {
-		expectedSeqno = sequence.getSeqno();
-		if (sequence.getConcurrentno() == null
-				|| sequence.getConcurrentno() == -1)
+		final long value = sequence.getValue();
+		final int concurrentno = Sequence.concurrentno(value);
+		expectedSeqno = Sequence.seqno(value);
+		if (concurrentno == Sequence.NONE || concurrentno == -1)
 			expectedConcurrentno = 0;
 		else
-			expectedConcurrentno = sequence.getConcurrentno();
+			expectedConcurrentno = concurrentno;
 	}
 
 	public int getSeqno() {
-		return seqno;
+		return seqnoOf(assignState);
 	}
 
 	public int getSequencer() {
@@ -176,22 +200,24 @@ public class Region {
 		// *********\n");
 
 		int result = 0;
+		final long value = sequence.getValue();
+		final int order = Sequence.seqno(value);
+		final int concurrent = Sequence.concurrentno(value);
 
 		if (!isRequireBlocking())
 			result = 0;
 		// System.out.print(expectedTimestamp + ":" + order + "*********\n");
-		if (sequence.getConcurrentno() == null
-				&& expectedSeqno == sequence.getSeqno())
+		if (concurrent == Sequence.NONE && expectedSeqno == order)
 			result = 0;
-		else if (sequence.getConcurrentno() != null
-				&& expectedConcurrentno == sequence.getConcurrentno()
-				&& expectedSeqno == sequence.getSeqno()) {
+		else if (concurrent != Sequence.NONE
+				&& expectedConcurrentno == concurrent
+				&& expectedSeqno == order) {
 			// We can put the reset of expectedConcurrentno here
 			// since there is not two sequences with the same seqno
 			// and concurrentno is not null
 			expectedConcurrentno = 0;
 			result = 0;
-		} else if (expectedSeqno > sequence.getSeqno())
+		} else if (expectedSeqno > order)
 			result = -1;
 		else
 			result = 1;
@@ -257,53 +283,140 @@ public class Region {
 	public Sequence getNextSeqno(String sessionId, AtomicService service,
 			int UUID_ADDR) {
 
-		int nextTimestamp = 0;
-		Integer last = null;
+		long value = Sequence.pack(0, Sequence.NONE);
 		boolean isPass = true;
 		if (isRequireBlocking()) {
-			// This is need since this may be changed by other services that
-			// register this region as passively interested
-			synchronized (assignLock) {
-				if (isSequencer(UUID_ADDR)) {
-
-					// If the previous ones do not need concurrent treatment
-					if (!isConcurrentDeliverable(service)) {
-						seqno++;
-						//lastServiceName = service.name;
-						last = concurrentno;
-						concurrentno = 0;
-						// System.out.print(last + "end concurrent
-						// *********\n");
-						// Clear the CDS set
-						lastServices.clear();
-					} else {
-						last = -1;
-						concurrentno++;
-					}
-					nextTimestamp = seqno;
-					// Add the service into CDS set
-					lastServices.add(service.name);
-                    // lastServiceName = service.name;
-					// System.out.print("Sequencer: " + sequencer + " Service: "
-					// + service.name + " New sequence: " + new Sequence(region,
-					// nextTimestamp, last == 0 ? null : last)+ "\n" );
-				} else
-					isPass = false;
-
-			}
+			if (isSequencer(UUID_ADDR))
+				value = assign(service);
+			else
+				isPass = false;
 
 			if (logger.isDebugEnabled()) {
 				logger.debug("Region: " + region + ", sequencer timestamp: "
-						+ nextTimestamp + " concurrent timestamp: "
-						+ concurrentno);
+						+ Sequence.seqno(value) + " concurrent timestamp: "
+						+ concurrentnoOf(assignState));
+			}
+
+		}
+
+		return isPass ? new Sequence(region, null, value) : null;
+	}
+
+	/**
+	 * Assign the next sequence for the given service.
+	 * 
+	 * @param service
+	 *            the service
+	 * @return the packed value of the sequence
+	 */
+	protected long assign(AtomicService service) {
+		long state = 0;
+		long next = 0;
+		do {
+			state = assignState;
+			next = nextState(state, service);
+		} while (!ASSIGN_STATE.compareAndSet(this, state, next));
+
+		return toSequence(state, next);
+	}
+
+	/**
+	 * Acquire the next sequences for a number of requests within one CAS, thus
+	 * the sequences are contiguous. The assignment conditions are the same as
+	 * {@link #getNextSeqno(String, AtomicService, int)}.
+	 * 
+	 * This is not used for session level region.
+	 * 
+	 * @param services
+	 *            the services of requests, in the order of assignment
+	 * @param UUID_ADDR
+	 *            the UUID of current node
+	 * @return the sequences in the same order or null if this is not the
+	 *         sequencer
+	 */
+	public Sequence[] getNextSeqnos(AtomicService[] services, int UUID_ADDR) {
+
+		if (!isSequencer(UUID_ADDR))
+			return null;
+
+		final Sequence[] sequences = new Sequence[services.length];
+		final long[] values = new long[services.length];
+		long state = 0;
+		long current = 0;
+		long next = 0;
+		do {
+			state = current = assignState;
+			for (int i = 0; i < services.length; i++) {
+				next = nextState(current, services[i]);
+				values[i] = toSequence(current, next);
+				current = next;
 			}
+		} while (!ASSIGN_STATE.compareAndSet(this, state, next));
 
+		for (int i = 0; i < services.length; i++)
+			sequences[i] = new Sequence(region, null, values[i]);
+
+		if (logger.isDebugEnabled()) {
+			logger.debug("Region: " + region + ", assigned sequences from "
+					+ sequences[0] + " to " + sequences[services.length - 1]);
+		}
+
+		return sequences;
+	}
+
+	/**
+	 * Acquire a block of sequential sequences, which is leased to a requester,
+	 * so they are not affected by the CDS set.
+	 * 
+	 * @param count
+	 *            number of sequences
+	 * @param UUID_ADDR
+	 *            the UUID of current node
+	 * @return the sequences or null if this is not the sequencer
+	 */
+	public Sequence[] getNextSeqnosForLease(int count, int UUID_ADDR) {
+
+		if (!isSequencer(UUID_ADDR))
+			return null;
+
+		final Sequence[] sequences = new Sequence[count];
+		long state = 0;
+		do {
+			state = assignState;
+			// The CDS set is cleared
+		} while (!ASSIGN_STATE.compareAndSet(this, state, packState(
+				seqnoOf(state) + count, 0, ConcurrentDeliverableSet.EMPTY_ID)));
+
+		final int seqno = seqnoOf(state);
+		// Only the first one may follow concurrent sequences
+		final int last = concurrentnoOf(state);
+		sequences[0] = new Sequence(region, null, Sequence.pack(seqno + 1,
+				last == 0 ? Sequence.NONE : last));
+		for (int i = 1; i < count; i++)
+			sequences[i] = new Sequence(region, null, Sequence.pack(seqno + 1
+					+ i, Sequence.NONE));
+
+		if (logger.isDebugEnabled()) {
+			logger.debug("Region: " + region + ", leased sequences from "
+					+ sequences[0] + " to " + sequences[count - 1]);
+		}
+
+		return sequences;
+	}
+
+	/**
+	 * Skip the given sequences, they would never be delivered.
+	 * 
+	 * @param sequences
+	 *            the sequences
+	 */
+	public void skip(Sequence[] sequences) {
+		synchronized (mutualLock) {
+			for (Sequence sequence : sequences)
+				addSkippedSequence(sequence);
+			// The blocked one may be the next after the skipped sequences
+			resumeAll();
 		}
-		 if(region==1)
-		System.out.print("seqno: " + nextTimestamp + "\n");
-		// last may be null
-		return isPass ? new Sequence(region, nextTimestamp, last == 0 ? null
-				: last) : null;
 	}
 
 	public boolean isRequireBlocking() {
@@ -323,6 +436,8 @@ public class Region {
 	public void addSkippedSequence(Sequence sequence) {
 
 		System.out.print("for FT: " + sequence + "\n");
+		if (skippedSequences == null)
+			skippedSequences = CollectionFacade.getPriorityQueue();
 		skippedSequences.add(sequence);
 	}
 
@@ -337,6 +452,9 @@ public class Region {
 			return;
 		}
 
+		if (collectedSequences == null)
+			collectedSequences = CollectionFacade.getPriorityQueue();
+
 		if (this.latestSequence == null) {
 
 			for (Sequence sequence : sequences)
@@ -572,6 +690,8 @@ public class Region {
 
 		}
 
+		int seqno = 0;
+		int concurrentno = 0;
 		synchronized (mutualLock) {
 			if (previous != null && previous != latestSequence) {
 				seqno = previous.getSeqno();
@@ -588,12 +708,13 @@ public class Region {
 				else
 					concurrentno = latestSequence.getConcurrentno() - 1;
 			}
-			lastServices.clear();
-			//lastServiceName = "";
+			// The CDS set is cleared
+			assignState = packState(seqno, concurrentno,
+					ConcurrentDeliverableSet.EMPTY_ID);
 		}
 		// System.out.print("region: " + region + "last: "
 		// + (latestSequence.getSeqno() - 1) + "seqno: " + seqno + "\n");
-		collectedSequences.clear();
+		collectedSequences = null;
 		latestSequence = null;
 		consensusView = null;
 		System.out.print("new setting, seqno: " + seqno + " concurrentno: " + concurrentno + "\n");
@@ -616,16 +737,18 @@ public class Region {
 			AtomicService service, int result, Region region) {
 
 		// Only work for execution of service that is blocked
-		if (!skippedSequences.isEmpty() && result == 1) {
+		if (skippedSequences != null && !skippedSequences.isEmpty()
+				&& result == 1) {
 			Sequence sequence = skippedSequences.peek();
+			final long value = sequence.getValue();
 			System.out.print("FT: " + sequence + "\n");
 
 			if (logger.isDebugEnabled()) {
 				logger.debug("Sequence that needs to be skipped: " + sequence);
 			}
 			// If the skipped one is normal timestamped
-			if (sequence.getConcurrentno() == null
-					&& region.expectedSeqno == sequence.getSeqno()) {
+			if (Sequence.concurrentno(value) == Sequence.NONE
+					&& region.expectedSeqno == Sequence.seqno(value)) {
 
 				synchronized (region.getMutualLock(sessionId)) {
 					// This may need for the first one, such as identified as
@@ -644,10 +767,10 @@ public class Region {
 				return isExecutable(sessionId, incoming, service);
 				// If the skipped one is the first ordered message after
 				// concurrent event
-			} else if (sequence.getConcurrentno() != null
-					&& region.expectedConcurrentno == sequence
-							.getConcurrentno()
-					&& region.expectedSeqno == sequence.getSeqno()) {
+			} else if (Sequence.concurrentno(value) != Sequence.NONE
+					&& region.expectedConcurrentno == Sequence
+							.concurrentno(value)
+					&& region.expectedSeqno == Sequence.seqno(value)) {
 
 				synchronized (region.getMutualLock(sessionId)) {
 					region.expectedConcurrentno = 0;
@@ -664,8 +787,7 @@ public class Region {
 				return isExecutable(sessionId, incoming, service);
 
 				// If the skipped one is concurrent
-			} else if (sequence.getConcurrentno() != null
-					&& -1 == sequence.getConcurrentno()) {
+			} else if (Sequence.isConcurrent(value)) {
 
 				synchronized (region.getMutualLock(sessionId)) {
 					region.expectedConcurrentno++;
@@ -690,6 +812,18 @@ public class Region {
 
 	}
 
+	/**
+	 * Obtain the region that sequences the given session, this is the region
+	 * itself unless it is a sharded session region.
+	 *
+	 * @param sessionId
+	 *            the session ID, may be null
+	 * @return the region
+	 */
+	public Region getShard(String sessionId) {
+		return this;
+	}
+
 	public boolean isAllowRequest() {
 		return isAllowRequest;
 
@@ -763,8 +897,156 @@ public class Region {
 
 	public void trigger(String sessionId) {
 		synchronized (mutualLock) {
+			resumeAll();
+		}
+	}
+
+	/**
+	 * Register the current thread as waiting for the given sequence, the
+	 * thread should then park itself outside of the mutual lock. This must be
+	 * invoked within the sync block on the mutual lock.
+	 * 
+	 * @param sessionId
+	 *            the session ID
+	 * @param sequence
+	 *            the sequence that is not deliverable yet
+	 */
+	public void suspend(String sessionId, Sequence sequence) {
+		final int key = getWaitingSeqno(sequence);
+		if (waiters == null)
+			waiters = new HashMap<Integer, List<Thread>>();
+		List<Thread> list = waiters.get(key);
+		if (list == null)
+			waiters.put(key, list = new LinkedList<Thread>());
+		list.add(Thread.currentThread());
+	}
+
+	/**
+	 * Buffer a delivery that is not deliverable yet, the task is run once the
+	 * expected seqno reaches the one that may make the sequence deliverable,
+	 * thus no thread is blocked. The task is run within the sync block on the
+	 * mutual lock, therefore it should only hand the delivery off to an
+	 * executor. This must be invoked within the sync block on the mutual lock.
+	 * 
+	 * @param sessionId
+	 *            the session ID
+	 * @param sequence
+	 *            the sequence that is not deliverable yet
+	 * @param task
+	 *            the task that resumes the delivery
+	 */
+	public void defer(String sessionId, Sequence sequence, Runnable task) {
+		final int key = getWaitingSeqno(sequence);
+		if (reorderBuffer == null)
+			reorderBuffer = new HashMap<Integer, List<Runnable>>();
+		List<Runnable> list = reorderBuffer.get(key);
+		if (list == null)
+			reorderBuffer.put(key, list = new LinkedList<Runnable>());
+		list.add(task);
+	}
+
+	/**
+	 * Unregister the current thread, in case it is unparked by others than
+	 * resume(). This must be invoked within the sync block on the mutual lock.
+	 * 
+	 * @param sessionId
+	 *            the session ID
+	 * @param sequence
+	 *            the sequence that the thread waits for
+	 */
+	public void cancelSuspend(String sessionId, Sequence sequence) {
+		if (waiters == null)
+			return;
+		final int key = getWaitingSeqno(sequence);
+		final List<Thread> list = waiters.get(key);
+		if (list != null && list.remove(Thread.currentThread())
+				&& list.isEmpty())
+			waiters.remove(key);
+	}
+
+	/**
+	 * Wait on the mutual lock, this is only for the thread that already holds
+	 * the mutual lock before it is going to be suspended (nested delivery),
+	 * which can not park without releasing the lock. This must be invoked
+	 * within the sync block on the mutual lock.
+	 * 
+	 * @param sessionId
+	 *            the session ID
+	 * @throws InterruptedException
+	 */
+	public void await(String sessionId) throws InterruptedException {
+		monitorWaiters++;
+		try {
+			mutualLock.wait();
+		} finally {
+			monitorWaiters--;
+		}
+	}
+
+	/**
+	 * Unpark only the threads that wait for the current expected seqno, this
+	 * must be invoked within the sync block on the mutual lock after the
+	 * expected sequence is changed.
+	 * 
+	 * @param sessionId
+	 *            the session ID
+	 */
+	public void resume(String sessionId) {
+		final List<Thread> list = waiters == null ? null : waiters
+				.remove(expectedSeqno);
+		if (list != null) {
+			for (Thread thread : list)
+				LockSupport.unpark(thread);
+		}
+
+		final List<Runnable> tasks = reorderBuffer == null ? null
+				: reorderBuffer.remove(expectedSeqno);
+		if (tasks != null) {
+			for (Runnable task : tasks)
+				task.run();
+		}
+
+		if (monitorWaiters > 0)
 			mutualLock.notifyAll();
+	}
+
+	/**
+	 * Unpark all the waiting threads and resume all the buffered deliveries,
+	 * this is used when the expected sequence
+	 * may jump, e.g., fault tolerance or state transfer. This must be invoked
+	 * within the sync block on the mutual lock.
+	 */
+	protected void resumeAll() {
+		if (waiters != null) {
+			for (List<Thread> list : waiters.values()) {
+				for (Thread thread : list)
+					LockSupport.unpark(thread);
+			}
+			waiters.clear();
 		}
+
+		if (reorderBuffer != null) {
+			// They would be buffered again if still not deliverable
+			final List<List<Runnable>> buffered = new ArrayList<List<Runnable>>(
+					reorderBuffer.values());
+			reorderBuffer.clear();
+			for (List<Runnable> tasks : buffered) {
+				for (Runnable task : tasks)
+					task.run();
+			}
+		}
+
+		mutualLock.notifyAll();
+	}
+
+	/*
+	 * Concurrent sequence is deliverable once the expected seqno passes its
+	 * seqno, the others require the expected seqno to be the same
+	 */
+	private int getWaitingSeqno(Sequence sequence) {
+		final long value = sequence.getValue();
+		return Sequence.isConcurrent(value) ? Sequence.seqno(value) + 1
+				: Sequence.seqno(value);
 	}
 
 	public String toString() {
@@ -773,30 +1055,109 @@ public class Region {
 			return "(non-conflict region)";
 		
 		
-		return "(Region number: " + region + ", seqno#: " + seqno
-				+ ", concurrentno#: " + concurrentno + ", expected_seqno#: "
+		final long state = assignState;
+		return "(Region number: " + region + ", seqno#: " + seqnoOf(state)
+				+ ", concurrentno#: " + concurrentnoOf(state) + ", expected_seqno#: "
 				+ expectedSeqno + ", expected_concurrentno#: "
 				+ expectedConcurrentno + ")";
 	}
 
 	/**
-	 * This function should only be used in a thread safe and synchronized (via assignLock) manner.
-	 * @param service the given service
-	 * @return true if allow concurrent delivery, false otherwise
+	 * Calculate the assignment state after assigning a sequence to the given
+	 * service.
+	 * 
+	 * @param state
+	 *            the current state
+	 * @param service
+	 *            the given service
+	 * @return the next state
 	 */
-	protected boolean isConcurrentDeliverable (AtomicService service) {
-		if(lastServices.isEmpty()) {
-			return false;
-		}
-		
-		final Iterator<String> itr = lastServices.iterator();
-		while (itr.hasNext()) {
-			if(!service.isConcurrentDeliverable(itr.next())) {
-				// Return false even if only one of the service in the set
-				// can not be delivered concurrently with the given service.
-				return false;
+	protected long nextState(long state, AtomicService service) {
+		final ConcurrentDeliverableSet.Table table = getConcurrentDeliverableSets();
+		final ConcurrentDeliverableSet set = table.get(setIdOf(state));
+		final int concurrentno = concurrentnoOf(state);
+		ConcurrentDeliverableSet next = null;
+		// If the previous ones do not need concurrent treatment, the
+		// sequence is also sequential once the concurrentno is saturated
+		if (set.isConcurrentDeliverable(service)
+				&& concurrentno != MAX_CONCURRENTNO
+				&& (next = set.add(service)) != null)
+			// Add the service into CDS set
+			return packState(seqnoOf(state), concurrentno + 1, next.getId());
+
+		// Clear the CDS set, then add the service. If the table is full, the
+		// set stays empty, thus the following sequences are sequential
+		next = table.getEmpty().add(service);
+		if (next == null && logger.isWarnEnabled())
+			logger.warn("Region: " + region
+					+ ", the CDS sets are exhausted, assign sequentially");
+		return packState(seqnoOf(state) + 1, 0,
+				next == null ? ConcurrentDeliverableSet.EMPTY_ID : next.getId());
+	}
+
+	/**
+	 * @return the table of CDS sets, a region that does not belong to any
+	 *         group has its own one
+	 */
+	protected ConcurrentDeliverableSet.Table getConcurrentDeliverableSets() {
+		ConcurrentDeliverableSet.Table table = concurrentDeliverableSets;
+		if (table == null) {
+			synchronized (this) {
+				if ((table = concurrentDeliverableSets) == null)
+					concurrentDeliverableSets = table = new ConcurrentDeliverableSet.Table();
 			}
 		}
-		return true;
+
+		return table;
+	}
+
+	/**
+	 * Share the given table of CDS sets, this only takes effect before the
+	 * region has its table, so that the ids in assignment state remain valid.
+	 * 
+	 * @param table
+	 *            the table of group
+	 */
+	synchronized void setConcurrentDeliverableSets(
+			ConcurrentDeliverableSet.Table table) {
+		if (concurrentDeliverableSets == null)
+			concurrentDeliverableSets = table;
+	}
+
+	/**
+	 * @param state
+	 *            the state before assignment
+	 * @param next
+	 *            the state after assignment
+	 * @return the packed value of the assigned sequence
+	 */
+	protected static long toSequence(long state, long next) {
+		// Sequential one carries the number of concurrent ones ahead of it
+		if (seqnoOf(next) != seqnoOf(state)) {
+			final int last = concurrentnoOf(state);
+			return Sequence.pack(seqnoOf(next), last == 0 ? Sequence.NONE
+					: last);
+		}
+
+		return Sequence.pack(seqnoOf(next), -1);
+	}
+
+	protected static long packState(int seqno, int concurrentno, int setId) {
+		return ((long) seqno << 32)
+				| ((long) (concurrentno & MAX_CONCURRENTNO) << ConcurrentDeliverableSet.ID_BITS)
+				| setId;
+	}
+
+	protected static int seqnoOf(long state) {
+		return (int) (state >> 32);
+	}
+
+	protected static int concurrentnoOf(long state) {
+		return (int) (state >>> ConcurrentDeliverableSet.ID_BITS)
+				& MAX_CONCURRENTNO;
+	}
+
+	protected static int setIdOf(long state) {
+		return (int) state & ((1 << ConcurrentDeliverableSet.ID_BITS) - 1);
 	}
 }
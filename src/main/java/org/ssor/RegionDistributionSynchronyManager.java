@@ -633,6 +633,35 @@ public class RegionDistributionSynchronyManager {
 		return true;
 	}
 
+	/**
+	 * Count a message that is processed in-process rather than received from
+	 * GCM, as what cacheMsgOnView does, thus the view delivery waits for it
+	 * (VS7). Nothing is counted while a view change is in progress, in which
+	 * case the message should go through GCM instead. The caller should
+	 * release it by releaseMsgOnView.
+	 * 
+	 * @return true if counted, false if a view change is in progress.
+	 */
+	public boolean cacheMsgOnStableView() {
+
+		synchronized (msgMutualLock) {
+
+			// The view delivery takes 'msgMutualLock' before recording
+			synchronized (mutualLock) {
+				if (current != null || !queue.isEmpty()) {
+					if (logger.isDebugEnabled()) {
+						logger.debug("View is changing, current view no: "
+								+ viewSeqno);
+					}
+					return false;
+				}
+			}
+			onProcessedNo++;
+		}
+
+		return true;
+	}
+
 	/**
 	 * Release the 'onProcessedNo' upon the processes triggered by message
 	 * delivery complete, this ensure serilizability (VS7).
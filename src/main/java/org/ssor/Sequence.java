@@ -6,12 +6,18 @@ import java.io.IOException;
 
 import org.ssor.protocol.replication.abcast.SequenceVector;
 import org.ssor.util.Streamable;
+import org.ssor.util.Util;
 
 public class Sequence implements Streamable,Comparable<Sequence> {
 
-	
-	private Integer seqno;
-	private Integer concurrentno;
+	// Packed concurrentno of a sequence that has no concurrentno
+	public static final int NONE = Integer.MIN_VALUE;
+	// Packed value of a sequence that has not been assigned
+	public static final long UNASSIGNED = pack(NONE, NONE);
+
+	// The seqno is packed in the high 32 bits and the concurrentno in the low
+	// 32 bits, thus assigning and checking a sequence does not box anything
+	private long value = UNASSIGNED;
 	// Only for temp used
 	private transient SequenceVector[] vector;
 	// Only for recording on cache
@@ -30,23 +36,32 @@ public class Sequence implements Streamable,Comparable<Sequence> {
 	}
 	public Sequence(Integer timestamp, Integer concurrentSeq) {
 		super();
-		this.seqno = timestamp;
-		this.concurrentno = concurrentSeq;
+		this.value = pack(timestamp, concurrentSeq);
+	}
+	
+	public Sequence(long value) {
+		super();
+		this.value = value;
 	}
 	
 	public Sequence(Integer regionNumber, Integer timestamp, Integer concurrentSeq) {
 		super();
 		this.regionNumber  = regionNumber;
-		this.seqno = timestamp;
-		this.concurrentno = concurrentSeq;
+		this.value = pack(timestamp, concurrentSeq);
 	}
 
 	public Sequence(Integer regionNumber, String sessionId, Integer timestamp, Integer concurrentSeq) {
 		super();
 		this.regionNumber = regionNumber;
-		this.seqno = timestamp;
+		this.value = pack(timestamp, concurrentSeq);
+		this.sessionId = sessionId;
+	}
+
+	public Sequence(Integer regionNumber, String sessionId, long value) {
+		super();
+		this.regionNumber = regionNumber;
+		this.value = value;
 		this.sessionId = sessionId;
-		this.concurrentno = concurrentSeq;
 	}
 	
 	public Integer getRegionNumber() {
@@ -56,36 +71,81 @@ public class Sequence implements Streamable,Comparable<Sequence> {
 	public void setRegionNumber(Integer regionNumber) {
 		this.regionNumber = regionNumber;
 	}
+	/**
+	 * This boxes the seqno, use getValue() on the hot path instead
+	 */
 	public Integer getSeqno() {
-		return seqno;
+		return value == UNASSIGNED ? null : seqno(value);
 	}
+	/**
+	 * This boxes the concurrentno, use getValue() on the hot path instead
+	 */
 	public Integer getConcurrentno() {
-		return concurrentno;
+		final int concurrentno = concurrentno(value);
+		return concurrentno == NONE ? null : concurrentno;
+	}
+	/**
+	 * @return the packed seqno and concurrentno
+	 */
+	public long getValue() {
+		return value;
 	}
 	@Override
 	public void readFrom(DataInputStream in) throws IOException,
 			IllegalAccessException, InstantiationException {
-		seqno = in.readInt();
-		short type = in.readShort();
-		if(1 == type)
-			concurrentno = in.readInt();
-		
+		readFrom(in, null);
 	}
 	@Override
 	public void writeTo(DataOutputStream out) throws IOException {
-		// Timestamp would never be null
-		out.writeInt(seqno);
-		if(concurrentno == null)
-			out.writeShort(0);
-		else {
-			out.writeShort(1);
-			out.writeInt(concurrentno);
-		}
-		
+		writeTo(out, null);
+	}
+
+	/**
+	 * Write the seqno as zig-zag varint of its delta to the seqno of the
+	 * previous sequence in the same stream, with the presence of concurrentno
+	 * in the lowest bit, followed by the concurrentno if present. Thus the
+	 * consecutive sequences take a byte or two each.
+	 * 
+	 * @param out
+	 *            the output stream
+	 * @param previous
+	 *            the sequence that is written before, null if none
+	 * @throws IOException
+	 */
+	public void writeTo(DataOutputStream out, Sequence previous)
+			throws IOException {
+		final int concurrentno = concurrentno(value);
+		Util.writeVarLong(out, Util.zigZag((long) seqno(value)
+				- baseOf(previous)) << 1 | (concurrentno == NONE ? 0 : 1));
+		if (concurrentno != NONE)
+			Util.writeVarLong(out, Util.zigZag(concurrentno));
+	}
+
+	/**
+	 * Read the sequence that is written by
+	 * {@link #writeTo(DataOutputStream, Sequence)}.
+	 * 
+	 * @param in
+	 *            the input stream
+	 * @param previous
+	 *            the sequence that is read before, null if none
+	 * @throws IOException
+	 */
+	public void readFrom(DataInputStream in, Sequence previous)
+			throws IOException {
+		final long head = Util.readVarLong(in);
+		value = pack((int) (Util.unZigZag(head >>> 1) + baseOf(previous)),
+				(head & 1) == 0 ? NONE : (int) Util.unZigZag(Util
+						.readVarLong(in)));
+	}
+
+	private static long baseOf(Sequence previous) {
+		return previous == null || previous.value == UNASSIGNED ? 0
+				: seqno(previous.value);
 	}
 	
 	public String toString(){
-		return "(seqno# " + seqno + ", concurrentno# " + concurrentno + ")";
+		return "(seqno# " + getSeqno() + ", concurrentno# " + getConcurrentno() + ")";
 	}
 	public SequenceVector[] getVector() {
 		return vector;
@@ -98,16 +158,8 @@ public class Sequence implements Streamable,Comparable<Sequence> {
 	
 	public boolean isEquals(Sequence another){
 
-		if (seqno.equals(another.seqno) && isSessionEquals(another)){
-			
-			if(concurrentno == null && another.concurrentno == null)
-			    return true;
-			
-			if(concurrentno != null && concurrentno.equals(another.concurrentno))
-				return true;
-		}
-
-		return false;
+		// Both seqno and concurrentno are the same
+		return value == another.value && isSessionEquals(another);
 	}
 	
 	
@@ -133,16 +185,7 @@ public class Sequence implements Streamable,Comparable<Sequence> {
 	 */
 	
 	public int isSubsequent(Sequence another, int exceptedConcurrentServiceTimestamp){
-//System.out.print(exceptedConcurrentServiceTimestamp+" : "+another.getConcurrentSeq()+"\n");
-		if(another.getConcurrentno() == null && seqno.equals(another.getSeqno() - 1))
-			return 0;
-		else if(another.getConcurrentno() != null && exceptedConcurrentServiceTimestamp == another.getConcurrentno() 
-				&& seqno.equals(another.getSeqno() - 1))
-			return 0;
-		else if(seqno.equals(another.getSeqno()))
-			return -1;
-		else
-			return 1;
+		return isSubsequent(value, another.value, exceptedConcurrentServiceTimestamp);
 	}
 	
 	public String getSessionId() {
@@ -157,19 +200,7 @@ public class Sequence implements Streamable,Comparable<Sequence> {
 	 */
 	@Override
 	public int compareTo(Sequence another) {
-		if(seqno > another.seqno)
-			return 1;
-		else if(seqno < another.seqno)
-		    return -1;
-		else {
-			// It does not matter if both are -1
-			if(concurrentno != null && concurrentno == -1)
-				return 1;
-			else if (another.concurrentno != null && another.concurrentno == -1)
-				return -1;
-			else 
-				return 0;
-		}
+		return compare(value, another.value);
 	}
 	public boolean isProposedForConsensus() {
 		return isProposedForConsensus;
@@ -177,6 +208,69 @@ public class Sequence implements Streamable,Comparable<Sequence> {
 	public void isProposedForConsensus(boolean isReceiveForConsensus) {
 		this.isProposedForConsensus = isReceiveForConsensus;
 	}
+
+	public static long pack(int seqno, int concurrentno) {
+		return ((long) seqno << 32) | (concurrentno & 0xFFFFFFFFL);
+	}
+
+	public static long pack(Integer seqno, Integer concurrentno) {
+		return pack(seqno == null ? NONE : seqno,
+				concurrentno == null ? NONE : concurrentno);
+	}
+
+	public static int seqno(long value) {
+		return (int) (value >> 32);
+	}
+
+	/**
+	 * @return the concurrentno, or NONE if there is no concurrentno
+	 */
+	public static int concurrentno(long value) {
+		return (int) value;
+	}
+
+	public static boolean isConcurrent(long value) {
+		return -1 == (int) value;
+	}
+
+	/**
+	 * They are maintained in the same region
+	 */
+	public static int compare(long value, long another) {
+		final int seqno = seqno(value);
+		final int anotherSeqno = seqno(another);
+		if (seqno > anotherSeqno)
+			return 1;
+		else if (seqno < anotherSeqno)
+			return -1;
+		// It does not matter if both are -1
+		else if (isConcurrent(value))
+			return 1;
+		else if (isConcurrent(another))
+			return -1;
+		else
+			return 0;
+	}
+
+	/**
+	 * They are maintained in the same region
+	 */
+	public static int isSubsequent(long value, long another,
+			int exceptedConcurrentServiceTimestamp) {
+		final int seqno = seqno(value);
+		final int anotherSeqno = seqno(another);
+		final int anotherConcurrentno = concurrentno(another);
+		if (anotherConcurrentno == NONE && seqno == anotherSeqno - 1)
+			return 0;
+		else if (anotherConcurrentno != NONE
+				&& exceptedConcurrentServiceTimestamp == anotherConcurrentno
+				&& seqno == anotherSeqno - 1)
+			return 0;
+		else if (seqno == anotherSeqno)
+			return -1;
+		else
+			return 1;
+	}
 	
 	
 }
@@ -5,6 +5,9 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import org.ssor.util.Environment;
+import org.ssor.util.SignatureCodec;
+
 @SuppressWarnings("unchecked")
 public class ServiceManager {
 
@@ -12,6 +15,8 @@ public class ServiceManager {
 	// Mapping between number and service name
 	private static Map<Integer, String> magicNumber;
 	private Map<Integer, Region> regionRegistry;
+	// The CDS sets of this group, shared by all its regions
+	private final ConcurrentDeliverableSet.Table concurrentDeliverableSets = new ConcurrentDeliverableSet.Table();
 	private static Map<String, AtomicService> globalRegistry;
 	// The increased number used to generate magic number for service
 	private static Integer number = 0;
@@ -27,8 +32,12 @@ public class ServiceManager {
 
 		regionRegistry = CollectionFacade.getConcurrentHashMap(50);
 		registry = CollectionFacade.getConcurrentHashMap(50);
-		// Initailize session level region
-		regionRegistry.put(SessionRegion.SESSION_REGION, new SessionRegion());
+		// Initailize session level region, each shard is a region
+		for (SessionRegion shard : SessionRegion
+				.createShards(Environment.SESSION_SHARDS)) {
+			shard.setConcurrentDeliverableSets(concurrentDeliverableSets);
+			regionRegistry.put(shard.getRegion(), shard);
+		}
 
 	}
 
@@ -44,7 +53,10 @@ public class ServiceManager {
 					number++;
 
 					globalRegistry.put(value.getName(), value);
-				}
+				} else
+					// The same service of another configurator
+					value.setMagicNumber(globalRegistry.get(value.getName())
+							.getMagicNumber());
 
 			}
 
@@ -54,8 +66,19 @@ public class ServiceManager {
 		if (value.getRegionNumber() != null && value.isRequireBlocking()
 				&& !regionRegistry.containsKey(value.getRegionNumber())) {
 			//System.out.print(value.getRegionNumber() + "\n");
+			value.getRegion().setConcurrentDeliverableSets(
+					concurrentDeliverableSets);
 			regionRegistry
 					.put(value.getRegionNumber(), value.getRegion());
+			// Each partition is sequenced as a region of its own
+			if (value.isPartitioned()) {
+				for (Region partition : ((PartitionedRegion) value
+						.getRegion()).getPartitions()) {
+					partition
+							.setConcurrentDeliverableSets(concurrentDeliverableSets);
+					regionRegistry.put(partition.getRegion(), partition);
+				}
+			}
 
 		}
 	}
@@ -68,10 +91,23 @@ public class ServiceManager {
 		return regionRegistry.get(key);
 	}
 	
+	/**
+	 * @return the first shard of session region, which routes the sessions to
+	 *         their shards
+	 */
 	public SessionRegion getSessionRegion() {
 		return (SessionRegion) regionRegistry.get(SessionRegion.SESSION_REGION);
 	}
 
+	/**
+	 * @param sessionId
+	 *            the session ID
+	 * @return the shard of session region that sequences the given session
+	 */
+	public SessionRegion getSessionRegion(String sessionId) {
+		return (SessionRegion) getSessionRegion().getShard(sessionId);
+	}
+
 	public Set<Map.Entry<Integer, Region>> getAllRegions() {
 		return regionRegistry.entrySet();
 	}
@@ -90,6 +126,26 @@ public class ServiceManager {
 		// This is always not null
 		return magicNumber.get(number);
 	}
+
+	/**
+	 * @param name
+	 *            the name of service
+	 * @return the codec of the arguments of service, null if none
+	 */
+	public static SignatureCodec getCodec(String name) {
+		final AtomicService service = globalRegistry.get(name);
+		return service == null ? null : service.getCodec();
+	}
+
+	/**
+	 * @param number
+	 *            the magic number of service
+	 * @return the codec of the arguments of service, null if none
+	 */
+	public static SignatureCodec getCodec(Integer number) {
+		final String name = magicNumber.get(number);
+		return name == null ? null : getCodec(name);
+	}
 	
 	public State.StateList getRegionStates(){
 		
@@ -3,24 +3,77 @@ package org.ssor;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
 
 public class SessionRegion extends Region {
 
-	private Map<String, Region> sessions;
+	private ConcurrentMap<String, Session> sessions;
+
+	// All the shards that the sessions are partitioned into, index = shard,
+	// this is shared by the shards
+	private SessionRegion[] shards = new SessionRegion[] { this };
 
 	public final static int SESSION_REGION = -1;
 
-	@SuppressWarnings("unchecked")
 	public SessionRegion() {
+		this(0);
+	}
+
+	/**
+	 * @param shard
+	 *            the index of shard, the region number is SESSION_REGION -
+	 *            shard so that each shard can be elected as a normal region
+	 */
+	@SuppressWarnings("unchecked")
+	public SessionRegion(int shard) {
 		super(Region.SESSIONAL_CONFLICT_REGION);
-		region = SESSION_REGION;
-		sessions = CollectionFacade.getConcurrentHashMap(100);
+		region = SESSION_REGION - shard;
+		sessions = (ConcurrentMap<String, Session>) CollectionFacade
+				.getConcurrentHashMap(100);
+	}
+
+	/**
+	 * @param number
+	 *            the region number
+	 * @return true if this is the number of a shard of session region
+	 */
+	public static boolean isSessionRegion(int number) {
+		return number <= SESSION_REGION;
+	}
+
+	/**
+	 * Create the shards of session region
+	 *
+	 * @param count
+	 *            number of shards
+	 * @return the shards, index = shard
+	 */
+	public static SessionRegion[] createShards(int count) {
+		final SessionRegion[] shards = new SessionRegion[Math.max(count, 1)];
+		for (int i = 0; i < shards.length; i++)
+			shards[i] = new SessionRegion(i);
+		for (SessionRegion shard : shards)
+			shard.shards = shards;
+
+		return shards;
+	}
+
+	/**
+	 * Route the session to its shard by the hash of session ID
+	 */
+	@Override
+	public Region getShard(String sessionId) {
+		if (sessionId == null || shards.length == 1)
+			return this;
+
+		return shards[(sessionId.hashCode() & Integer.MAX_VALUE)
+				% shards.length];
 	}
 
 	public Region add(String sessionId) {
-		Region region = new Region();
-		sessions.put(sessionId, region);
-		return region;
+		final Session session = new Session(this, sessionId);
+		final Session existing = sessions.putIfAbsent(sessionId, session);
+		return existing == null ? session : existing;
 	}
 
 	public void remove(String sessionId) {
@@ -29,19 +82,20 @@ public class SessionRegion extends Region {
 
 	public int isExecutable(String sessionId, Sequence sequence,
 			AtomicService service) {
-		final Region sessionRegion = get(sessionId);
+		final Session sessionRegion = get(sessionId);
+		final long value = sequence.getValue();
+		final int order = Sequence.seqno(value);
+		final int concurrent = Sequence.concurrentno(value);
 		int result = 0;
 		// TODO FD handler when session expiry unexptecly
-		if (sequence.getConcurrentno() == null
-				&& sessionRegion.expectedSeqno == sequence.getSeqno())
+		if (concurrent == Sequence.NONE && sessionRegion.expectedSeqno == order)
 			result = 0;
-		else if (sequence.getConcurrentno() != null
-				&& sessionRegion.expectedConcurrentno == sequence
-						.getConcurrentno()
-				&& sessionRegion.expectedSeqno == sequence.getSeqno()) {
+		else if (concurrent != Sequence.NONE
+				&& sessionRegion.expectedConcurrentno == concurrent
+				&& sessionRegion.expectedSeqno == order) {
 			sessionRegion.expectedConcurrentno = 0;
 			result = 0;
-		} else if (sessionRegion.expectedSeqno > sequence.getSeqno())
+		} else if (sessionRegion.expectedSeqno > order)
 			result = -1;
 		else
 			result = 1;
@@ -110,38 +164,17 @@ public class SessionRegion extends Region {
 			int UUID_ADDR) {
 		// TODO FD handler when session expiry unexptecly
 		final Region sessionRegion = get(sessionId);
-		int nextTimestamp = 0;
-		Integer last = null;
-		boolean isPass = true;
-		// This is need since this may be changed by other services that
-		// register this region as passively interested
-		synchronized (sessionRegion.assignLock) {
-			if (isSequencer(UUID_ADDR)) {
-				// If the previous one does not need relax treatment
-				if (!sessionRegion.isConcurrentDeliverable(service)) {
-					sessionRegion.seqno++;
-					//sessionRegion.lastServiceName = service.name;
-					last = sessionRegion.concurrentno;
-					sessionRegion.concurrentno = 0;
-					sessionRegion.lastServices.clear();
-				} else {
-					last = -1;
-					sessionRegion.concurrentno++;
-				}
-				nextTimestamp = sessionRegion.seqno;
-				sessionRegion.lastServices.add(service.name);
-
-			} else
-				isPass = false;
-		}
+		if (!isSequencer(UUID_ADDR))
+			return null;
+
+		final long value = sessionRegion.assign(service);
 
 		if (logger.isDebugEnabled()) {
 			logger.debug("Region: " + sessionRegion.region
-					+ ", sequencer timestamp: " + nextTimestamp);
+					+ ", sequencer timestamp: " + Sequence.seqno(value));
 		}
 
-		return isPass ? new Sequence(region, sessionId, nextTimestamp,
-				last == 0 ? null : last) : null;
+		return new Sequence(region, sessionId, value);
 	}
 
 	public void addSkippedSequence(Sequence sequence) {
@@ -168,31 +201,40 @@ public class SessionRegion extends Region {
 	}
 
 	public void setState(String sessionId, Sequence sequence) {
-		get(sessionId).expectedSeqno = sequence.getSeqno();
-		if (sequence.getConcurrentno() == null
-				|| sequence.getConcurrentno() == -1)
-			get(sessionId).expectedConcurrentno = 0;
-		else
-			get(sessionId).expectedConcurrentno = sequence.getConcurrentno();
+		get(sessionId).setState(sequence);
 	}
 
 	public void triggerAll() {
-		Object lock = null;
-		for (Map.Entry<String, Region> entry : sessions.entrySet()) {
+		for (Map.Entry<String, Session> entry : sessions.entrySet())
+			entry.getValue().trigger(null);
 
-			lock = entry.getValue().mutualLock;
-			synchronized (lock) {
-				lock.notifyAll();
-			}
-		}
+	}
+
+	public void suspend(String sessionId, Sequence sequence) {
+		get(sessionId).suspend(null, sequence);
+	}
+
+	public void defer(String sessionId, Sequence sequence, Runnable task) {
+		get(sessionId).defer(null, sequence, task);
+	}
+
+	public void cancelSuspend(String sessionId, Sequence sequence) {
+		get(sessionId).cancelSuspend(null, sequence);
+	}
 
+	public void await(String sessionId) throws InterruptedException {
+		get(sessionId).await(null);
+	}
+
+	public void resume(String sessionId) {
+		get(sessionId).resume(null);
 	}
 
 	public void extractExpectedSequence(List<State> list) {
 
-		for (Map.Entry<String, Region> entry : sessions.entrySet()) {
+		for (Map.Entry<String, Session> entry : sessions.entrySet()) {
 
-			list.add(new State(SESSION_REGION, entry.getKey(), entry.getValue()
+			list.add(new State(region, entry.getKey(), entry.getValue()
 					.getExpectedSequence()));
 
 		}
@@ -202,21 +244,48 @@ public class SessionRegion extends Region {
 		get(sessionId).trigger(null);
 	}
 
-	private Region get(String sessionId) {
-		Region region = null;
-		if ((region = sessions.get(sessionId)) == null)
-			return add(sessionId);
+	private Session get(String sessionId) {
+		final Session session = sessions.get(sessionId);
+		return session == null ? (Session) add(sessionId) : session;
+	}
+
+	/**
+	 * The compact state of a session, it allocates nothing but the counters
+	 * unless a delivery is suspended or fault tolerance happens. The state is
+	 * kept until the session is removed explicitly, since forgetting it by the
+	 * local clock of each node would not be agreed by the group.
+	 */
+	static final class Session extends Region {
+
+		private final SessionRegion shard;
+		private final String sessionId;
+
+		Session(SessionRegion shard, String sessionId) {
+			super();
+			this.shard = shard;
+			this.sessionId = sessionId;
+		}
+
+		@Override
+		protected ConcurrentDeliverableSet.Table getConcurrentDeliverableSets() {
+			return shard.getConcurrentDeliverableSets();
+		}
 
-		return region;
+		public String toString() {
+			return "(Session: " + sessionId + ", expected_seqno#: "
+					+ expectedSeqno + ")";
+		}
 	}
 
 	public String toString() {
 
-		String str = "(Sessional conflict region, include: ";
-		Set<Map.Entry<String, Region>> set = sessions.entrySet();
-		for (Map.Entry<String, Region> entry : set) {
-			str += "seqno#: " + entry.getValue().seqno + ", concurrentno#: "
-					+ entry.getValue().concurrentno + ", expected_seqno#: "
+		String str = "(Sessional conflict region: " + region + ", include: ";
+		Set<Map.Entry<String, Session>> set = sessions.entrySet();
+		for (Map.Entry<String, Session> entry : set) {
+			str += "seqno#: " + seqnoOf(entry.getValue().assignState)
+					+ ", concurrentno#: "
+					+ concurrentnoOf(entry.getValue().assignState)
+					+ ", expected_seqno#: "
 					+ entry.getValue().expectedSeqno
 					+ ", expected_concurrentno#: "
 					+ entry.getValue().expectedConcurrentno + "\n";
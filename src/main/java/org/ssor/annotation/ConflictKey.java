@@ -0,0 +1,24 @@
+package org.ssor.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Mark the argument(s) of a service method that form the conflict key, the
+ * requests of a partitioned region are ordered by the partition of their
+ * conflict key only. The argument must be of primitive, boxed primitive,
+ * String or enum type, otherwise the configuration fails. If more than one
+ * argument is marked, the key is the tuple of them, see
+ * {@link org.ssor.AtomicService#getConflictKey(Object[])}. This is overridden
+ * by the conflictKey attribute in configuration.
+ * 
+ * @author Tao Chen
+ * 
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.PARAMETER)
+public @interface ConflictKey {
+
+}
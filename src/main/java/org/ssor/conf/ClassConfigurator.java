@@ -9,7 +9,10 @@ import org.slf4j.LoggerFactory;
 import org.ssor.CollectionFacade;
 import org.ssor.exception.ConfigurationException;
 import org.ssor.protocol.Header;
-import org.ssor.util.Tuple;
+import org.ssor.util.FieldSerializer;
+import org.ssor.util.Serializer;
+import org.ssor.util.Streamable;
+import org.ssor.util.Triple;
 import org.ssor.util.Util;
 import java.io.InputStream;
 import java.io.FileInputStream;
@@ -38,6 +41,10 @@ public class ClassConfigurator {
 	public static final String PROTOCOL_LISTENER_FILE = "ssor-protocol-listeners.xml";
 	private static final Map<Class<?>,Short> streamableClassMap= CollectionFacade.getConcurrentHashMap(); // key=Class, value=magic number
     private static final Map<Short,Class<?>> streamableMagicMap= CollectionFacade.getConcurrentHashMap(); // key=magic number, value=Class
+    // The registered classes that are not streamable, key=Class, value=the serializer
+    private static final Map<Class<?>,Serializer> serializerMap= CollectionFacade.getConcurrentHashMap();
+    // Used when the serializer is not specified for a class that is not streamable
+    private static final String DEFAULT_SERIALIZER = FieldSerializer.class.getName();
 
     /*
      * For mapping of array objects, class here is only the meta class
@@ -74,7 +81,7 @@ public class ClassConfigurator {
     		prefix = prefix.replace("org/ssor/conf/ClassConfigurator.class", "");
     	
     	// Reading magic number for streaming
-        final List<Tuple<Short,String>> mapping= new LinkedList<Tuple<Short,String>> ();
+        final List<Triple<Short,String,String>> mapping= new LinkedList<Triple<Short,String,String>> ();
         read(prefix + MAGIC_NUMBER_FILE, classRoot, mapping);
         
         // Reading protocols config
@@ -89,7 +96,10 @@ public class ClassConfigurator {
         
         
         short m = -1;
-        for(Tuple<Short,String> tuple: mapping) {
+        // One instance per serializer class, key=class name
+        final Map<String,Serializer> serializers = CollectionFacade.getConcurrentHashMap();
+        Serializer serializer = null;
+        for(Triple<Short,String,String> tuple: mapping) {
             m = tuple.getVal1();
             // Can not be end of header number
             if(m == Header.EOH)
@@ -103,6 +113,17 @@ public class ClassConfigurator {
                 
                 streamableMagicMap.put(m, clazz);
                 streamableClassMap.put(clazz, m);
+                
+                if(Streamable.class.isAssignableFrom(clazz)) {
+                	if(tuple.getVal3() != null)
+                		throw new ConfigurationException("Class " + clazz.getName() + " is streamable, therefore it can not have a serializer");
+                	continue;
+                }
+                
+                final String name = tuple.getVal3() == null ? DEFAULT_SERIALIZER : tuple.getVal3();
+                if((serializer = serializers.get(name)) == null)
+                	serializers.put(name, serializer = (Serializer) Util.loadClass(name, ClassConfigurator.class).newInstance());
+                serializerMap.put(clazz, serializer);
             } catch(ClassNotFoundException e) {
             	throw new ConfigurationException("failed loading class", e);
                 
@@ -148,6 +169,32 @@ public class ClassConfigurator {
             return i;
     }
     
+    /**
+     * @param clazz the class
+     * @return the serializer of the registered class that is not streamable, or null
+     */
+    public static Serializer getSerializer(Class<?> clazz) {
+        return serializerMap.get(clazz);
+    }
+    
+    /**
+     * Register a class that is not streamable, in addition to ssor-streaming.xml,
+     * this should be done on all nodes before any object of the class is sent.
+     * 
+     * @param magic the magic number
+     * @param clazz the class
+     * @param serializer the serializer
+     */
+    public static void register(short magic, Class<?> clazz, Serializer serializer) {
+    	if(magic == Header.EOH || streamableMagicMap.containsKey(magic))
+    		throw new ConfigurationException("key " + magic + " (" + clazz.getName() + ')' +
+                    " is reserved or already in magic map; please make sure that all keys are unique");
+    	
+    	serializerMap.put(clazz, serializer);
+    	streamableClassMap.put(clazz, magic);
+    	streamableMagicMap.put(magic, clazz);
+    }
+    
     public static Class getArray(short magic) {
         return primitiveMagicMap.get(magic);
     }
@@ -217,16 +264,19 @@ public class ClassConfigurator {
         return list;
     }
 
-    protected static Tuple<Short,String> parseClassData(Node protocol) throws IOException {
+    protected static Triple<Short,String,String> parseClassData(Node protocol) throws IOException {
         try {
             protocol.normalize();
             NamedNodeMap attrs=protocol.getAttributes();
             String clazzname;
             String magicnumber;
+            String serializer;
 
             magicnumber=attrs.getNamedItem("id").getNodeValue();
             clazzname=attrs.getNamedItem("name").getNodeValue();
-            return new Tuple<Short,String>(Short.valueOf(magicnumber), clazzname);
+            // Optional, only for the class that is not streamable
+            serializer=attrs.getNamedItem("serializer") == null ? null : attrs.getNamedItem("serializer").getNodeValue();
+            return new Triple<Short,String,String>(Short.valueOf(magicnumber), clazzname, serializer);
         }
         catch(Exception x) {
             IOException tmp=new IOException();
@@ -15,6 +15,7 @@ import javax.xml.parsers.DocumentBuilderFactory;
 import org.ssor.AtomicService;
 import org.ssor.CollectionFacade;
 import org.ssor.CompositeService;
+import org.ssor.PartitionedRegion;
 import org.ssor.RedundantService;
 import org.ssor.Region;
 import org.ssor.RegionDistributionManager;
@@ -145,11 +146,12 @@ public class ConfigurationParser {
 							.getNodeValue().equals("sessional-conflict-region"))
 						sessionalServiceList = node.getChildNodes();
 					else {
-						int id = parseRegion(nodeList.item(i), services);
-						if(regionNumbers.contains(id))
-							throw new ConfigurationException(
-									"duplicated declaration of region identifier: " + id);
-						regionNumbers.add(id);	
+						for (int id : parseRegion(nodeList.item(i), services)) {
+							if(regionNumbers.contains(id))
+								throw new ConfigurationException(
+										"duplicated declaration of region identifier: " + id);
+							regionNumbers.add(id);
+						}
 					}
 				}
 			}
@@ -230,24 +232,43 @@ public class ConfigurationParser {
 		Set<Map.Entry<String, AtomicService>> servicesSet = services.entrySet();
 		for(Map.Entry<String, AtomicService> entry : servicesSet)
 			serviceManager.register(entry.getValue());
+
+		/*
+		 * Setup the CDS matrix, it is indexed by magic number thus can only be
+		 * built after registration
+		 */
+		for(Map.Entry<String, AtomicService> entry : servicesSet)
+			entry.getValue().initConcurrentDeliverableServices();
 		
 	
 		adaptor.init();
 		
 	}
 
-	protected static int parseRegion(Node node,
+	/**
+	 * @return the numbers of the region and its partitions if any
+	 */
+	protected static int[] parseRegion(Node node,
 			Map<String, AtomicService> services) {
 
 		int id = 0;
 		final NodeList nodeList = node.getChildNodes();
-		final Region region = (node.getAttributes().getNamedItem("scope")
-				.getNodeValue().equals("non-conflict-region")) ? nonConflictRegion
-				: new Region(id = Integer.parseInt(node.getAttributes()
-						.getNamedItem("id").getNodeValue()),
-						Region.CONFLICT_REGION);
+		final Node partitions = node.getAttributes().getNamedItem("partitions");
+		final Region region;
+		if (node.getAttributes().getNamedItem("scope").getNodeValue().equals(
+				"non-conflict-region"))
+			region = nonConflictRegion;
+		else {
+			id = Integer.parseInt(node.getAttributes().getNamedItem("id")
+					.getNodeValue());
+			region = partitions == null ? new Region(id,
+					Region.CONFLICT_REGION) : new PartitionedRegion(id,
+					Region.CONFLICT_REGION, Integer.parseInt(partitions
+							.getNodeValue()));
+		}
 		AtomicService service = null;
 		String key = null;
+		Node conflictKey = null;
 		for (int j = 0; j < nodeList.getLength(); j++) {
 
 			if (nodeList.item(j).getNodeType() == Node.ELEMENT_NODE) {
@@ -263,10 +284,44 @@ public class ConfigurationParser {
 							+ region.getRegion()
 							+ ", only atomic service is allowed");
 
+				conflictKey = nodeList.item(j).getAttributes().getNamedItem(
+						"conflictKey");
+				if (conflictKey != null)
+					service.setConflictKey(parseConflictKey(conflictKey
+							.getNodeValue()));
+				// Otherwise the request can not be routed to a partition
+				if (region instanceof PartitionedRegion
+						&& !service.hasConflictKey())
+					throw new ConfigurationException("Service: " + key
+							+ " is associated with partitioned region: "
+							+ region.getRegion()
+							+ ", but the conflict key is not declared");
+
 				service.setRegion(region);
 			}
 		}
-		return id;
+
+		if (!(region instanceof PartitionedRegion))
+			return new int[] { id };
+
+		final int[] numbers = new int[((PartitionedRegion) region)
+				.getPartitions().length];
+		for (int i = 0; i < numbers.length; i++)
+			numbers[i] = PartitionedRegion.getPartitionNumber(id, i);
+		return numbers;
+	}
+
+	/**
+	 * @param value
+	 *            the comma separated index of arguments
+	 * @return the index of arguments that form the conflict key
+	 */
+	protected static int[] parseConflictKey(String value) {
+		final String[] indices = value.split(",");
+		final int[] key = new int[indices.length];
+		for (int i = 0; i < indices.length; i++)
+			key[i] = Integer.parseInt(indices[i].trim());
+		return key;
 	}
 
 	protected static List<String> parseAtomicService(Node node,
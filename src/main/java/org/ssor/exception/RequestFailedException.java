@@ -0,0 +1,24 @@
+package org.ssor.exception;
+
+/**
+ * Thrown to the caller of a request that can not be completed by this node,
+ * the request may or may not have been executed by the others.
+ * 
+ * @author Tao Chen
+ * 
+ */
+@SuppressWarnings("serial")
+public class RequestFailedException extends RuntimeException {
+
+	private String reqId;
+
+	public RequestFailedException(String reqId, String message) {
+		super("Request " + reqId + " failed: " + message);
+		this.reqId = reqId;
+	}
+
+	public String getReqId() {
+		return reqId;
+	}
+
+}
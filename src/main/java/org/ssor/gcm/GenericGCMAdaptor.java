@@ -16,6 +16,7 @@ import org.ssor.RegionDistributionSynchronyManager;
 import org.ssor.invocation.InvocationCallback;
 import org.ssor.protocol.Message;
 import org.ssor.protocol.ProtocolManager;
+import org.ssor.protocol.batching.BatchFrameHeader;
 import org.ssor.protocol.election.ElectionManager;
 import org.ssor.protocol.replication.RequestHeader;
 import org.ssor.protocol.tolerance.FTManager;
@@ -283,6 +284,78 @@ public abstract class GenericGCMAdaptor implements GCMAdaptor {
 
 
 	
+	/**
+	 * Install the first view of this node, this must be invoked before
+	 * any message is received.
+	 *
+	 * @param view
+	 *            the addresses of members, this node is the last one
+	 * @param viewSeqno
+	 *            seqno of the view
+	 */
+	protected void viewInstall(final Collection<Object> view, long viewSeqno) {
+
+		regionDistributionSynchronyManager.setViewSeqno(viewSeqno);
+		final boolean isFirst = view.size() == 1;
+		if (isFirst)
+			regionDistributionSynchronyManager.recordFirst(group.getUUID_ADDR());
+		else
+			regionDistributionSynchronyManager.recordJoin(group.getUUID_ADDR());
+
+		// Join may trigger election, which should not suspend the caller
+		Environment.pool.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				initView(view, isFirst, new Callback() {
+
+					@Override
+					public Object run() {
+						currentNodeJoin(view);
+						return null;
+					}
+
+				});
+			}
+
+		});
+	}
+
+	/**
+	 * Invoked by the thread that delivers messages when a new node join, thus
+	 * it is ordered with messages
+	 *
+	 * @param joined
+	 *            UUID of the new node
+	 */
+	protected void viewJoin(int joined) {
+		regionDistributionSynchronyManager.isViewDeliverable();
+		regionDistributionSynchronyManager.recordJoin(joined);
+	}
+
+	/**
+	 * Invoked by the thread that delivers messages when a node crash, thus it
+	 * is ordered with messages
+	 *
+	 * @param left
+	 *            UUID of the crashed node
+	 * @param view
+	 *            the addresses of the remaining members
+	 */
+	protected void viewLeave(final int left, final Collection<Object> view) {
+		regionDistributionSynchronyManager.isViewDeliverable();
+		// Tolerance may wait for the messages from the others, thus it
+		// should not suspend the receiver thread
+		Environment.pool.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				memberLeave(left, view);
+			}
+
+		});
+	}
+
 	/**
 	 * Used when this node join
 	 * @param cache
@@ -330,6 +403,16 @@ public abstract class GenericGCMAdaptor implements GCMAdaptor {
 	
 	public void processPriorReceive(final Message message, final Object src){
 		
+		// Unpack the frame and process the messages in the order of sending
+		if (message.getHeader() instanceof BatchFrameHeader) {
+			for (Message m : ((BatchFrameHeader) message.getHeader()).getMessages()) {
+				// Unicast frame carries the view for all its messages
+				if (m.getViewSeqno() == null && message.getViewSeqno() != null)
+					m.setViewSeqno(message.getViewSeqno());
+				processPriorReceive(m, src);
+			}
+			return;
+		}
 
 		if (isNeedNewThread(message)) {
 			Environment.pool.execute(new Runnable() {
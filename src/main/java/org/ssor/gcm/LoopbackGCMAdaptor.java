@@ -0,0 +1,121 @@
+package org.ssor.gcm;
+
+import java.util.Collection;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.ssor.exception.ConfigurationException;
+import org.ssor.exception.SendToFaultyNodeException;
+import org.ssor.protocol.Message;
+import org.ssor.util.Util;
+
+/**
+ * GCM adaptor that connects a number of groups within the same JVM through a
+ * shared {@link LoopbackHub}, this is mainly used for benchmarking and testing
+ * of the protocols without a real GCM.
+ *
+ * Usage: create a hub, and then create an adaptor per replica and call
+ * init(hub); calling close() simulates crash of the replica.
+ *
+ * @author Tao Chen
+ *
+ */
+public class LoopbackGCMAdaptor extends GenericGCMAdaptor {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(LoopbackGCMAdaptor.class);
+
+	private LoopbackHub hub;
+
+	private int uuid;
+
+	public LoopbackGCMAdaptor(String groupName) {
+		super(groupName);
+		setUtil(new LoopbackUtil());
+	}
+
+	/**
+	 * Join the given hub
+	 *
+	 * @param object
+	 *            the {@link LoopbackHub}
+	 */
+	@Override
+	public void init(Object object) throws Throwable {
+
+		if (!(object instanceof LoopbackHub))
+			throw new ConfigurationException(
+					"Loopback adaptor can only be initialized with "
+							+ LoopbackHub.class.getName() + ", but given "
+							+ object);
+
+		hub = (LoopbackHub) object;
+		uuid = hub.nextUUID();
+		// This must be set before any message can be received
+		group.setUUID_ADDR(uuid);
+
+		if (logger.isDebugEnabled()) {
+			logger.debug("Node " + uuid + " join group " + group.getName());
+		}
+		hub.join(uuid, this);
+	}
+
+	/**
+	 * Leave the hub without any notice, this is treated as crash failure by the
+	 * rest of the members
+	 */
+	public void close() {
+		if (hub != null)
+			hub.leave(uuid);
+		group.stop();
+	}
+
+	@Override
+	public void multicast(Message message) {
+		hub.multicast(uuid, message);
+	}
+
+	@Override
+	public void unicast(Message message, Object address) {
+		processPriorUnicast(message);
+		final int dest = util.getUUIDFromAddress(address);
+		if (!hub.unicast(uuid, dest, message))
+			throw new SendToFaultyNodeException(dest, message);
+	}
+
+	/**
+	 * Messages are always delivered asynchronously by the hub
+	 */
+	@Override
+	public void blockCall(Object object) {
+		multicast((Message) object);
+	}
+
+	/**
+	 * Messages are always delivered asynchronously by the hub
+	 */
+	@Override
+	public void blockCall(Object object, Object address) {
+		unicast((Message) object, address);
+	}
+
+	public LoopbackHub getHub() {
+		return hub;
+	}
+
+	public int getUUID() {
+		return uuid;
+	}
+
+	/**
+	 * The address is the UUID itself
+	 */
+	private static class LoopbackUtil extends Util {
+
+		@Override
+		public int getUUIDFromAddress(Object object) {
+			return (Integer) object;
+		}
+
+	}
+}
@@ -0,0 +1,386 @@
+package org.ssor.gcm;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.ssor.CollectionFacade;
+import org.ssor.protocol.Message;
+import org.ssor.util.Util;
+
+/**
+ * The in-JVM 'network' shared by a number of {@link LoopbackGCMAdaptor}, it
+ * maintains the view of the group and deliver the messages by using a
+ * dedicated receiver thread per member, this is similar to what a GCM does.
+ *
+ * Each message is serialized once on sending and deserialized per receiver,
+ * thus the wire format is exercised as well. The delivery time of each message
+ * is derived from the {@link LoopbackLink} between the two members, FIFO is
+ * preserved on each link unless reordering is enabled.
+ *
+ * The address of a member is its UUID.
+ *
+ * @author Tao Chen
+ *
+ */
+public class LoopbackHub {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(LoopbackHub.class);
+
+	private final Map<Integer, Endpoint> members;
+	// Members in the order of join, guarded by 'this'
+	private final List<Object> view = new LinkedList<Object>();
+
+	private final Map<Long, LoopbackLink> links;
+
+	private LoopbackLink defaultLink = new LoopbackLink();
+
+	// 0 is reserved as temporary sequencer id
+	private final AtomicInteger uuidGenerator = new AtomicInteger(0);
+	// Tie breaker of message with the same delivery time
+	private final AtomicLong order = new AtomicLong(0);
+	// Seqno of the current view, guarded by 'this'
+	private long viewSeqno = 0;
+
+	private final Random random = new Random();
+
+	@SuppressWarnings("unchecked")
+	public LoopbackHub() {
+		members = CollectionFacade.getConcurrentHashMap();
+		links = CollectionFacade.getConcurrentHashMap();
+	}
+
+	public int nextUUID() {
+		return uuidGenerator.incrementAndGet();
+	}
+
+	/**
+	 * Add the adaptor into the view, the existing members are notified in the
+	 * order of view change, together with the messages.
+	 *
+	 * @param uuid
+	 *            the UUID of the joining member
+	 * @param adaptor
+	 *            the joining adaptor
+	 */
+	public synchronized void join(final int uuid, LoopbackGCMAdaptor adaptor) {
+
+		viewSeqno++;
+		for (final Endpoint endpoint : members.values()) {
+			endpoint.notifyView(new Runnable() {
+
+				@Override
+				public void run() {
+					endpoint.adaptor.viewJoin(uuid);
+				}
+
+			});
+		}
+
+		view.add(uuid);
+		// The first view must be installed before any message can be received
+		adaptor.viewInstall(new ArrayList<Object>(view), viewSeqno);
+
+		final Endpoint endpoint = new Endpoint(uuid, adaptor);
+		members.put(uuid, endpoint);
+		endpoint.start();
+
+		if (logger.isDebugEnabled()) {
+			logger.debug("Node " + uuid + " join, current view: " + view);
+		}
+	}
+
+	/**
+	 * Remove the member from the view without any notice, this simulate crash
+	 * failure, the rest of the members would be notified in the order of view
+	 * change, together with the messages.
+	 *
+	 * @param uuid
+	 *            the UUID of the leaving member
+	 */
+	public synchronized void leave(final int uuid) {
+
+		final Endpoint leaving = members.remove(uuid);
+		if (leaving == null)
+			return;
+
+		leaving.close();
+		view.remove((Object) uuid);
+		viewSeqno++;
+
+		final Collection<Object> current = new ArrayList<Object>(view);
+		for (final Endpoint endpoint : members.values()) {
+			endpoint.notifyView(new Runnable() {
+
+				@Override
+				public void run() {
+					endpoint.adaptor.viewLeave(uuid, current);
+				}
+
+			});
+		}
+
+		if (logger.isDebugEnabled()) {
+			logger.debug("Node " + uuid + " leave, current view: " + current);
+		}
+	}
+
+	/**
+	 * Send to all members, including the sender itself
+	 *
+	 * @param src
+	 *            UUID of the sender
+	 * @param message
+	 *            the message
+	 */
+	public void multicast(int src, Message message) {
+		// The crashed member can not send anything
+		if (!members.containsKey(src))
+			return;
+
+		final byte[] buffer = encode(message);
+		for (Endpoint endpoint : members.values())
+			endpoint.send(src, buffer);
+	}
+
+	/**
+	 * Send to the given member
+	 *
+	 * @param src
+	 *            UUID of the sender
+	 * @param dest
+	 *            UUID of the receiver
+	 * @param message
+	 *            the message
+	 * @return false if the receiver is not in the view
+	 */
+	public boolean unicast(int src, int dest, Message message) {
+		final Endpoint endpoint = members.get(dest);
+		if (endpoint == null)
+			return false;
+		// The crashed member can not send anything
+		if (!members.containsKey(src))
+			return true;
+
+		endpoint.send(src, encode(message));
+		return true;
+	}
+
+	public synchronized Collection<Object> getView() {
+		return new ArrayList<Object>(view);
+	}
+
+	public void setLink(int src, int dest, LoopbackLink link) {
+		links.put(toLinkKey(src, dest), link);
+	}
+
+	public LoopbackLink getLink(int src, int dest) {
+		final LoopbackLink link = links.get(toLinkKey(src, dest));
+		return link == null ? defaultLink : link;
+	}
+
+	public void setDefaultLink(LoopbackLink defaultLink) {
+		this.defaultLink = defaultLink;
+	}
+
+	/**
+	 * Stop all the receiver threads, no view change would be triggered
+	 */
+	public synchronized void close() {
+		for (Endpoint endpoint : members.values())
+			endpoint.close();
+		members.clear();
+		view.clear();
+	}
+
+	private long toLinkKey(int src, int dest) {
+		return ((long) src << 32) | (dest & 0xFFFFFFFFL);
+	}
+
+	private byte[] encode(Message message) {
+		try {
+			return Util.objectToByteBuffer(message);
+		} catch (Exception e) {
+			throw new RuntimeException("Serializing message " + message
+					+ " failed", e);
+		}
+	}
+
+	/**
+	 * The receiving side of a member
+	 */
+	private class Endpoint implements Runnable {
+
+		private final int uuid;
+		private final LoopbackGCMAdaptor adaptor;
+		private final DelayQueue<Delivery> queue = new DelayQueue<Delivery>();
+		// Key = sender, value = {link busy until, last delivery time, latest
+		// pending delivery time}, guarded by 'this'
+		private final Map<Integer, long[]> states = new HashMap<Integer, long[]>();
+		// Delivery time of the latest view change, no message sent afterwards
+		// can be delivered before it, guarded by 'this'
+		private long viewDeliverAt = 0;
+		private final Thread thread;
+		private volatile boolean isClosed = false;
+
+		public Endpoint(int uuid, LoopbackGCMAdaptor adaptor) {
+			this.uuid = uuid;
+			this.adaptor = adaptor;
+			thread = new Thread(this, "Loopback-receiver-" + uuid);
+			thread.setDaemon(true);
+		}
+
+		public void start() {
+			thread.start();
+		}
+
+		public void close() {
+			isClosed = true;
+			thread.interrupt();
+			queue.clear();
+		}
+
+		/**
+		 * Deliver view change after all the messages that have been sent to
+		 * this member, including those still on the links, thus the view
+		 * change is synchronous with the messages
+		 */
+		public void notifyView(Runnable event) {
+			long deliverAt = System.nanoTime();
+			synchronized (this) {
+				for (long[] state : states.values())
+					deliverAt = Math.max(deliverAt, state[2]);
+				viewDeliverAt = deliverAt;
+				// Ties are broken by order, which is taken after the messages
+				queue.put(new Delivery(event, deliverAt, order
+						.incrementAndGet()));
+			}
+		}
+
+		public void send(int src, byte[] buffer) {
+
+			final LoopbackLink link = getLink(src, uuid);
+			final long now = System.nanoTime();
+			long deliverAt = 0;
+
+			synchronized (this) {
+				long[] state = states.get(src);
+				if (state == null)
+					states.put(src, state = new long[] { now, now, now });
+
+				// Messages are put onto the link one after another
+				state[0] = Math.max(now, state[0])
+						+ link.getTransmissionTime(buffer.length);
+				deliverAt = state[0] + link.getLatency() * 1000L;
+				if (link.getJitter() > 0)
+					deliverAt += (long) (random.nextDouble() * link.getJitter() * 1000L);
+
+				// Keep FIFO unless this message is chosen to be reordered
+				if (link.getReorderRate() <= 0
+						|| random.nextDouble() >= link.getReorderRate()) {
+					deliverAt = Math.max(deliverAt, state[1]);
+					state[1] = deliverAt;
+				}
+
+				deliverAt = Math.max(deliverAt, viewDeliverAt);
+				state[2] = Math.max(state[2], deliverAt);
+				queue.put(new Delivery(src, buffer, deliverAt, order
+						.incrementAndGet()));
+			}
+		}
+
+		@Override
+		public void run() {
+			Delivery delivery = null;
+			Message message = null;
+			while (!isClosed) {
+				try {
+					delivery = queue.take();
+				} catch (InterruptedException e) {
+					continue;
+				}
+
+				if (delivery.event != null) {
+					try {
+						delivery.event.run();
+					} catch (Throwable t) {
+						logger.error("Node " + uuid
+								+ " handle view change failed", t);
+					}
+					continue;
+				}
+
+				try {
+					message = (Message) Util
+							.objectFromByteBuffer(delivery.buffer);
+				} catch (Exception e) {
+					logger.error("Deserializing message from node "
+							+ delivery.src + " failed", e);
+					continue;
+				}
+
+				try {
+					adaptor.processPriorReceive(message, delivery.src);
+				} catch (Throwable t) {
+					logger.error("Node " + uuid
+							+ " handle receive message failed", t);
+				}
+			}
+		}
+	}
+
+	private static class Delivery implements Delayed {
+
+		private final Integer src;
+		private final byte[] buffer;
+		// View change, if this is not a message
+		private final Runnable event;
+		// In nanoseconds
+		private final long deliverAt;
+		private final long order;
+
+		public Delivery(Integer src, byte[] buffer, long deliverAt, long order) {
+			this.src = src;
+			this.buffer = buffer;
+			this.event = null;
+			this.deliverAt = deliverAt;
+			this.order = order;
+		}
+
+		public Delivery(Runnable event, long deliverAt, long order) {
+			this.src = null;
+			this.buffer = null;
+			this.event = event;
+			this.deliverAt = deliverAt;
+			this.order = order;
+		}
+
+		@Override
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(deliverAt - System.nanoTime(),
+					TimeUnit.NANOSECONDS);
+		}
+
+		@Override
+		public int compareTo(Delayed another) {
+			final Delivery delivery = (Delivery) another;
+			if (deliverAt != delivery.deliverAt)
+				return deliverAt < delivery.deliverAt ? -1 : 1;
+
+			return order < delivery.order ? -1 : (order == delivery.order ? 0
+					: 1);
+		}
+	}
+}
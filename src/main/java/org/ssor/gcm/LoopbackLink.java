@@ -0,0 +1,84 @@
+package org.ssor.gcm;
+
+/**
+ * Describe the characteristic of a directed link between two nodes of the
+ * {@link LoopbackHub}, messages are FIFO on each link unless reordering is
+ * enabled.
+ *
+ * @author Tao Chen
+ *
+ */
+public class LoopbackLink {
+
+	// One-way propagation latency, in microseconds
+	private long latency;
+	// Upper bound of the random delay added on top of latency, in microseconds
+	private long jitter;
+	// Probability (0 ~ 1) that a message is allowed to overtake the messages
+	// sent before it, it only takes effect if jitter is larger than 0
+	private double reorderRate;
+	// Bytes per second, 0 means unlimited
+	private long bandwidth;
+
+	public LoopbackLink() {
+		super();
+	}
+
+	public LoopbackLink(long latency, long jitter, double reorderRate,
+			long bandwidth) {
+		super();
+		this.latency = latency;
+		this.jitter = jitter;
+		this.reorderRate = reorderRate;
+		this.bandwidth = bandwidth;
+	}
+
+	/**
+	 * Calculate the time needed to put the given number of bytes onto the link
+	 *
+	 * @param length
+	 *            number of bytes
+	 * @return the transmission time in nanoseconds
+	 */
+	public long getTransmissionTime(int length) {
+		return bandwidth <= 0 ? 0 : length * 1000000000L / bandwidth;
+	}
+
+	public long getLatency() {
+		return latency;
+	}
+
+	public void setLatency(long latency) {
+		this.latency = latency;
+	}
+
+	public long getJitter() {
+		return jitter;
+	}
+
+	public void setJitter(long jitter) {
+		this.jitter = jitter;
+	}
+
+	public double getReorderRate() {
+		return reorderRate;
+	}
+
+	public void setReorderRate(double reorderRate) {
+		this.reorderRate = reorderRate;
+	}
+
+	public long getBandwidth() {
+		return bandwidth;
+	}
+
+	public void setBandwidth(long bandwidth) {
+		this.bandwidth = bandwidth;
+	}
+
+	public String toString() {
+		return "latency: " + latency + "us, jitter: " + jitter
+				+ "us, reorder rate: " + reorderRate + ", bandwidth: "
+				+ bandwidth + "B/s";
+	}
+}
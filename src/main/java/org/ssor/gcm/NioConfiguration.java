@@ -0,0 +1,115 @@
+package org.ssor.gcm;
+
+import java.net.InetSocketAddress;
+
+import org.ssor.exception.ConfigurationException;
+
+/**
+ * Static membership of the group for {@link NioGCMAdaptor}, the UUID of a
+ * member is its index within the member list plus 1, thus all the members
+ * agree on the UUIDs without any negotiation.
+ *
+ * @author Tao Chen
+ *
+ */
+public class NioConfiguration {
+
+	private InetSocketAddress[] members;
+	// Index of the current node within members
+	private int local;
+	// In milliseconds
+	private int connectTimeout = 2000;
+	// Maximum number of buffers that are written by one gathering write
+	private int maxGatheringBuffers = 64;
+	// The largest encoded message that is sent and received by pooled buffer
+	private int maxPooledBufferSize = 1024 * 1024;
+	// Maximum number of idle pooled buffers per size class
+	private int maxIdleBuffers = 256;
+
+	public NioConfiguration(InetSocketAddress[] members, int local) {
+		super();
+		if (local < 0 || local >= members.length)
+			throw new ConfigurationException("Index of local node " + local
+					+ " is out of the member list");
+		this.members = members;
+		this.local = local;
+	}
+
+	/**
+	 * Parse the member list
+	 *
+	 * @param members
+	 *            in the form of 'host:port,host:port,...'
+	 * @param local
+	 *            index of the current node within the list
+	 * @return the configuration
+	 */
+	public static NioConfiguration parse(String members, int local) {
+
+		final String[] array = members.split(",");
+		final InetSocketAddress[] addresses = new InetSocketAddress[array.length];
+		String[] pair = null;
+		for (int i = 0; i < array.length; i++) {
+			pair = array[i].trim().split(":");
+			if (pair.length != 2)
+				throw new ConfigurationException("Invalid member address: "
+						+ array[i]);
+			addresses[i] = new InetSocketAddress(pair[0], Integer
+					.parseInt(pair[1]));
+		}
+
+		return new NioConfiguration(addresses, local);
+	}
+
+	public int getUUID(int index) {
+		return index + 1;
+	}
+
+	public InetSocketAddress getAddress(int uuid) {
+		return members[uuid - 1];
+	}
+
+	public int getLocalUUID() {
+		return getUUID(local);
+	}
+
+	public InetSocketAddress getLocalAddress() {
+		return members[local];
+	}
+
+	public int size() {
+		return members.length;
+	}
+
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	public void setConnectTimeout(int connectTimeout) {
+		this.connectTimeout = connectTimeout;
+	}
+
+	public int getMaxGatheringBuffers() {
+		return maxGatheringBuffers;
+	}
+
+	public void setMaxGatheringBuffers(int maxGatheringBuffers) {
+		this.maxGatheringBuffers = maxGatheringBuffers;
+	}
+
+	public int getMaxPooledBufferSize() {
+		return maxPooledBufferSize;
+	}
+
+	public void setMaxPooledBufferSize(int maxPooledBufferSize) {
+		this.maxPooledBufferSize = maxPooledBufferSize;
+	}
+
+	public int getMaxIdleBuffers() {
+		return maxIdleBuffers;
+	}
+
+	public void setMaxIdleBuffers(int maxIdleBuffers) {
+		this.maxIdleBuffers = maxIdleBuffers;
+	}
+}
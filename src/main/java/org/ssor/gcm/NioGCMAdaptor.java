@@ -0,0 +1,837 @@
+package org.ssor.gcm;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.ssor.CollectionFacade;
+import org.ssor.exception.ConfigurationException;
+import org.ssor.exception.SendToFaultyNodeException;
+import org.ssor.protocol.Message;
+import org.ssor.util.BufferPool;
+import org.ssor.util.Util;
+
+/**
+ * GCM adaptor that runs directly on TCP, without any external GCS.
+ *
+ * All the I/O of a node is handled by a single selector thread, each peer has
+ * an outbound connection with a write queue, which is flushed by gathering
+ * writes, and messages are pipelined without waiting for any acknowledgment.
+ * Received messages are delivered by a single receiver thread, thus the
+ * selector is never suspended by the protocols. Each frame is a length
+ * prefixed output of Message.writeTo, therefore FIFO and reliable delivery per
+ * sender is given by TCP, and multicast is realized by sending to each member
+ * in the view (including the current node).
+ *
+ * Messages are encoded into pooled direct buffers, a multicast buffer is
+ * shared by all the peers and released once every peer has written it, and the
+ * received payloads are copied into pooled buffers as well, so that sending
+ * and receiving do not allocate in steady state.
+ *
+ * The membership is static (see {@link NioConfiguration}), a node join by
+ * connecting to all the reachable members and it is the first member if none
+ * is reachable, thus the members should be started one after another. Loss of
+ * connection is treated as crash failure. Note that view changes are not
+ * agreed amongst the members as what a GCS does, they are delivered in the
+ * order of detection on each node.
+ *
+ * @author Tao Chen
+ *
+ */
+public class NioGCMAdaptor extends GenericGCMAdaptor implements Runnable {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(NioGCMAdaptor.class);
+
+	// Frame = length (int, excluding itself) + type (byte) + payload
+	private static final byte HELLO = 1;
+	private static final byte WELCOME = 2;
+	private static final byte MESSAGE = 3;
+
+	private static final int FRAME_HEADER_SIZE = 5;
+
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+	private NioConfiguration configuration;
+
+	private BufferPool pool;
+
+	private int uuid;
+
+	private Selector selector;
+
+	private ServerSocketChannel server;
+
+	// Key = UUID, value = peers within current view
+	private Map<Integer, Peer> peers;
+
+	// Peers that require the attention of selector thread
+	private Queue<Peer> pendingPeers;
+
+	private final BlockingQueue<Delivery> deliveries = new LinkedBlockingQueue<Delivery>();
+
+	// Seqno of the view changes that have been detected
+	private final AtomicLong viewSeqno = new AtomicLong(0);
+
+	private Thread selectorThread;
+
+	private Thread receiverThread;
+
+	private volatile boolean isRunning = false;
+
+	@SuppressWarnings("unchecked")
+	public NioGCMAdaptor(String groupName) {
+		super(groupName);
+		setUtil(new NioUtil());
+		peers = CollectionFacade.getConcurrentHashMap();
+		pendingPeers = CollectionFacade.getConcurrentQueue();
+	}
+
+	/**
+	 * Join the group
+	 *
+	 * @param object
+	 *            the {@link NioConfiguration}
+	 */
+	@Override
+	public void init(Object object) throws Throwable {
+
+		if (!(object instanceof NioConfiguration))
+			throw new ConfigurationException(
+					"Nio adaptor can only be initialized with "
+							+ NioConfiguration.class.getName()
+							+ ", but given " + object);
+
+		configuration = (NioConfiguration) object;
+		uuid = configuration.getLocalUUID();
+		pool = new BufferPool(configuration.getMaxPooledBufferSize(),
+				configuration.getMaxIdleBuffers());
+		// This must be set before any message can be received
+		group.setUUID_ADDR(uuid);
+
+		selector = Selector.open();
+		server = ServerSocketChannel.open();
+		server.socket().setReuseAddress(true);
+		server.socket().bind(configuration.getLocalAddress());
+		server.configureBlocking(false);
+		server.register(selector, SelectionKey.OP_ACCEPT);
+
+		final Collection<Object> view = new LinkedList<Object>();
+		long seqno = 0;
+		Peer peer = null;
+		for (int i = 0; i < configuration.size(); i++) {
+
+			if (configuration.getUUID(i) == uuid)
+				continue;
+
+			peer = new Peer(configuration.getUUID(i));
+			final Long welcome = handshake(peer);
+			if (welcome == null)
+				continue;
+
+			seqno = Math.max(seqno, welcome);
+			peers.put(peer.uuid, peer);
+			pendingPeers.add(peer);
+			view.add(peer.uuid);
+		}
+
+		view.add(uuid);
+		viewSeqno.set(seqno);
+
+		if (logger.isDebugEnabled()) {
+			logger.debug("Node " + uuid + " join group " + group.getName()
+					+ ", view: " + view + ", view seqno: " + seqno);
+		}
+
+		viewInstall(view, seqno);
+
+		isRunning = true;
+		receiverThread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				deliver();
+			}
+
+		}, "Nio-receiver-" + uuid);
+		receiverThread.setDaemon(true);
+		receiverThread.start();
+
+		selectorThread = new Thread(this, "Nio-selector-" + uuid);
+		selectorThread.setDaemon(true);
+		selectorThread.start();
+	}
+
+	/**
+	 * Close all the connections, this is treated as crash failure by the rest
+	 * of the members
+	 */
+	public void close() {
+		isRunning = false;
+		if (selector != null)
+			selector.wakeup();
+		if (receiverThread != null)
+			receiverThread.interrupt();
+		group.stop();
+	}
+
+	@Override
+	public void multicast(Message message) {
+		final Frame frame = encode(message);
+		for (Peer peer : peers.values())
+			peer.send(frame.retain());
+
+		deliveries.add(new Delivery(uuid, frame.retain().skipHeader()));
+		frame.release();
+	}
+
+	@Override
+	public void unicast(Message message, Object address) {
+		processPriorUnicast(message);
+		final int dest = util.getUUIDFromAddress(address);
+		final Frame frame = encode(message);
+
+		if (dest == uuid) {
+			deliveries.add(new Delivery(uuid, frame.skipHeader()));
+			return;
+		}
+
+		final Peer peer = peers.get(dest);
+		if (peer == null) {
+			frame.release();
+			throw new SendToFaultyNodeException(dest, message);
+		}
+		peer.send(frame);
+	}
+
+	/**
+	 * Messages are always delivered asynchronously
+	 */
+	@Override
+	public void blockCall(Object object) {
+		multicast((Message) object);
+	}
+
+	/**
+	 * Messages are always delivered asynchronously
+	 */
+	@Override
+	public void blockCall(Object object, Object address) {
+		unicast((Message) object, address);
+	}
+
+	/**
+	 * The selector loop
+	 */
+	@Override
+	public void run() {
+
+		SelectionKey key = null;
+		Peer peer = null;
+		while (isRunning) {
+
+			try {
+				selector.select();
+			} catch (IOException e) {
+				logger.error("Select failed", e);
+				break;
+			}
+
+			while ((peer = pendingPeers.poll()) != null)
+				register(peer);
+
+			final Iterator<SelectionKey> itr = selector.selectedKeys()
+					.iterator();
+			while (itr.hasNext()) {
+				key = itr.next();
+				itr.remove();
+
+				if (!key.isValid())
+					continue;
+
+				try {
+					if (key.isAcceptable()) {
+						accept();
+						continue;
+					}
+					if (key.isConnectable())
+						connect(key);
+					if (key.isValid() && key.isReadable())
+						read(key);
+					if (key.isValid() && key.isWritable()) {
+						if (key.attachment() instanceof Peer)
+							write(key, (Peer) key.attachment());
+						else
+							writeWelcome(key, (Inbound) key.attachment());
+					}
+				} catch (IOException e) {
+					if (logger.isDebugEnabled()) {
+						logger.debug("Connection failed: " + key.attachment(),
+								e);
+					}
+					fail(key);
+				}
+			}
+		}
+
+		for (SelectionKey k : selector.keys())
+			close(k.channel());
+		try {
+			selector.close();
+		} catch (IOException e) {
+		}
+	}
+
+	private void register(Peer peer) {
+
+		// It has been removed from the view
+		if (peers.get(peer.uuid) != peer)
+			return;
+
+		try {
+			final SelectionKey key = peer.channel.keyFor(selector);
+			if (key == null) {
+				peer.channel.register(selector, peer.channel
+						.isConnectionPending() ? SelectionKey.OP_CONNECT
+						: SelectionKey.OP_READ | SelectionKey.OP_WRITE, peer);
+			} else if (key.isValid() && peer.channel.isConnected())
+				key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		} catch (IOException e) {
+			logger.error("Register connection to node " + peer.uuid
+					+ " failed", e);
+			fail(peer.uuid);
+		}
+	}
+
+	private void accept() {
+		SocketChannel channel = null;
+		try {
+			channel = server.accept();
+			if (channel == null)
+				return;
+
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			channel.register(selector, SelectionKey.OP_READ, new Inbound(
+					channel));
+		} catch (IOException e) {
+			logger.error("Accept connection failed", e);
+			close(channel);
+		}
+	}
+
+	private void connect(SelectionKey key) throws IOException {
+		final Peer peer = (Peer) key.attachment();
+		if (peer.channel.finishConnect())
+			key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+	}
+
+	private void read(SelectionKey key) throws IOException {
+
+		// The outbound connection only carries WELCOME, which is ignored
+		if (key.attachment() instanceof Peer) {
+			final Peer peer = (Peer) key.attachment();
+			peer.readBuffer.clear();
+			if (peer.channel.read(peer.readBuffer) == -1)
+				throw new EOFException("Node " + peer.uuid + " closed");
+			return;
+		}
+
+		final Inbound inbound = (Inbound) key.attachment();
+		ByteBuffer buffer = inbound.buffer;
+		if (inbound.channel.read(buffer) == -1)
+			throw new EOFException("Node " + inbound.uuid + " closed");
+
+		buffer.flip();
+		int length = 0;
+		while (buffer.remaining() >= 4) {
+			length = buffer.getInt(buffer.position());
+			if (buffer.remaining() < 4 + length)
+				break;
+
+			buffer.getInt();
+			handleFrame(inbound, buffer.get(), buffer, length - 1);
+			length = 0;
+		}
+
+		// The incomplete frame is larger than the buffer
+		if (4 + length > buffer.capacity()) {
+			inbound.buffer = ByteBuffer.allocate(Math.max(
+					buffer.capacity() * 2, 4 + length));
+			inbound.buffer.put(buffer);
+		} else
+			buffer.compact();
+	}
+
+	private void handleFrame(Inbound inbound, byte type, ByteBuffer buffer,
+			int length) throws IOException {
+
+		switch (type) {
+		case HELLO: {
+
+			inbound.uuid = buffer.getInt();
+			Peer peer = peers.get(inbound.uuid);
+			// This is a new node, otherwise it is the connection back from the
+			// node that this node has connected to
+			if (peer == null) {
+
+				final int joined = inbound.uuid;
+				viewSeqno.incrementAndGet();
+				deliveries.add(new Delivery(new Runnable() {
+
+					@Override
+					public void run() {
+						viewJoin(joined);
+					}
+
+				}));
+
+				peer = new Peer(joined);
+				peer.channel = SocketChannel.open();
+				peer.channel.configureBlocking(false);
+				peer.channel.socket().setTcpNoDelay(true);
+				// HELLO must be the first frame
+				peer.queue.add(new Frame(createHello(), false));
+				peer.channel.connect(configuration.getAddress(joined));
+				peers.put(joined, peer);
+				register(peer);
+
+				if (logger.isDebugEnabled()) {
+					logger.debug("Node " + joined + " join, view seqno: "
+							+ viewSeqno.get());
+				}
+			}
+
+			peer.inbound = inbound.channel;
+
+			final ByteBuffer welcome = ByteBuffer.allocate(FRAME_HEADER_SIZE
+					+ Long.SIZE / Byte.SIZE);
+			welcome.putInt(welcome.capacity() - 4).put(WELCOME).putLong(
+					viewSeqno.get());
+			welcome.flip();
+			// The peer blocks until the whole WELCOME arrives, what can not be
+			// written now is left to OP_WRITE, thus the selector is not held
+			// by a slow peer
+			inbound.welcome = new Frame(welcome, false);
+			writeWelcome(inbound.channel.keyFor(selector), inbound);
+			break;
+
+		}
+		case MESSAGE: {
+
+			// Decoding is left to the receiver thread
+			final ByteBuffer payload = pool.acquire(length);
+			final int limit = buffer.limit();
+			buffer.limit(buffer.position() + length);
+			payload.put(buffer);
+			buffer.limit(limit);
+			payload.flip();
+			deliveries.add(new Delivery(inbound.uuid, new Frame(payload, true)));
+			break;
+
+		}
+		default: {
+			buffer.position(buffer.position() + length);
+			if (logger.isWarnEnabled())
+				logger.warn("Unknown frame type " + type + " from node "
+						+ inbound.uuid);
+		}
+		}
+	}
+
+	private void write(SelectionKey key, Peer peer) throws IOException {
+
+		Frame frame = null;
+		int length = 0;
+		while (true) {
+
+			while (peer.writing.size() < configuration.getMaxGatheringBuffers()
+					&& (frame = peer.queue.poll()) != null)
+				peer.writing.add(frame);
+
+			if (peer.writing.isEmpty()) {
+				peer.isScheduled.set(false);
+				// Re-check, in case that a sender has queued after the poll
+				if (peer.queue.isEmpty()
+						|| !peer.isScheduled.compareAndSet(false, true)) {
+					key.interestOps(SelectionKey.OP_READ);
+					return;
+				}
+				continue;
+			}
+
+			length = 0;
+			for (Frame queued : peer.writing)
+				peer.gathering[length++] = queued.buffer;
+			peer.channel.write(peer.gathering, 0, length);
+			while (!peer.writing.isEmpty()
+					&& !peer.writing.getFirst().buffer.hasRemaining())
+				peer.writing.removeFirst().release();
+
+			// The socket buffer is full, wait for the next OP_WRITE
+			if (!peer.writing.isEmpty())
+				return;
+		}
+	}
+
+	private void writeWelcome(SelectionKey key, Inbound inbound)
+			throws IOException {
+
+		if (inbound.welcome != null) {
+			inbound.channel.write(inbound.welcome.buffer);
+			if (inbound.welcome.buffer.hasRemaining()) {
+				key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				return;
+			}
+			inbound.welcome = null;
+		}
+		key.interestOps(SelectionKey.OP_READ);
+	}
+
+	private void fail(SelectionKey key) {
+		key.cancel();
+		close(key.channel());
+
+		final Integer failed = key.attachment() instanceof Peer ? ((Peer) key
+				.attachment()).uuid : ((Inbound) key.attachment()).uuid;
+		if (failed != null)
+			fail(failed);
+	}
+
+	private void fail(final int failed) {
+
+		final Peer peer = peers.remove(failed);
+		if (peer == null)
+			return;
+
+		close(peer.channel);
+		close(peer.inbound);
+		peer.releaseFrames();
+		viewSeqno.incrementAndGet();
+
+		final Collection<Object> view = new ArrayList<Object>(peers.keySet());
+		view.add(uuid);
+
+		if (logger.isDebugEnabled()) {
+			logger.debug("Node " + failed + " leave, current view: " + view
+					+ ", view seqno: " + viewSeqno.get());
+		}
+
+		deliveries.add(new Delivery(new Runnable() {
+
+			@Override
+			public void run() {
+				viewLeave(failed, view);
+			}
+
+		}));
+	}
+
+	/**
+	 * The receiver loop
+	 */
+	private void deliver() {
+
+		Delivery delivery = null;
+		Message message = null;
+		while (isRunning) {
+
+			try {
+				delivery = deliveries.take();
+			} catch (InterruptedException e) {
+				continue;
+			}
+
+			if (delivery.event != null) {
+				try {
+					delivery.event.run();
+				} catch (Throwable t) {
+					logger.error("Handle view change failed", t);
+				}
+				continue;
+			}
+
+			try {
+				message = new Message();
+				message.readFrom(delivery.frame.buffer);
+			} catch (Exception e) {
+				logger.error("Deserializing message from node " + delivery.src
+						+ " failed", e);
+				continue;
+			} finally {
+				delivery.frame.release();
+			}
+
+			try {
+				processPriorReceive(message, delivery.src);
+			} catch (Throwable t) {
+				logger.error("Handle receive message failed", t);
+			}
+		}
+	}
+
+	/**
+	 * Connect to the given peer and exchange HELLO/WELCOME in blocking mode
+	 *
+	 * @return the view seqno of the peer, null if it is not reachable
+	 */
+	private Long handshake(Peer peer) {
+
+		SocketChannel channel = null;
+		try {
+			channel = SocketChannel.open();
+			final Socket socket = channel.socket();
+			socket.setTcpNoDelay(true);
+			socket.connect(configuration.getAddress(peer.uuid), configuration
+					.getConnectTimeout());
+			socket.setSoTimeout(configuration.getConnectTimeout());
+
+			final ByteBuffer hello = createHello();
+			while (hello.hasRemaining())
+				channel.write(hello);
+
+			final DataInputStream in = new DataInputStream(socket
+					.getInputStream());
+			final int length = in.readInt();
+			if (in.readByte() != WELCOME || length != 1 + Long.SIZE / Byte.SIZE)
+				throw new IOException("Invalid welcome from node " + peer.uuid);
+			final long seqno = in.readLong();
+
+			socket.setSoTimeout(0);
+			channel.configureBlocking(false);
+			peer.channel = channel;
+			return seqno;
+		} catch (IOException e) {
+			if (logger.isDebugEnabled()) {
+				logger.debug("Node " + peer.uuid + " at "
+						+ configuration.getAddress(peer.uuid)
+						+ " is not reachable: " + e);
+			}
+			close(channel);
+			return null;
+		}
+	}
+
+	private ByteBuffer createHello() {
+		final ByteBuffer hello = ByteBuffer.allocate(FRAME_HEADER_SIZE
+				+ Integer.SIZE / Byte.SIZE);
+		hello.putInt(hello.capacity() - 4).put(HELLO).putInt(uuid);
+		hello.flip();
+		return hello;
+	}
+
+	private Frame encode(Message message) {
+
+		ByteBuffer buffer = null;
+		try {
+			// The frame header is filled afterwards
+			buffer = message.writeTo(pool, FRAME_HEADER_SIZE);
+		} catch (IOException e) {
+			throw new RuntimeException("Serializing message " + message
+					+ " failed", e);
+		}
+
+		buffer.putInt(0, buffer.limit() - 4).put(4, MESSAGE);
+		return new Frame(buffer, true);
+	}
+
+	private void close(Channel channel) {
+		if (channel == null)
+			return;
+		try {
+			channel.close();
+		} catch (IOException e) {
+		}
+	}
+
+	public int getUUID() {
+		return uuid;
+	}
+
+	/**
+	 * @return the pool of the buffers for sending and receiving, null before
+	 *         initialization
+	 */
+	public BufferPool getBufferPool() {
+		return pool;
+	}
+
+	/**
+	 * Outbound side of a member
+	 */
+	private class Peer {
+
+		private final int uuid;
+
+		private SocketChannel channel;
+
+		private SocketChannel inbound;
+
+		private final Queue<Frame> queue;
+
+		private final AtomicBoolean isScheduled = new AtomicBoolean(false);
+
+		// Only accessed by selector thread
+		private final LinkedList<Frame> writing = new LinkedList<Frame>();
+		// Reused by the gathering writes, only accessed by selector thread
+		private final ByteBuffer[] gathering = new ByteBuffer[configuration
+				.getMaxGatheringBuffers()];
+
+		private final ByteBuffer readBuffer = ByteBuffer.allocate(64);
+
+		@SuppressWarnings("unchecked")
+		public Peer(int uuid) {
+			this.uuid = uuid;
+			queue = CollectionFacade.getConcurrentQueue();
+		}
+
+		public void send(Frame frame) {
+			queue.add(frame);
+			if (isScheduled.compareAndSet(false, true)) {
+				pendingPeers.add(this);
+				selector.wakeup();
+			}
+		}
+
+		// The frames that would never be written, done by selector thread
+		public void releaseFrames() {
+			Frame frame = null;
+			while ((frame = writing.poll()) != null)
+				frame.release();
+			while ((frame = queue.poll()) != null)
+				frame.release();
+		}
+
+		public String toString() {
+			return "outbound of node " + uuid;
+		}
+	}
+
+	/**
+	 * Inbound side of a member
+	 */
+	private static class Inbound {
+
+		private final SocketChannel channel;
+
+		private ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+		// Known after HELLO
+		private Integer uuid;
+
+		// The WELCOME that has not been completely written
+		private Frame welcome;
+
+		public Inbound(SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		public String toString() {
+			return "inbound of node " + uuid;
+		}
+	}
+
+	/**
+	 * A holder of an encoded frame, each holder has its own position on the
+	 * buffer, and the pooled buffer is released once all of its holders have
+	 * released
+	 */
+	private class Frame {
+
+		private final ByteBuffer buffer;
+		// Null if the buffer is not pooled
+		private final ByteBuffer pooled;
+		// Number of holders of the pooled buffer
+		private final AtomicInteger references;
+
+		public Frame(ByteBuffer buffer, boolean isPooled) {
+			this.buffer = buffer;
+			this.pooled = isPooled ? buffer : null;
+			this.references = isPooled ? new AtomicInteger(1) : null;
+		}
+
+		private Frame(ByteBuffer buffer, ByteBuffer pooled,
+				AtomicInteger references) {
+			this.buffer = buffer;
+			this.pooled = pooled;
+			this.references = references;
+		}
+
+		/**
+		 * @return a new holder of the same buffer, which starts from the
+		 *         beginning of the frame
+		 */
+		public Frame retain() {
+			if (pooled == null)
+				return new Frame(buffer.duplicate(), false);
+
+			references.incrementAndGet();
+			return new Frame(pooled.duplicate(), pooled, references);
+		}
+
+		/**
+		 * Skip the frame header, for local delivery
+		 */
+		public Frame skipHeader() {
+			buffer.position(FRAME_HEADER_SIZE);
+			return this;
+		}
+
+		public void release() {
+			if (pooled != null && references.decrementAndGet() == 0)
+				pool.release(pooled);
+		}
+	}
+
+	private static class Delivery {
+
+		private final Integer src;
+		private final Frame frame;
+		// View change, if this is not a message
+		private final Runnable event;
+
+		public Delivery(Integer src, Frame frame) {
+			this.src = src;
+			this.frame = frame;
+			this.event = null;
+		}
+
+		public Delivery(Runnable event) {
+			this.src = null;
+			this.frame = null;
+			this.event = event;
+		}
+	}
+
+	/**
+	 * The address is the UUID itself
+	 */
+	private static class NioUtil extends Util {
+
+		@Override
+		public int getUUIDFromAddress(Object object) {
+			return (Integer) object;
+		}
+
+	}
+}
@@ -12,6 +12,7 @@ import org.ssor.RequirementsAwareAdaptor;
 import org.ssor.ServiceManager;
 import org.ssor.ServiceStackContext;
 import org.ssor.CompositeService;
+import org.ssor.exception.RequestFailedException;
 import org.ssor.protocol.Message;
 import org.ssor.protocol.replication.ReplicationManager;
 import org.ssor.protocol.replication.RequestHeader;
@@ -195,6 +196,12 @@ public abstract class GenericInvocation implements InvocationAdaptor {
 
 					while (!message.isExecutable()) {
 
+						// Never agreed within the timeout of sent messages
+						if (message.isExpired())
+							throw new RequestFailedException(message
+									.getReqId(),
+									"expired before it was sent to the sequencer");
+
 						try {
 
 							// This would be unblock after the order timestamp
@@ -59,6 +59,11 @@ public abstract class AbstractProtocol implements Protocol{
 		// TODO Auto-generated method stub
 
 	}
+
+	@Override
+	public void stop() {
+
+	}
 	
 	
 	protected void trace(Logger logger,String command, String message){	
@@ -93,11 +93,11 @@ public abstract class AbstractProtocolManager implements ProtocolManager{
 						.getTimestamp();
 				for (Sequence sequence : sequences) {
 					group.setState(header.getService(), header
-							.getSessionId(), sequence);
+							.getShardKey(), sequence);
 				}
 				
 			} else {
-				group.setState(header.getService(), header.getSessionId(),
+				group.setState(header.getService(), header.getShardKey(),
 						(Sequence) responseHeader.getTimestamp());
 			}
 		}
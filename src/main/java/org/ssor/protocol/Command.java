@@ -54,6 +54,16 @@ public class Command {
 	public static final short SUSPECT_NOTIFY = 24;
 	
 	public static final short FT_AFTER_ABCAST_AGREEMENT = 25;
+	
+	public static final short ABCAST_BATCH_COORDINATE = 26;
+	
+	public static final short ABCAST_BATCH_SECOND_UNICAST = 27;
+	
+	public static final short ABCAST_LEASE = 28;
+	
+	public static final short ABCAST_LEASE_GRANT = 29;
+	
+	public static final short ABCAST_LEASE_RECEIVE = 30;
 	/*
 	public static final short ENTER_SERVICE = 0;
 
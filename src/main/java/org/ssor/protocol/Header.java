@@ -6,6 +6,7 @@ import java.io.IOException;
 
 import org.ssor.conf.ClassConfigurator;
 import org.ssor.util.Streamable;
+import org.ssor.util.Util;
 
 public abstract class Header implements Streamable, Cloneable {
 
@@ -43,7 +44,7 @@ public abstract class Header implements Streamable, Cloneable {
 			IllegalAccessException, InstantiationException {
 
 		short magic;
-		if (EOH != (magic = in.readShort())) {
+		if (EOH != (magic = readMagicNumber(in))) {
 			outer = (Header) ClassConfigurator.get(magic).newInstance();
 			outer.readFrom(in);
 		}
@@ -63,13 +64,25 @@ public abstract class Header implements Streamable, Cloneable {
 	public static void externalWriteTo(DataOutputStream out, Header header) throws IOException {
 
 		if(header == null){
-			out.writeShort(EOH);
+			writeMagicNumber(out, EOH);
 			return;
 		}
-		out.writeShort(ClassConfigurator.getMagicNumber(header.getClass()));
+		writeMagicNumber(out, ClassConfigurator.getMagicNumber(header.getClass()));
 		header.writeTo(out);
 	}
 	
+	// The magic number is written as varint shifted by one, so that the end
+	// of header chain is 0 and each header costs a single byte
+	static void writeMagicNumber(DataOutputStream out, short magic)
+			throws IOException {
+		Util.writeVarInt(out, magic - EOH);
+	}
+
+	static short readMagicNumber(DataInputStream in)
+			throws IOException {
+		return (short) (Util.readVarInt(in) + EOH);
+	}
+	
 	
  
 	/**
@@ -86,7 +99,7 @@ public abstract class Header implements Streamable, Cloneable {
 		short magic;
 		Header h = null;
 
-		if (EOH != (magic = in.readShort())) {
+		if (EOH != (magic = readMagicNumber(in))) {
 			h = (Header) ClassConfigurator.get(magic).newInstance();
 			h.readFrom(in);
 		}
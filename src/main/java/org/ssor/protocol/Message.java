@@ -3,14 +3,22 @@ package org.ssor.protocol;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.UUID;
 
 import org.ssor.Sequence;
+import org.ssor.ServiceManager;
 import org.ssor.protocol.election.Decision;
 import org.ssor.protocol.election.DecisionHeader;
+import org.ssor.protocol.replication.RequestHeader;
 import org.ssor.protocol.replication.ResponseHeader;
 import org.ssor.protocol.replication.ResponsePacket;
 import org.ssor.protocol.replication.abcast.SequenceCollector;
+import org.ssor.util.BufferPool;
+import org.ssor.util.ByteBufferInputStream;
+import org.ssor.util.ByteBufferOutputStream;
+import org.ssor.util.Environment;
+import org.ssor.util.SignatureCodec;
 import org.ssor.util.Streamable;
 import org.ssor.util.Util;
 
@@ -19,6 +27,18 @@ public class Message implements Streamable, Comparable<Message>, Cloneable {
 	public static final short DELAY_PACKET = 0;
 	public static final short DECISION = 2;
 	public static final short OTHERS = 1;
+	// The arguments of request, written by the codec of service signature
+	public static final short SIGNATURE = 3;
+
+	// Version of the wire format, which is written in the high 4 bits of the
+	// first byte, the low 4 bits are the presence of the optional fields
+	public static final int WIRE_VERSION = 1;
+	private static final int HAS_BODY = 1;
+	private static final int HAS_REQ_ID = 2;
+	// The request ID is a UUID in hex, which is written as 16 bytes
+	private static final int HEX_REQ_ID = 4;
+	private static final int HAS_VIEW_SEQNO = 8;
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
 
 	private Header header;
 	private Object body;
@@ -37,6 +57,9 @@ public class Message implements Streamable, Comparable<Message>, Cloneable {
 	
 	
 	private transient Boolean isExecuteInAdvance = false;
+	// Identify if the message has been expired before its agreement, the
+	// requester's thread would fail then, guarded by the message
+	private transient boolean isExpired = false;
 	
 	private transient Object src;
 	
@@ -45,6 +68,14 @@ public class Message implements Streamable, Comparable<Message>, Cloneable {
 	// Cache and wait until all sequences of nested service is received
 	private transient SequenceCollector order;
 
+	// The streams are reused by each thread that encodes or decodes messages
+	// on buffers, thus steady state does not allocate them
+	private static final ThreadLocal<BufferStreams> bufferStreams = new ThreadLocal<BufferStreams>() {
+		protected BufferStreams initialValue() {
+			return new BufferStreams();
+		}
+	};
+
 	public Message() {
 	}
 
@@ -133,7 +164,15 @@ public class Message implements Streamable, Comparable<Message>, Cloneable {
 	public void readFrom(DataInputStream in) throws IOException,
 			IllegalAccessException, InstantiationException {
 		
-		short type = in.readShort();
+		final int first = in.readUnsignedByte();
+		if ((first >>> 4) != WIRE_VERSION)
+			throw new IOException("Wire format version " + (first >>> 4)
+					+ " is not supported, expected " + WIRE_VERSION);
+
+		body = null;
+		reqId = null;
+		viewSeqno = null;
+		short type = (first & HAS_BODY) == 0 ? -1 : in.readByte();
 		switch (type) {
 		case DELAY_PACKET: {
 		
@@ -145,7 +184,7 @@ public class Message implements Streamable, Comparable<Message>, Cloneable {
 
 		} case DECISION: {
 
-			int length = in.readInt();
+			int length = Util.readVarInt(in);
 			Decision[] decisions = new Decision[length];
 
 			for (int i = 0; i < length; i++) {
@@ -157,6 +196,22 @@ public class Message implements Streamable, Comparable<Message>, Cloneable {
 
 			break;
 
+		} case SIGNATURE: {
+			final int number = Util.readVarInt(in);
+			final SignatureCodec codec = ServiceManager.getCodec(number);
+			if (codec == null)
+				throw new IOException("Codec of service " + number
+						+ " cannot be found.");
+			try {
+				body = codec.readFrom(in);
+			} catch (IOException e) {
+				throw e;
+			} catch (Exception e) {
+				throw new IOException(e);
+			}
+
+			break;
+
 		} case OTHERS: {
 			try {
 				body = Util.readArbitraryObject(in);
@@ -168,30 +223,52 @@ public class Message implements Streamable, Comparable<Message>, Cloneable {
 		}
 		}
 
-		reqId = Util.readString(in);
-		long id = 0;
-		if((id = in.readLong()) != -1)
-		  viewSeqno = id;
+		if ((first & HEX_REQ_ID) != 0)
+			reqId = readHexId(in);
+		else if ((first & HAS_REQ_ID) != 0)
+			reqId = in.readUTF();
+		if ((first & HAS_VIEW_SEQNO) != 0)
+			viewSeqno = Util.readVarLong(in);
 		header = Header.externalReadFrom(in);
 	}
 
 	@Override
 	public void writeTo(DataOutputStream out) throws IOException {
 
-		if (body instanceof ResponsePacket) {
-			out.writeShort(DELAY_PACKET);
+		SignatureCodec codec = null;
+		final boolean isHexId = reqId != null && isHexId(reqId);
+		out.writeByte(WIRE_VERSION << 4 | (body == null ? 0 : HAS_BODY)
+				| (reqId == null ? 0 : isHexId ? HEX_REQ_ID : HAS_REQ_ID)
+				| (viewSeqno == null || viewSeqno == -1 ? 0 : HAS_VIEW_SEQNO));
+
+		if (body == null) {
+			// Nothing but the flag
+		} else if (body instanceof ResponsePacket) {
+			out.writeByte(DELAY_PACKET);
 			((ResponsePacket) body).writeTo(out);
 		} else if (body instanceof Decision[]) {
-			out.writeShort(DECISION);
+			out.writeByte(DECISION);
 			Decision[] decisions = (Decision[]) body;
 			int length = decisions.length;
-			out.writeInt(length);
+			Util.writeVarInt(out, length);
 
 			for (int i = 0; i < length; i++)
 				decisions[i].writeTo(out);
 
+		} else if (body instanceof Object[]
+				&& (codec = getCodec((Object[]) body)) != null) {
+			out.writeByte(SIGNATURE);
+			Util.writeVarInt(out, ServiceManager
+					.getMagicNumber(((RequestHeader) header).getService()));
+			try {
+				codec.writeTo(out, (Object[]) body);
+			} catch (IOException e) {
+				throw e;
+			} catch (Exception e) {
+				throw new IOException(e);
+			}
 		} else {
-			out.writeShort(OTHERS);
+			out.writeByte(OTHERS);
 			try {
 				Util.writeArbitraryObject(out, body);
 			} catch (Exception e) {
@@ -200,16 +277,115 @@ public class Message implements Streamable, Comparable<Message>, Cloneable {
 		}
 
 		// Write request ID
-		Util.writeString(reqId, out);
-		if(viewSeqno != null)
-           out.writeLong(viewSeqno);
-		else
-		   out.writeLong(-1);
+		if (isHexId)
+			writeHexId(reqId, out);
+		else if (reqId != null)
+			out.writeUTF(reqId);
+		if (viewSeqno != null && viewSeqno != -1)
+			Util.writeVarLong(out, viewSeqno);
 		// Write headers
 		Header.externalWriteTo(out, header);
 	
 	}
 
+	private static boolean isHexId(String id) {
+		if (id.length() != 32)
+			return false;
+
+		char c = 0;
+		for (int i = 0; i < 32; i++) {
+			c = id.charAt(i);
+			if ((c < '0' || c > '9') && (c < 'a' || c > 'f'))
+				return false;
+		}
+
+		return true;
+	}
+
+	private static void writeHexId(String id, DataOutputStream out)
+			throws IOException {
+		for (int i = 0; i < 32; i += 2)
+			out.write(Character.digit(id.charAt(i), 16) << 4
+					| Character.digit(id.charAt(i + 1), 16));
+	}
+
+	private static String readHexId(DataInputStream in) throws IOException {
+		final char[] id = new char[32];
+		int b = 0;
+		for (int i = 0; i < 32; i += 2) {
+			b = in.readUnsignedByte();
+			id[i] = HEX_DIGITS[b >>> 4];
+			id[i + 1] = HEX_DIGITS[b & 0xF];
+		}
+
+		return new String(id);
+	}
+
+	// The codec of the arguments if this is a request whose arguments can be
+	// written by the signature of service
+	private SignatureCodec getCodec(Object[] arguments) {
+		if (!Environment.ENABLE_SIGNATURE_CODEC
+				|| !(header instanceof RequestHeader)
+				|| ((RequestHeader) header).getService() == null)
+			return null;
+
+		final SignatureCodec codec = ServiceManager
+				.getCodec(((RequestHeader) header).getService());
+		return codec != null && codec.accept(arguments) ? codec : null;
+	}
+
+	/**
+	 * Encode the message into a buffer acquired from the given pool, the
+	 * buffer should be released to the pool by the caller once it has been
+	 * flushed.
+	 * 
+	 * @param pool
+	 *            the pool
+	 * @param reserved
+	 *            number of bytes that are left before the message, e.g. for
+	 *            the frame header of transport
+	 * @return the flipped buffer, which starts with the reserved bytes
+	 * @throws IOException
+	 */
+	public ByteBuffer writeTo(BufferPool pool, int reserved) throws IOException {
+
+		final BufferStreams streams = bufferStreams.get();
+		streams.output.reset(pool, reserved + 256);
+		try {
+			for (int i = 0; i < reserved; i++)
+				streams.output.write(0);
+			writeTo(streams.dataOutput);
+			streams.dataOutput.flush();
+		} catch (IOException e) {
+			pool.release(streams.output.detach());
+			throw e;
+		}
+
+		return streams.output.detach();
+	}
+
+	/**
+	 * Decode the message from the remaining bytes of the given buffer in
+	 * place, the buffer can be released once this returns.
+	 * 
+	 * @param buffer
+	 *            the buffer
+	 * @throws IOException
+	 * @throws IllegalAccessException
+	 * @throws InstantiationException
+	 */
+	public void readFrom(ByteBuffer buffer) throws IOException,
+			IllegalAccessException, InstantiationException {
+
+		final BufferStreams streams = bufferStreams.get();
+		streams.input.setBuffer(buffer);
+		try {
+			readFrom(streams.dataInput);
+		} finally {
+			streams.input.setBuffer(null);
+		}
+	}
+
 	public Boolean isNeedRetransmited() {
 		return isNeedRetransmited;
 	}
@@ -235,6 +411,14 @@ public class Message implements Streamable, Comparable<Message>, Cloneable {
 		this.isExecuteInAdvance = passOrderingLayer;
 	}
 
+	public boolean isExpired() {
+		return isExpired;
+	}
+
+	public void setExpired(boolean isExpired) {
+		this.isExpired = isExpired;
+	}
+
 	public Object getSrc() {
 		return src;
 	}
@@ -259,4 +443,12 @@ public class Message implements Streamable, Comparable<Message>, Cloneable {
 		return "(ID: " + reqId + ", first header: " + header.getClass().getName() + "}";
 	}
 
+	private static class BufferStreams {
+
+		private final ByteBufferOutputStream output = new ByteBufferOutputStream();
+		private final DataOutputStream dataOutput = new DataOutputStream(output);
+		private final ByteBufferInputStream input = new ByteBufferInputStream();
+		private final DataInputStream dataInput = new DataInputStream(input);
+	}
+
 }
@@ -29,4 +29,9 @@ public interface Protocol {
 	
 	public void init();
 
+	/**
+	 * Release the resources of the protocol, once the group stops
+	 */
+	public void stop();
+
 }
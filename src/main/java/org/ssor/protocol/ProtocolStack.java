@@ -110,6 +110,15 @@ public class ProtocolStack {
 		}
 	}
 	
+	/**
+	 * Stop all the protocols, when the group stops
+	 */
+	public void stop() {
+		for (Protocol protocol : protocols){
+			protocol.stop();
+		}
+	}
+	
 	public void finishConsensus() {
 		for (Protocol protocol : protocols){
 			protocol.finishConsensus();
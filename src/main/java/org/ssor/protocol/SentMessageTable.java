@@ -0,0 +1,365 @@
+package org.ssor.protocol;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.ssor.Region;
+import org.ssor.exception.RequestFailedException;
+import org.ssor.util.Environment;
+import org.ssor.util.TimingWheel;
+
+/**
+ * The outstanding requests sent by this node, shared by the protocols. The
+ * requests are indexed by the regions (or the shards of region) that sequence
+ * them as well, so that on crash of a sequencer only the requests of its
+ * regions are visited for retransmission.
+ *
+ * The table is bounded by the estimated bytes of the cached requests, and a
+ * request expires if it is not sent to a sequencer in time, in which case the
+ * requester's thread fails rather than waits forever. Once sent, a request
+ * never expires, since the sequence assigned to it must be delivered by all
+ * the nodes, and the sequencer (or its successor) answers anyway. The
+ * counters are exposed to monitor the leaks under partial failures.
+ *
+ * @author Tao Chen
+ *
+ */
+public class SentMessageTable {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(SentMessageTable.class);
+
+	// Shared by all the tables, null if the requests do not expire
+	private static TimingWheel expiryWheel;
+
+	// The estimated bytes of a message without body
+	private static final int MESSAGE_OVERHEAD = 128;
+
+	// key = reqId
+	private final ConcurrentMap<String, Entry> messages = new ConcurrentHashMap<String, Entry>();
+	// The reqIds of outstanding requests, key = region number
+	private final ConcurrentMap<Integer, Set<String>> regionIndex = new ConcurrentHashMap<Integer, Set<String>>();
+
+	private final TimingWheel wheel;
+	private final long capacity;
+
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong peakBytes = new AtomicLong();
+	private final AtomicLong expired = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+
+	public SentMessageTable() {
+		this(Environment.SENT_MESSAGE_CAPACITY);
+	}
+
+	/**
+	 * @param capacity
+	 *            the estimated bytes of requests that can be held, 0 means
+	 *            unbounded
+	 */
+	public SentMessageTable(long capacity) {
+		this.capacity = capacity;
+		wheel = getExpiryWheel();
+	}
+
+	private static synchronized TimingWheel getExpiryWheel() {
+		if (expiryWheel == null && Environment.SENT_MESSAGE_TIMEOUT > 0)
+			expiryWheel = new TimingWheel("Sent-message-expiry",
+					Environment.SENT_MESSAGE_EXPIRY_TICK, 512);
+
+		return expiryWheel;
+	}
+
+	/**
+	 * @param message
+	 *            the request
+	 * @param region
+	 *            the region that sequences the request, null if none
+	 * @throws RequestFailedException
+	 *             if the table is full
+	 */
+	public void put(Message message, Region region) {
+		put(message, region == null ? new int[0] : new int[] { region
+				.getRegion() });
+	}
+
+	/**
+	 * @param message
+	 *            the request, which is normally of composite service
+	 * @param regions
+	 *            the regions that sequence the request
+	 * @throws RequestFailedException
+	 *             if the table is full
+	 */
+	public void put(Message message, Collection<Region> regions) {
+		final int[] numbers = new int[regions.size()];
+		int i = 0;
+		for (Region region : regions)
+			numbers[i++] = region.getRegion();
+		put(message, numbers);
+	}
+
+	private void put(Message message, int[] regions) {
+		final Entry entry = new Entry(message, regions, MESSAGE_OVERHEAD
+				+ estimateSize(message.getBody()));
+		if (capacity > 0 && bytes.get() + entry.bytes > capacity) {
+			rejected.incrementAndGet();
+			if (logger.isWarnEnabled())
+				logger.warn("Reject request " + message.getReqId()
+						+ ", the sent messages are full: " + this);
+			throw new RequestFailedException(message.getReqId(),
+					"too many outstanding requests");
+		}
+
+		account(entry.bytes);
+		// Indexed before it is visible, otherwise a concurrent removal could
+		// leave the reqId in the index forever
+		for (int region : regions)
+			getReqIds(region).add(message.getReqId());
+
+		final Entry previous = messages.put(message.getReqId(), entry);
+		if (previous != null)
+			release(previous, entry);
+
+		if (wheel != null)
+			wheel.schedule(entry, wheel.now()
+					+ wheel.toTicks(Environment.SENT_MESSAGE_TIMEOUT));
+	}
+
+	public Message get(String reqId) {
+		final Entry entry = messages.get(reqId);
+		return entry == null ? null : entry.message;
+	}
+
+	/**
+	 * Obtain the request before it is sent to the sequencer, from then on it
+	 * does not expire, since a sequence may be assigned to it and the region
+	 * can not advance until the request is delivered.
+	 * 
+	 * @param reqId
+	 *            the reqId
+	 * @return the request, null if it has expired or been removed
+	 */
+	public Message pin(String reqId) {
+		final Entry entry = messages.get(reqId);
+		if (entry == null)
+			return null;
+
+		synchronized (entry) {
+			if (entry.isExpired)
+				return null;
+			entry.isPinned = true;
+		}
+		return entry.message;
+	}
+
+	public Message remove(String reqId) {
+		final Entry entry = messages.remove(reqId);
+		if (entry == null)
+			return null;
+
+		release(entry, null);
+		return entry.message;
+	}
+
+	/**
+	 * @param regions
+	 *            the given regions
+	 * @return the outstanding requests that are sequenced by any of the given
+	 *         regions, each request is included once
+	 */
+	public Collection<Message> getByRegions(Collection<Region> regions) {
+		final Set<String> reqIds = new HashSet<String>();
+		final List<Message> list = new ArrayList<Message>();
+		Set<String> set = null;
+		Entry entry = null;
+		for (Region region : regions) {
+			if ((set = regionIndex.get(region.getRegion())) == null)
+				continue;
+
+			for (String reqId : set) {
+				if (reqIds.add(reqId) && (entry = messages.get(reqId)) != null)
+					list.add(entry.message);
+			}
+		}
+
+		return list;
+	}
+
+	/**
+	 * @param region
+	 *            the given region
+	 * @return the outstanding requests that are sequenced by the given region
+	 */
+	public Collection<Message> getByRegion(Region region) {
+		return getByRegions(Collections.singleton(region));
+	}
+
+	public int size() {
+		return messages.size();
+	}
+
+	/**
+	 * @return the estimated bytes of the outstanding requests
+	 */
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	public long getPeakBytes() {
+		return peakBytes.get();
+	}
+
+	/**
+	 * @return number of requests that have expired before their agreement
+	 */
+	public long getExpiredCount() {
+		return expired.get();
+	}
+
+	/**
+	 * @return number of requests that have been rejected as the table is full
+	 */
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+
+	public String toString() {
+		return "(outstanding: " + size() + ", bytes: " + getBytes()
+				+ ", peak bytes: " + getPeakBytes() + ", expired: "
+				+ getExpiredCount() + ", rejected: " + getRejectedCount() + ")";
+	}
+
+	private void account(long delta) {
+		final long current = bytes.addAndGet(delta);
+		long peak = 0;
+		while (current > (peak = peakBytes.get())
+				&& !peakBytes.compareAndSet(peak, current))
+			;
+	}
+
+	/**
+	 * @param entry
+	 *            the entry that is no longer in the table
+	 * @param replacement
+	 *            the entry of the same reqId that replaces it, whose regions
+	 *            remain indexed, null if none
+	 */
+	private void release(Entry entry, Entry replacement) {
+		account(-entry.bytes);
+		Set<String> set = null;
+		for (int region : entry.regions) {
+			if ((replacement == null || !replacement.isIndexedBy(region))
+					&& (set = regionIndex.get(region)) != null)
+				set.remove(entry.message.getReqId());
+		}
+	}
+
+	private Set<String> getReqIds(int region) {
+		Set<String> set = regionIndex.get(region);
+		if (set == null) {
+			final Set<String> existing = regionIndex.putIfAbsent(region,
+					set = Collections
+							.newSetFromMap(new ConcurrentHashMap<String, Boolean>()));
+			if (existing != null)
+				set = existing;
+		}
+
+		return set;
+	}
+
+	/**
+	 * A rough estimation of the retained size of the arguments, which is
+	 * cheap enough to be done per request.
+	 */
+	private static long estimateSize(Object object) {
+		if (object == null)
+			return 0;
+		if (object instanceof String)
+			return 40 + 2L * ((String) object).length();
+		if (object instanceof byte[])
+			return 16 + ((byte[]) object).length;
+		if (object instanceof Object[]) {
+			final Object[] array = (Object[]) object;
+			long size = 16 + 4L * array.length;
+			for (Object element : array)
+				size += estimateSize(element);
+			return size;
+		}
+		if (object.getClass().isArray())
+			return 16 + 8L * Array.getLength(object);
+		if (object instanceof Collection<?>) {
+			long size = 48;
+			for (Object element : (Collection<?>) object)
+				size += 32 + estimateSize(element);
+			return size;
+		}
+
+		return 24;
+	}
+
+	private class Entry implements TimingWheel.Timeout {
+
+		private final Message message;
+		// The numbers of regions that index the message
+		private final int[] regions;
+		private final long bytes;
+		// Guarded by this
+		private boolean isPinned = false;
+		private boolean isExpired = false;
+
+		public Entry(Message message, int[] regions, long bytes) {
+			this.message = message;
+			this.regions = regions;
+			this.bytes = bytes;
+		}
+
+		private boolean isIndexedBy(int region) {
+			for (int number : regions) {
+				if (number == region)
+					return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Fail the requester if it is still outstanding and has not been sent
+		 * to the sequencer
+		 */
+		@Override
+		public long expire(long now) {
+			synchronized (this) {
+				// Kept until the agreement arrives, see pin()
+				if (isPinned)
+					return -1;
+				isExpired = true;
+			}
+
+			if (!messages.remove(message.getReqId(), this))
+				return -1;
+
+			release(this, null);
+			expired.incrementAndGet();
+			if (logger.isWarnEnabled())
+				logger.warn("Request " + message.getReqId()
+						+ " expired before it was sent to the sequencer: "
+						+ SentMessageTable.this);
+
+			synchronized (message) {
+				message.setExpired(true);
+				message.notifyAll();
+			}
+			return -1;
+		}
+	}
+}
@@ -29,6 +29,10 @@ public class Token implements Cloneable{
 	public static final int REPLICATION_ACQUIRE_BORADCAST = 7;
 	
 	public static final int REPLICATION_ACQUIRE_LAZY_BORADCAST = 8;
+	
+	public static final int REPLICATION_REQUEST_LOCAL_SEQUENCER = 9;
+	
+	public static final int REPLICATION_REQUEST_LEASED = 10;
 		
 	public static final int ELECTION_JOIN_DISCARD = 11;
 	
@@ -43,6 +47,10 @@ public class Token implements Cloneable{
 	public static final int ELECTION_AGREEMENT_NO_NEW_REGION= 16;
 	
 	public static final int FT_AGREEMENT_RETRANSMISSION= 17;
+	
+	public static final int ABCAST_BROADCAST_BUFFERED= 18;
+	
+	public static final int REPLICATION_LEASE_NOT_GRANTED= 19;
 	// This normally represent a decision from the previous protocol
 	private int nextAction = NO_CHANGE;
     // This is intended to be used across the all protocol stack
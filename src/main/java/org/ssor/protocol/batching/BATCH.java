@@ -0,0 +1,178 @@
+package org.ssor.protocol.batching;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.ssor.gcm.CommunicationAdaptor;
+import org.ssor.listener.CommunicationListener;
+import org.ssor.protocol.AbstractProtocol;
+import org.ssor.protocol.Command;
+import org.ssor.protocol.Message;
+import org.ssor.protocol.Token;
+
+/**
+ * Optional protocol that sits below MSP, it coalesces the final broadcasts
+ * issued within a time/size window into one multicast frame, thus the number
+ * of messages that go through the GCM is reduced under high load.
+ * 
+ * The messages are sent in the order that they were given, the receiver
+ * unpacks the frame (see {@link BatchFrameHeader}) and processes the messages
+ * in the same order. A window with single message is sent as it is.
+ * 
+ * Enable it by adding it after MSP in ssor-protocols.xml.
+ * 
+ * @author Tao Chen
+ * 
+ */
+public class BATCH extends AbstractProtocol implements CommunicationListener {
+
+	private static final Logger logger = LoggerFactory.getLogger(BATCH.class);
+
+	// Maximum time that a message may be held, in milliseconds
+	public static long WINDOW = 2;
+	// Maximum number of messages in a frame
+	public static int MAX_MESSAGES = 32;
+
+	private CommunicationAdaptor adaptor;
+
+	private ScheduledExecutorService timer;
+
+	// Guarded by 'this'
+	private List<Message> buffer = new LinkedList<Message>();
+
+	// Ensure the frames are multicast in the order of taking
+	private final Object flushLock = new Object();
+
+	private final Runnable flushTask = new Runnable() {
+
+		@Override
+		public void run() {
+			try {
+				flush();
+			} catch (Throwable t) {
+				logger.error("Multicast batched messages failed", t);
+			}
+		}
+
+	};
+
+	@Override
+	public void init() {
+		// Daemon thread, thus the JVM is not kept alive by the timer
+		timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				final Thread thread = new Thread(runnable, "BATCH-flush");
+				thread.setDaemon(true);
+				return thread;
+			}
+
+		});
+	}
+
+	/**
+	 * The buffered messages are discarded, as the group is no longer a member
+	 */
+	@Override
+	public void stop() {
+		// Under the lock of buffering, thus nothing is scheduled afterwards
+		synchronized (this) {
+			if (timer != null)
+				timer.shutdownNow();
+			buffer.clear();
+		}
+	}
+
+	@Override
+	public Token down(short command, Token value) {
+		switch (command) {
+
+		case Command.ABCAST_FINAL_BROADCAST:
+		case Command.ABCAST_DELAY_FINAL_BROADCAST: {
+
+			if (value == null)
+				return doDown(command, value);
+
+			final Message message = (Message) value.getDataForNextProtocol();
+			boolean isStopped = false;
+			boolean isFull = false;
+			synchronized (this) {
+				// Not buffered once stopped
+				if (!(isStopped = timer.isShutdown())) {
+					buffer.add(message);
+					if (buffer.size() == 1)
+						timer.schedule(flushTask, WINDOW,
+								TimeUnit.MILLISECONDS);
+					isFull = buffer.size() >= MAX_MESSAGES;
+				}
+			}
+
+			if (isStopped)
+				return doDown(command, value);
+
+			if (logger.isTraceEnabled()) {
+				trace(logger, command == Command.ABCAST_FINAL_BROADCAST ? "ABCAST_FINAL_BROADCAST"
+						: "ABCAST_DELAY_FINAL_BROADCAST", "ReqId: "
+						+ message.getReqId() + " is buffered");
+			}
+
+			if (isFull)
+				flush();
+
+			// Upper layer should not send it again
+			value.setNextAction(Token.ABCAST_BROADCAST_BUFFERED);
+			return doDown(command, value);
+		}
+
+		}
+		return doDown(command, value);
+	}
+
+	@Override
+	public Token up(short command, Token value) {
+		return doUp(command, value);
+	}
+
+	/**
+	 * Multicast all the buffered messages
+	 */
+	public void flush() {
+
+		synchronized (flushLock) {
+			List<Message> messages = null;
+			synchronized (this) {
+				// This may have been flushed as the window is full
+				if (buffer.isEmpty())
+					return;
+				messages = buffer;
+				buffer = new LinkedList<Message>();
+			}
+
+			if (messages.size() == 1) {
+				adaptor.multicast(messages.get(0));
+				return;
+			}
+
+			if (logger.isTraceEnabled()) {
+				logger.trace("Multicast frame of " + messages.size()
+						+ " messages");
+			}
+
+			adaptor.multicast(new Message(new BatchFrameHeader(messages
+					.toArray(new Message[messages.size()])), null, false));
+		}
+	}
+
+	@Override
+	public void setCommunicationAdaptor(CommunicationAdaptor adaptor) {
+		this.adaptor = adaptor;
+	}
+
+}
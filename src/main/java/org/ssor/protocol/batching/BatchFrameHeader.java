@@ -0,0 +1,60 @@
+package org.ssor.protocol.batching;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.ssor.protocol.Header;
+import org.ssor.protocol.Message;
+
+/**
+ * The header of a frame that carries a number of messages, the frame is
+ * unpacked by the GCM adaptor and the messages are processed in the order of
+ * sending, as if they were received one by one.
+ * 
+ * @author Tao Chen
+ * 
+ */
+public class BatchFrameHeader extends Header {
+
+	private Message[] messages;
+
+	public BatchFrameHeader() {
+		super();
+	}
+
+	public BatchFrameHeader(Message[] messages) {
+		super();
+		this.messages = messages;
+	}
+
+	public Message[] getMessages() {
+		return messages;
+	}
+
+	@Override
+	public void readFrom(DataInputStream in) throws IOException,
+			IllegalAccessException, InstantiationException {
+
+		int length = in.readInt();
+		messages = new Message[length];
+		for (int i = 0; i < length; i++) {
+			messages[i] = new Message();
+			messages[i].readFrom(in);
+		}
+
+		readOuter(in);
+	}
+
+	@Override
+	public void writeTo(DataOutputStream out) throws IOException {
+
+		int length = messages.length;
+		out.writeInt(length);
+		for (int i = 0; i < length; i++)
+			messages[i].writeTo(out);
+
+		writeOuter(out);
+	}
+
+}
@@ -12,7 +12,8 @@ import org.ssor.util.Environment;
 import org.ssor.util.Tuple;
 
 @ProtocolBinder(managerClass=org.ssor.protocol.replication.ReplicationManager.class, 
-		headers = {org.ssor.protocol.replication.RequestHeader.class, org.ssor.protocol.replication.ResponseHeader.class})
+		headers = {org.ssor.protocol.replication.RequestHeader.class, org.ssor.protocol.replication.ResponseHeader.class, 
+		org.ssor.protocol.replication.LeaseHeader.class})
 public class AR extends Replication {
 
 	@Override
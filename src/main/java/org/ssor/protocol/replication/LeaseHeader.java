@@ -0,0 +1,82 @@
+package org.ssor.protocol.replication;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.ssor.Sequence;
+import org.ssor.protocol.Header;
+import org.ssor.util.Util;
+
+/**
+ * The header used for sequence leasing, either unicast by sequencer to grant a
+ * block of sequences of a region to a requester, or broadcast by the requester
+ * to release the unused sequences so that they are skipped by all nodes.
+ * 
+ * @author Tao Chen
+ * 
+ */
+public class LeaseHeader extends Header {
+
+	private int region;
+
+	private Sequence[] sequences;
+
+	private boolean isRelease;
+
+	public LeaseHeader() {
+		super();
+	}
+
+	public LeaseHeader(int region, Sequence[] sequences, boolean isRelease) {
+		super();
+		this.region = region;
+		this.sequences = sequences;
+		this.isRelease = isRelease;
+	}
+
+	public int getRegion() {
+		return region;
+	}
+
+	public Sequence[] getSequences() {
+		return sequences;
+	}
+
+	public boolean isRelease() {
+		return isRelease;
+	}
+
+	@Override
+	public void readFrom(DataInputStream in) throws IOException,
+			IllegalAccessException, InstantiationException {
+
+		region = in.readInt();
+		isRelease = in.readBoolean();
+		int length = Util.readVarInt(in);
+		sequences = new Sequence[length];
+		for (int i = 0; i < length; i++) {
+			sequences[i] = new Sequence();
+			// The sequences of a lease are mostly consecutive
+			sequences[i].readFrom(in, i == 0 ? null : sequences[i - 1]);
+			// Region number is not transmitted with sequence
+			sequences[i].setRegionNumber(region);
+		}
+
+		readOuter(in);
+	}
+
+	@Override
+	public void writeTo(DataOutputStream out) throws IOException {
+
+		out.writeInt(region);
+		out.writeBoolean(isRelease);
+		int length = sequences.length;
+		Util.writeVarInt(out, length);
+		for (int i = 0; i < length; i++)
+			sequences[i].writeTo(out, i == 0 ? null : sequences[i - 1]);
+
+		writeOuter(out);
+	}
+
+}
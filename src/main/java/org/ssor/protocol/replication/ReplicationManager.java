@@ -1,8 +1,22 @@
 package org.ssor.protocol.replication;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.ssor.AtomicService;
+import org.ssor.CollectionFacade;
+import org.ssor.CompositeService;
+import org.ssor.RedundantService;
+import org.ssor.Sequence;
 import org.ssor.ServiceStackContext;
 import org.ssor.invocation.InvocationUnit;
 import org.ssor.protocol.AbstractProtocolManager;
@@ -12,12 +26,20 @@ import org.ssor.protocol.Message;
 import org.ssor.protocol.Token;
 import org.ssor.protocol.replication.abcast.DeliveryPacket;
 import org.ssor.util.Callback;
+import org.ssor.util.Environment;
+import org.ssor.util.Triple;
+import org.ssor.util.Tuple;
 
 public class ReplicationManager extends AbstractProtocolManager {
 
 	private static final Logger logger = LoggerFactory
 	.getLogger(ReplicationManager.class);
 	
+	// Pending requests for coordination in batch, key = region number
+	private final ConcurrentMap<Integer, Queue<Tuple<Message, Object>>> pendingCoordinations = new ConcurrentHashMap<Integer, Queue<Tuple<Message, Object>>>();
+	// If a thread has been scheduled for coordinating the region
+	private final ConcurrentMap<Integer, AtomicBoolean> scheduledCoordinations = new ConcurrentHashMap<Integer, AtomicBoolean>();
+	
 	public boolean handleReceive(Message message, Object address, int addressUUID){
 		
 		Header header = message.getHeader();
@@ -47,6 +69,10 @@ public class ReplicationManager extends AbstractProtocolManager {
 			acquireSequence(message);
 			//System.out.print("AS final finish ****************\n");
 			return true;
+		} else if (header instanceof LeaseHeader) {
+			
+			receiveLease(message);
+			return true;
 		}
 		
 		return false;
@@ -57,12 +83,134 @@ public class ReplicationManager extends AbstractProtocolManager {
 	 * @param unit
 	 * @return
 	 */
+	@SuppressWarnings("unchecked")
 	public Object request(InvocationUnit unit){			
-		return protocolStack.down(Command.ABCAST_FIRST_UNICAST, new Token(unit)).getDataForNextProtocol();				
+		final Token token = protocolStack.down(Command.ABCAST_FIRST_UNICAST, new Token(unit));
+		if (Token.REPLICATION_REQUEST_LOCAL_SEQUENCER == token.getNextAction()) {
+			final Message cached = (Message) token.getDataForNextProtocol();
+			// It has been counted by the ordering layer, as a received message
+			try {
+				coordinateLocally(cached);
+			} finally {
+				group.getRegionDistributionSynchronyManager().releaseMsgOnView(cached);
+			}
+		}
+		else if (Token.REPLICATION_REQUEST_LEASED == token.getNextAction()) {
+			
+			// Triple<cached message, leased sequence, sequencer>
+			final Triple<Message, Sequence, Integer> triple = (Triple<Message, Sequence, Integer>) token.getDataForNextProtocol();
+			
+			if(logger.isTraceEnabled()){
+				logger.trace("Message stamped with leased sequence " + triple.getVal2() + ", ReqId: "  + triple.getVal1().getReqId());
+			}
+			
+			token.setDataForNextProtocol(triple.getVal1());
+			acquireSequence(triple.getVal1().getReqId(), triple.getVal2(), triple.getVal3());
+		}
+		
+		return token.getDataForNextProtocol();				
+	}
+	
+	/**
+	 * Used when this node is the sequencer of the requested service, the sequence is
+	 * acquired in-process and it goes directly to the final broadcast, thus the first 
+	 * and second unicast are skipped. This is only taken when no view change is in
+	 * progress, and a view change waits for it as for a received message.
+	 * @param cached the cached message of requester
+	 */
+	private void coordinateLocally(Message cached){
+		
+		// The one that would be received by sequencer
+		final Message message = new Message(cached.getHeader(), null, false);
+		message.setReqId(cached.getReqId());
+		
+		final Token token = protocolStack.up(Command.ABCAST_COORDINATE, new Token(message));
+		// The sequencer has been changed, this is the same as the request was
+		// discarded by sequencer, thus it would be retransmitted by fault tolerance
+		if(Token.REPLICATION_COORDINATE_NOT_SEQUENCER == token.getNextAction()){
+			
+			if(logger.isTraceEnabled()){
+				logger.trace("Message coordinated locally but the current node is no longer the sequencer, ReqId: "  + message.getReqId());
+			}
+			
+			return;
+		}
+		
+		if(logger.isTraceEnabled()){
+			logger.trace("Message coordinated locally, ReqId: "  + message.getReqId());
+		}
+		
+		token.reset();
+		acquireSequence(cached.getReqId(), (Sequence) token.getDataForNextProtocol(), group.getUUID_ADDR());
+	}
+	
+	/**
+	 * Acquire the sequence that is not received from sequencer
+	 * @param reqId
+	 * @param sequence
+	 * @param sequencer the UUID of sequencer
+	 * @return
+	 */
+	private Object acquireSequence(String reqId, Sequence sequence, int sequencer){
+		
+		// The one that would be received by requester, the sequence is copied as the
+		// cached one on sequencer should not be shared
+		final ResponseHeader header = new ResponseHeader(new Sequence(sequence
+				.getValue()));
+		header.setSequencer(sequencer);
+		final Message response = new Message(header, null, false);
+		response.setReqId(reqId);
+		response.setSrc(group.getRegionDistributionManager().getAddress(sequencer));
+		
+		return acquireSequence(response);
+	}
+	
+	/**
+	 * Grant a lease to the requester if it dominates the region, this is done by sequencer
+	 * @param message the coordinated message
+	 * @param address the requester
+	 * @return
+	 */
+	private Object lease(Message message, Object address){
+		
+		final Token token = protocolStack.up(Command.ABCAST_LEASE, new Token(message));
+		if(Token.REPLICATION_LEASE_NOT_GRANTED == token.getNextAction())
+			return null;
+		
+		if(logger.isTraceEnabled()){
+			logger.trace("Lease sequences to requester " + address + " on coordination of ReqId: "  + message.getReqId());
+		}
+		
+		token.reset();
+		return protocolStack.down(Command.ABCAST_LEASE_GRANT, new Token(new ReplicationUnit(message.getReqId(), token.getDataForNextProtocol(), address)));
+	}
+	
+	/**
+	 * Install the granted lease, or skip the released sequences
+	 * @param message
+	 * @return
+	 */
+	public Object receiveLease(Message message){
+		
+		if(logger.isTraceEnabled()){
+			logger.trace("Lease received, release: "  + ((LeaseHeader) message.getHeader()).isRelease());
+		}
+		
+		return protocolStack.up(Command.ABCAST_LEASE_RECEIVE, new Token(message));
 	}
 	
 	public Object coordinate(Message message, Object address){
 		
+		if (Environment.ENABLE_BATCH_COORDINATION) {
+			final AtomicService service = group.getServiceManager().get(
+					((RequestHeader) message.getHeader()).getService());
+			if (isBatchCoordinatable(service)) {
+				offer(service.getRegionNumber(((RequestHeader) message
+						.getHeader()).getShardKey()), message, address);
+				return null;
+			}
+		}
+		
 		//suspendProcess(logger);
 
 
@@ -85,8 +233,127 @@ public class ReplicationManager extends AbstractProtocolManager {
 		}
 	
 		token.reset();
-		return protocolStack.down(Command.ABCAST_SECOND_UNICAST, new Token(new ReplicationUnit(message.getReqId(), token.getDataForNextProtocol(), address)));
+		final Object result = protocolStack.down(Command.ABCAST_SECOND_UNICAST, new Token(new ReplicationUnit(message.getReqId(), token.getDataForNextProtocol(), address)));
+		// This would be sent after the timestamp
+		if (Environment.ENABLE_SEQUENCE_LEASING)
+			lease(message, address);
 		
+		return result;
+	}
+	
+	/**
+	 * Queue the request, the pending requests of a region are coordinated by
+	 * one thread at a time, thus the order of receiving is preserved.
+	 * @param region
+	 * @param message
+	 * @param address
+	 */
+	@SuppressWarnings("unchecked")
+	private void offer(Integer region, Message message, Object address){
+		
+		Queue<Tuple<Message, Object>> queue = pendingCoordinations.get(region);
+		if (queue == null) {
+			queue = CollectionFacade.getConcurrentQueue();
+			final Queue<Tuple<Message, Object>> existing = pendingCoordinations.putIfAbsent(region, queue);
+			if (existing != null)
+				queue = existing;
+		}
+		
+		queue.add(new Tuple<Message, Object>(message, address));
+		scheduleCoordination(region, queue);
+	}
+	
+	private void scheduleCoordination(final Integer region, final Queue<Tuple<Message, Object>> queue){
+		
+		AtomicBoolean isScheduled = scheduledCoordinations.get(region);
+		if (isScheduled == null) {
+			isScheduled = new AtomicBoolean(false);
+			final AtomicBoolean existing = scheduledCoordinations.putIfAbsent(region, isScheduled);
+			if (existing != null)
+				isScheduled = existing;
+		}
+		
+		if (!isScheduled.compareAndSet(false, true))
+			return;
+		
+		final AtomicBoolean flag = isScheduled;
+		Environment.pool.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					coordinateInBatch(queue);
+				} catch (Throwable t) {
+					logger.error("Coordinate pending requests of region " + region + " failed", t);
+				} finally {
+					flag.set(false);
+				}
+				// Requests that arrive after the last drain
+				if (!queue.isEmpty())
+					scheduleCoordination(region, queue);
+			}
+
+		});
+	}
+	
+	/**
+	 * Drain all the pending requests of a region and coordinate them in one
+	 * critical section, the timestamps are sent back by one unicast per requester
+	 * @param queue
+	 */
+	@SuppressWarnings("unchecked")
+	private void coordinateInBatch(Queue<Tuple<Message, Object>> queue){
+		
+		final List<Message> messages = new ArrayList<Message>();
+		final List<Object> addresses = new ArrayList<Object>();
+		Tuple<Message, Object> tuple = null;
+		while ((tuple = queue.poll()) != null) {
+			messages.add(tuple.getVal1());
+			addresses.add(tuple.getVal2());
+		}
+		
+		if (messages.isEmpty())
+			return;
+		
+		final Token token = protocolStack.up(Command.ABCAST_BATCH_COORDINATE, new Token(messages));
+		
+		if(Token.REPLICATION_COORDINATE_NOT_SEQUENCER == token.getNextAction()){
+			
+			if(logger.isTraceEnabled()){
+				logger.trace(messages.size() + " messages received for coordination but the current node dose not a responsible sequencer");
+			}
+			
+			return;
+		}
+		
+		if(logger.isTraceEnabled()){
+			logger.trace(messages.size() + " messages received for coordination in batch");
+		}
+		
+		final List<Object> sequences = (List<Object>) token.getDataForNextProtocol();
+		// Group by requester, in the order of receiving
+		final Map<Object, List<ReplicationUnit>> units = new LinkedHashMap<Object, List<ReplicationUnit>>();
+		List<ReplicationUnit> list = null;
+		for (int i = 0; i < messages.size(); i++) {
+			if ((list = units.get(addresses.get(i))) == null)
+				units.put(addresses.get(i), list = new LinkedList<ReplicationUnit>());
+			list.add(new ReplicationUnit(messages.get(i).getReqId(), sequences.get(i), addresses.get(i)));
+		}
+		
+		for (List<ReplicationUnit> requests : units.values())
+			protocolStack.down(Command.ABCAST_BATCH_SECOND_UNICAST, new Token(requests));
+	}
+	
+	/**
+	 * Only atomic service on region that requires sequence can be coordinated in batch
+	 * @param service
+	 * @return
+	 */
+	private boolean isBatchCoordinatable(AtomicService service){
+		return !(service instanceof CompositeService)
+				&& !(service instanceof RedundantService)
+				&& !service.isSessional()
+				&& service.getRegion().isRequireBlocking();
 	}
 	
 	public Object acquireSequence(Message message){
@@ -17,10 +17,14 @@ import org.ssor.util.Util;
 
 public class RequestHeader extends Header {
 
-	
-	
+	// The presence bits of the fields, which are written in a byte
+	private static final int HAS_SESSION = 1;
+	private static final int NON_ORDERED = 2;
+	private static final int HAS_CONFLICT_KEY = 4;
 	
 	protected String sessionId;
+	// Only the request on partitioned region has this
+	protected String conflictKey;
 	protected String service;
 	protected boolean isNonOrdered = false;
 	private transient Integer requester;
@@ -64,6 +68,31 @@ public class RequestHeader extends Header {
 
 
 
+	public String getConflictKey() {
+		return conflictKey;
+	}
+
+
+
+	public void setConflictKey(String conflictKey) {
+		this.conflictKey = conflictKey;
+	}
+
+
+
+	/**
+	 * A request is either sessional or on partitioned region (which can not be
+	 * nested), thus at most one of the keys is present.
+	 * 
+	 * @return the key that decides the shard of region that orders the
+	 *         request, which is the session ID or the conflict key
+	 */
+	public String getShardKey() {
+		return sessionId == null ? conflictKey : sessionId;
+	}
+
+
+
 	public String getService() {
 		return service;
 	}
@@ -95,9 +124,11 @@ public class RequestHeader extends Header {
 	public void readFrom(DataInputStream in) throws IOException,
 			IllegalAccessException, InstantiationException {
 		
-		sessionId = Util.readString(in);
-		service = ServiceManager.getServiceName(in.readInt());
-		isNonOrdered = in.readBoolean();
+		final int flags = in.readUnsignedByte();
+		service = ServiceManager.getServiceName(Util.readVarInt(in));
+		sessionId = (flags & HAS_SESSION) == 0 ? null : in.readUTF();
+		conflictKey = (flags & HAS_CONFLICT_KEY) == 0 ? null : in.readUTF();
+		isNonOrdered = (flags & NON_ORDERED) != 0;
 		readOuter(in);
 	}
 
@@ -107,9 +138,14 @@ public class RequestHeader extends Header {
 	public void writeTo(DataOutputStream out) throws IOException {
 		
 		
-		Util.writeString(sessionId, out);
-		out.writeInt(ServiceManager.getMagicNumber(service));
-		out.writeBoolean(isNonOrdered);
+		out.writeByte((sessionId == null ? 0 : HAS_SESSION)
+				| (isNonOrdered ? NON_ORDERED : 0)
+				| (conflictKey == null ? 0 : HAS_CONFLICT_KEY));
+		Util.writeVarInt(out, ServiceManager.getMagicNumber(service));
+		if (sessionId != null)
+			out.writeUTF(sessionId);
+		if (conflictKey != null)
+			out.writeUTF(conflictKey);
 		
 		writeOuter(out);
 	}
@@ -128,7 +164,7 @@ public class RequestHeader extends Header {
 		// The index that needs to be retransmited
 		final List<Integer> list = new LinkedList<Integer>();
 		for(Integer i : waitingIndic){
-			if(regions.contains(services[i].getRegion()))
+			if(regions.contains(services[i].getRegion(sessionId)))
 				list.add(i);
 		}
 		return list.toArray(new Integer[list.size()]);
@@ -7,6 +7,7 @@ import java.io.IOException;
 import org.ssor.Sequence;
 import org.ssor.protocol.Header;
 import org.ssor.protocol.replication.abcast.SequenceVector;
+import org.ssor.util.Util;
 
 public class ResponseHeader extends Header {
 
@@ -57,7 +58,7 @@ public class ResponseHeader extends Header {
 	public void readFrom(DataInputStream in) throws IOException,
 			IllegalAccessException, InstantiationException {
 
-		short type = in.readShort();
+		byte type = in.readByte();
 		switch (type) {
 
 		case NULL:{
@@ -71,23 +72,23 @@ public class ResponseHeader extends Header {
 			break;
 		}
 		case SEQUENCE_ARRAY: {
-			int length = in.readInt();
+			int length = Util.readVarInt(in);
 			Sequence[] array = new Sequence[length];
 			for (int i = 0; i < length; i++){
 				array[i] = new Sequence();
-				array[i].readFrom(in);
+				array[i].readFrom(in, i == 0 ? null : array[i - 1]);
 			}
 
 			timestamp = array;
 			break;
 		}
 		case VECTOR: {
-			int length = in.readInt();
+			int length = Util.readVarInt(in);
 			SequenceVector[] vectors = new SequenceVector[length];
 
 			for (int i = 0; i < length; i++) {
 				vectors[i] = new SequenceVector();
-				vectors[i].readFrom(in);
+				vectors[i].readFrom(in, i == 0 ? null : vectors[i - 1]);
 			}
 
 			timestamp = vectors;
@@ -114,25 +115,25 @@ public class ResponseHeader extends Header {
 		 */
 
 		if (timestamp instanceof Sequence) {
-			out.writeShort(SEQUENCE);
+			out.writeByte(SEQUENCE);
 			((Sequence) timestamp).writeTo(out);
 		// For the last broadcasting of composed trigger service
 		} else if (timestamp instanceof Sequence[]) {
-			out.writeShort(SEQUENCE_ARRAY);
+			out.writeByte(SEQUENCE_ARRAY);
 			Sequence[] array = (Sequence[]) timestamp;
 			int length = array.length;
-			out.writeInt(length);
+			Util.writeVarInt(out, length);
 			for (int i = 0; i < length; i++)
-				array[i].writeTo(out);
+				array[i].writeTo(out, i == 0 ? null : array[i - 1]);
 		} else if (timestamp instanceof SequenceVector[]) {
-			out.writeShort(VECTOR);
+			out.writeByte(VECTOR);
 			SequenceVector[] vector = (SequenceVector[]) timestamp;
 			int length = vector.length;
-			out.writeInt(vector.length);
+			Util.writeVarInt(out, length);
 			for (int i = 0; i < length; i++)
-				vector[i].writeTo(out);		
+				vector[i].writeTo(out, i == 0 ? null : vector[i - 1]);
 		} else
-			out.writeShort(NULL);
+			out.writeByte(NULL);
 
 		
 
@@ -0,0 +1,91 @@
+package org.ssor.protocol.replication.abcast;
+
+import org.ssor.Sequence;
+
+/**
+ * A block of sequences of a region that has been granted by the sequencer,
+ * which can be consumed by the requester without coordination. The sequences
+ * are consumed in order, thus the unused ones are always the tail of block.
+ * 
+ * @author Tao Chen
+ * 
+ */
+public class Lease {
+
+	private final int region;
+	// UUID of the sequencer that grants the lease
+	private final int sequencer;
+	private final Sequence[] sequences;
+	// Index of the next sequence, guarded by 'this'
+	private int next = 0;
+	private boolean isReleased = false;
+	// In milliseconds
+	private long lastUsed;
+
+	public Lease(int region, int sequencer, Sequence[] sequences) {
+		super();
+		this.region = region;
+		this.sequencer = sequencer;
+		this.sequences = sequences;
+		lastUsed = System.currentTimeMillis();
+	}
+
+	/**
+	 * Consume the next sequence
+	 * 
+	 * @return the sequence or null if the lease is exhausted or released
+	 */
+	public synchronized Sequence next() {
+		if (isReleased || next >= sequences.length)
+			return null;
+
+		lastUsed = System.currentTimeMillis();
+		return sequences[next++];
+	}
+
+	/**
+	 * Release the lease, no more sequence can be consumed
+	 * 
+	 * @return the unused sequences
+	 */
+	public synchronized Sequence[] release() {
+		if (isReleased)
+			return new Sequence[0];
+
+		isReleased = true;
+		final Sequence[] unused = new Sequence[sequences.length - next];
+		System.arraycopy(sequences, next, unused, 0, unused.length);
+		next = sequences.length;
+		return unused;
+	}
+
+	public synchronized boolean isExhausted() {
+		return next >= sequences.length;
+	}
+
+	public synchronized boolean isReleased() {
+		return isReleased;
+	}
+
+	/**
+	 * @param timeout
+	 *            in milliseconds
+	 * @return true if no sequence has been consumed within the timeout
+	 */
+	public synchronized boolean isIdle(long timeout) {
+		return System.currentTimeMillis() - lastUsed >= timeout;
+	}
+
+	public int getRegion() {
+		return region;
+	}
+
+	public int getSequencer() {
+		return sequencer;
+	}
+
+	public String toString() {
+		return "(Lease of region: " + region + ", from sequencer: " + sequencer
+				+ ", sequences: " + sequences.length + ")";
+	}
+}
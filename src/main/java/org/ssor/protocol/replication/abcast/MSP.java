@@ -1,10 +1,21 @@
 package org.ssor.protocol.replication.abcast;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 import org.ssor.Region;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -21,9 +32,12 @@ import org.ssor.protocol.Command;
 import org.ssor.protocol.Header;
 import org.ssor.protocol.Message;
 import org.ssor.protocol.ProtocolSharableInstances;
+import org.ssor.protocol.SentMessageTable;
 import org.ssor.protocol.RequirementsAwareProtocol;
 import org.ssor.protocol.Token;
+import org.ssor.protocol.batching.BatchFrameHeader;
 import org.ssor.protocol.replication.BatchRequestHeader;
+import org.ssor.protocol.replication.LeaseHeader;
 import org.ssor.protocol.replication.ReplicationUnit;
 import org.ssor.protocol.replication.RequestHeader;
 import org.ssor.protocol.replication.ResponseHeader;
@@ -31,6 +45,7 @@ import org.ssor.protocol.replication.ResponsePacket;
 import org.ssor.util.Callback;
 import org.ssor.util.CommonExecutor;
 import org.ssor.util.Environment;
+import org.ssor.util.Triple;
 import org.ssor.util.Tuple;
 
 public class MSP extends RequirementsAwareProtocol implements CommunicationListener, ProtocolSharableInstances {
@@ -41,20 +56,49 @@ public class MSP extends RequirementsAwareProtocol implements CommunicationListe
 
 	// MSP closely work with different replication model (active/passive/quorum)
 
-	// Used when new thread create in case of suspend
-	private ThreadLocal<Boolean> marker = new ThreadLocal<Boolean>();
-	private ExecutorService pool = Executors.newCachedThreadPool();
+	// Deliver the buffered messages once they become deliverable
+	private final ThreadPoolExecutor pool = createDeliveryPool();
 
 	// Cache of sent messages , although FIFO has been guaranteed, it can
 	// be used by request to retrieval data throughout the abcast protocol
 	// The same instance as the one in FT
-	private Map<String, Message> sentMessages;
+	private SentMessageTable sentMessages;
 	
 
 	private CommunicationAdaptor adaptor;
+	
+	// The leases held by this node, key = region number
+	private ConcurrentMap<Integer, Lease> leases = new ConcurrentHashMap<Integer, Lease>();
+	// The holder of lease granted by this node, key = region number
+	private Map<Integer, Integer> leaseHolders = new HashMap<Integer, Integer>();
+	// The node {UUID, number of consecutive requests} that may be granted a lease,
+	// key = region number, guarded by leaseHolders
+	private Map<Integer, int[]> leaseCandidates = new HashMap<Integer, int[]>();
+	
+	// Checks the idle leases, created on the first installed lease, guarded by
+	// leases
+	private ScheduledExecutorService leaseTimer;
+	// Guarded by leases
+	private boolean isStopped = false;
 
 
+	/**
+	 * Stop the timer of leases and the delivery threads, when the group stops,
+	 * the buffered deliveries are dropped
+	 */
+	@Override
+	public void stop() {
+		// Under the lock of scheduling, thus nothing is scheduled afterwards
+		synchronized (leases) {
+			isStopped = true;
+			if (leaseTimer != null)
+				leaseTimer.shutdownNow();
+		}
+		pool.shutdown();
+	}
+
 
+	@SuppressWarnings("unchecked")
 	@Override
 	public Token down(short command, Token value) {
 		switch (command) {
@@ -72,6 +116,10 @@ public class MSP extends RequirementsAwareProtocol implements CommunicationListe
 			}
 			final RequestHeader header = new RequestHeader(unit.getService()
 					.getName(), UUID_ADDR, isSessional(unit.getService().getName()));
+			// Ordered by the partition of region that the conflict key falls into
+			if (unit.getService().isPartitioned())
+				header.setConflictKey(unit.getService().getConflictKey(
+						unit.getArguments()));
 			
 			Message message = null;
 			if (!unit.getService().isRequireBlocking()) {
@@ -136,9 +184,11 @@ public class MSP extends RequirementsAwareProtocol implements CommunicationListe
 				Object address = null;
 				Integer uuid = null;
 				final Set<Object> addresses = new HashSet<Object>();
+				// The shards that sequence the request, for retransmission
+				final List<Region> shards = new ArrayList<Region>(involedRegions.size());
 
-				sentMessages.put(message.getReqId(), message);
 				for (Region reg : involedRegions) {
+					shards.add(reg = reg.getShard(header.getSessionId()));
 					uuid = reg.getSequencerWhenRequest();
 
 					if (uuid == null)
@@ -152,6 +202,9 @@ public class MSP extends RequirementsAwareProtocol implements CommunicationListe
 				}
 				
 
+				sentMessages.put(message, shards);
+				// Sent to the sequencers, thus it does not expire, see below
+				sentMessages.pin(message.getReqId());
 				try {
 
 					for (Object addr : addresses)
@@ -182,9 +235,10 @@ public class MSP extends RequirementsAwareProtocol implements CommunicationListe
 							+ unit.getService().getName());
 
 				}
-				sentMessages.put(message.getReqId(), cached);
+				sentMessages.put(cached, unit.getService().getRegion(
+						header.getShardKey()));
 				final Integer uuid = unit.getService()
-						.getSequencerWhenRequest();
+						.getSequencerWhenRequest(header.getShardKey());
 				value.setDataForNextProtocol(cached);
 				if (uuid == null){
 					value.setNextAction(Token.REPLICATION_REQUEST_SEQUENCER_NOT_EXIST);
@@ -198,6 +252,47 @@ public class MSP extends RequirementsAwareProtocol implements CommunicationListe
 					return doDown(command, value);
 				}
 				
+				// From now on a sequence may be assigned, thus it does not
+				// expire, otherwise the sequence would never be delivered and
+				// the region stalls. The caller has failed if it has expired.
+				if (sentMessages.pin(cached.getReqId()) == null) {
+					if (logger.isDebugEnabled())
+						logger.debug("ReqId: " + message.getReqId()
+								+ " expired before it was sent to the sequencer");
+					return doDown(command, value);
+				}
+				
+				// The replicating layer would coordinate it in-process, which is
+				// counted as a received message, unless the view is changing
+				if (Environment.ENABLE_LOCAL_COORDINATION && uuid == UUID_ADDR
+						&& regionDistributionSynchronyManager.cacheMsgOnStableView()) {
+					
+					if (logger.isTraceEnabled()) {
+						trace(logger, "ABCAST_FIRST_UNICAST", "ReqId: "
+								+ message.getReqId()
+								+ " this node is the sequencer, skip the unicast");
+					}
+					value.setNextAction(Token.REPLICATION_REQUEST_LOCAL_SEQUENCER);
+					return doDown(command, value);
+				}
+				
+				// Stamp with the leased sequence, which goes directly to the final broadcast
+				final Sequence leased = Environment.ENABLE_SEQUENCE_LEASING ? stampByLease(
+						unit.getService(), uuid)
+						: null;
+				if (leased != null) {
+					
+					if (logger.isTraceEnabled()) {
+						trace(logger, "ABCAST_FIRST_UNICAST", "ReqId: "
+								+ message.getReqId()
+								+ " stamped with leased sequence: " + leased);
+					}
+					value.setNextAction(Token.REPLICATION_REQUEST_LEASED);
+					value.setDataForNextProtocol(new Triple<Message, Sequence, Integer>(
+							cached, leased, uuid));
+					return doDown(command, value);
+				}
+
 
 				try {
 					adaptor.unicast(message, address);
@@ -259,25 +354,63 @@ public class MSP extends RequirementsAwareProtocol implements CommunicationListe
 			final ReplicationUnit unit = (ReplicationUnit) value.getData();
 			// If this is not sequencer, then timestamp should be null
 
-			final ResponseHeader header = new ResponseHeader(unit.getTuple());
+			final Message message = createSecondUnicast(unit);
 
-			// Send back the order timestamp to requester if this is the
-			// sequencer, this would use new response header instance
+			adaptor.unicast(message, unit.getAddress());
 
-			Message message = new Message(header, null, false);
+			value.setDataForNextProtocol(message);
+			return doDown(command, value);
+			
+		}
+		case Command.ABCAST_LEASE_GRANT: {
 
-			if (Environment.ENABLE_CHANGE_FIFO)
-				message.setFIFO_Scope(util.getRandomShort());
-			message.setReqId(unit.getReqId());
+			if (value == null)
+				return doDown(command, value);
+
+			final ReplicationUnit unit = (ReplicationUnit) value.getData();
+			final Sequence[] sequences = (Sequence[]) unit.getTuple();
+			final Message message = new Message(new LeaseHeader(sequences[0]
+					.getRegionNumber(), sequences, false), null, false);
 
 			if (logger.isTraceEnabled()) {
-				trace(logger, "ABCAST_SECOND_UNICAST", "ReqId: "
-						+ message.getReqId() + " Service: " + unit.getService()
-						+ " coordinate with timestamp: "
-						+ header.getTimestamp());
+				trace(logger, "ABCAST_LEASE_GRANT", "Lease " + sequences.length
+						+ " sequences from " + sequences[0] + " of region "
+						+ sequences[0].getRegionNumber() + " to requester: "
+						+ unit.getAddress());
 			}
 
-			adaptor.unicast(message, unit.getAddress());
+			try {
+				adaptor.unicast(message, unit.getAddress());
+			} catch (SendToFaultyNodeException e) {
+				// The leased sequences would be skipped by fault tolerance
+				logger.error("Grant lease to faulty requester " + unit.getAddress(), e);
+			}
+
+			value.setDataForNextProtocol(message);
+			return doDown(command, value);
+		}
+		case Command.ABCAST_BATCH_SECOND_UNICAST: {
+
+			if (value == null)
+				return doDown(command, value);
+
+			// All the units are for the same requester
+			final List<ReplicationUnit> units = (List<ReplicationUnit>) value.getData();
+			final Message[] messages = new Message[units.size()];
+			for (int i = 0; i < messages.length; i++)
+				messages[i] = createSecondUnicast(units.get(i));
+
+			// Combine into one frame, which is unpacked by the requester
+			final Message message = messages.length == 1 ? messages[0]
+					: new Message(new BatchFrameHeader(messages), null, false);
+
+			if (logger.isTraceEnabled()) {
+				trace(logger, "ABCAST_BATCH_SECOND_UNICAST", messages.length
+						+ " timestamps to requester: "
+						+ units.get(0).getAddress());
+			}
+
+			adaptor.unicast(message, units.get(0).getAddress());
 
 			value.setDataForNextProtocol(message);
 			return doDown(command, value);
@@ -298,7 +431,15 @@ public class MSP extends RequirementsAwareProtocol implements CommunicationListe
 
 			final ResponseHeader header = (ResponseHeader) unit.getTuple();
 
-			final Message original = sentMessages.get(unit.getReqId());
+			final Message original = sentMessages.pin(unit.getReqId());
+			// Expired before it was sequenced, the caller has failed
+			if (original == null) {
+				if (logger.isErrorEnabled())
+					logger.error("ReqId: " + unit.getReqId()
+							+ " expired before the agreement was broadcast");
+				return doDown(command, null);
+			}
+
 			Message message = new Message(original.getHeader(), null, false);
 			message.getHeader().setOuter(header);
 
@@ -313,12 +454,10 @@ public class MSP extends RequirementsAwareProtocol implements CommunicationListe
 						+ " agreement and broadcasting with timestamp: "
 						+ header.getTimestamp());
 			}
-			
-			adaptor.multicast(message);
 
 			value.setDataForNextProtocol(message);
 		
-			return doDown(command, value);
+			return multicast(command, value, message);
 
 		}
 		case Command.ABCAST_DELAY_FINAL_BROADCAST: {
@@ -363,7 +502,7 @@ public class MSP extends RequirementsAwareProtocol implements CommunicationListe
 				Message msg = new Message(header, packet, false);
 				msg.setReqId(message.getReqId());
 
-				adaptor.multicast(msg);
+				value.setDataForNextProtocol(msg);
 			} else {
 
 				// Because to this stage, the local service has been executed,
@@ -377,12 +516,10 @@ public class MSP extends RequirementsAwareProtocol implements CommunicationListe
 				((RequestHeader) message.getHeader()).setNonOrdered(true);
 				// This FIFO judgement has been done on replicaing layer
 
-				adaptor.multicast(message);
+				value.setDataForNextProtocol(message);
 			}
-			
-			value.setDataForNextProtocol(message);
 
-			return doDown(command, value);
+			return multicast(command, value, (Message) value.getDataForNextProtocol());
 
 		}
 			/*
@@ -409,6 +546,7 @@ public class MSP extends RequirementsAwareProtocol implements CommunicationListe
 		return doDown(command, value);
 	}
 
+	@SuppressWarnings("unchecked")
 	@Override
 	public Token up(short command, Token value) {
 
@@ -468,7 +606,7 @@ public class MSP extends RequirementsAwareProtocol implements CommunicationListe
 						.getRequester(), vectors.length == 0 ? null : vectors));
 				return doUp(command, value);
 			} else if ((sequence = service.getNextSeqno(requestHeader
-					.getSessionId(), UUID_ADDR)) != null) {
+					.getShardKey(), UUID_ADDR)) != null) {
 
 				if (logger.isTraceEnabled()) {
 					trace(
@@ -492,6 +630,120 @@ public class MSP extends RequirementsAwareProtocol implements CommunicationListe
 
 			// This should only be executed by a total order requester
 		}
+		case Command.ABCAST_BATCH_COORDINATE: {
+
+			if (value == null)
+				return doUp(command, value);
+
+			// The requests of atomic services from the same region, in the
+			// order of receiving
+			final List<Message> messages = (List<Message>) value.getData();
+			final AtomicService[] services = new AtomicService[messages.size()];
+			for (int i = 0; i < services.length; i++)
+				services[i] = serviceManager.get(((RequestHeader) messages
+						.get(i).getHeader()).getService());
+
+			// The requests on a partitioned region are queued by partition
+			final Sequence[] sequences = services[0].getRegion(
+					((RequestHeader) messages.get(0).getHeader()).getShardKey())
+					.getNextSeqnos(services, UUID_ADDR);
+			if (sequences == null) {
+				value.setNextAction(Token.REPLICATION_COORDINATE_NOT_SEQUENCER);
+				return doUp(command, value);
+			}
+
+			final List<Tuple<Integer, Object>> tuples = new ArrayList<Tuple<Integer, Object>>(
+					sequences.length);
+			for (int i = 0; i < sequences.length; i++) {
+
+				if (logger.isTraceEnabled()) {
+					trace(logger, "ABCAST_BATCH_COORDINATE", "ReqId: "
+							+ messages.get(i).getReqId()
+							+ ", receive message for coordination of meta service: "
+							+ services[i].getName() + ", timestamp: "
+							+ sequences[i]);
+				}
+				messages.get(i).setHoldSeq(true);
+				tuples.add(new Tuple<Integer, Object>(
+						((RequestHeader) messages.get(i).getHeader())
+								.getRequester(), sequences[i]));
+			}
+
+			value.setDataForNextProtocol(tuples);
+			return doUp(command, value);
+		}
+		case Command.ABCAST_LEASE: {
+
+			if (value == null)
+				return doUp(command, value);
+
+			final Message message = (Message) value.getData();
+			final RequestHeader requestHeader = (RequestHeader) message.getHeader();
+			final int requester = requestHeader.getRequester();
+			final AtomicService service = serviceManager.get(requestHeader
+					.getService());
+			
+			final Sequence[] sequences = requester == UUID_ADDR
+					|| !isLeasable(service) ? null : grantLease(service
+					.getRegion(), requester);
+			if (sequences == null) {
+				value.setNextAction(Token.REPLICATION_LEASE_NOT_GRANTED);
+				return doUp(command, value);
+			}
+
+			if (logger.isTraceEnabled()) {
+				trace(logger, "ABCAST_LEASE", "ReqId: " + message.getReqId()
+						+ ", lease " + sequences.length + " sequences from "
+						+ sequences[0] + " to requester: " + requester);
+			}
+
+			value.setDataForNextProtocol(new Tuple<Integer, Object>(requester,
+					sequences));
+			return doUp(command, value);
+		}
+		case Command.ABCAST_LEASE_RECEIVE: {
+
+			if (value == null)
+				return doUp(command, value);
+
+			final Message message = (Message) value.getData();
+			final LeaseHeader header = (LeaseHeader) message.getHeader();
+			final int sender = util.getUUIDFromAddress(message.getSrc());
+			
+			if (!header.isRelease()) {
+				
+				if (logger.isTraceEnabled()) {
+					trace(logger, "ABCAST_LEASE_RECEIVE", "Install lease of "
+							+ header.getSequences().length + " sequences from "
+							+ header.getSequences()[0] + " of region "
+							+ header.getRegion());
+				}
+				installLease(new Lease(header.getRegion(), sender, header
+						.getSequences()));
+				return doUp(command, value);
+			}
+			
+			if (logger.isTraceEnabled()) {
+				trace(logger, "ABCAST_LEASE_RECEIVE", "Skip "
+						+ header.getSequences().length
+						+ " released sequences of region "
+						+ header.getRegion() + " from node: " + sender);
+			}
+			
+			synchronized (leaseHolders) {
+				final Integer holder = leaseHolders.get(header.getRegion());
+				if (holder != null && holder == sender)
+					leaseHolders.remove(header.getRegion());
+			}
+			
+			if (header.getSequences().length != 0)
+				serviceManager.getRegion(header.getRegion()).skip(
+						header.getSequences());
+			
+			value.setDataForNextProtocol(new Tuple<Integer, Object>(sender,
+					header.getSequences()));
+			return doUp(command, value);
+		}
 		case Command.ABCAST_ACQUIRE_SEQUENCE: {
 
 			if (value == null)
@@ -503,17 +755,17 @@ public class MSP extends RequirementsAwareProtocol implements CommunicationListe
 			
 			// This should always non-null, if it is null then it may be an
 			// error
+			// Pinned before it was sent to the sequencer, thus it does not
+			// expire before the agreement
 			Message original = sentMessages.get(message.getReqId());
-			//System.out.print("normal get: "+header.getTimestamp()+"\n");
 			if (original == null) {
 
 				if (logger.isErrorEnabled()) {
 					logger
 							.error("Error occurs during on receive of coordination message, the cached message is null and thus this "
-									+ "request was discard");
+									+ "request was discard, ReqId: " + message.getReqId()
+									+ ", timestamp: " + header.getTimestamp());
 				}
-				System.out.print("get: "+header.getTimestamp()+"\n");
-				System.out.print("msg: " + message.getReqId()+ "\n");
 				value.setNextAction(Token.REPLICATION_ACQUIRE_SEQUENCE_DISCARDED);
 				return value;
 			}
@@ -576,6 +828,12 @@ public class MSP extends RequirementsAwareProtocol implements CommunicationListe
 				}
 				((Sequence) header.getTimestamp()).setSessionId(requestHeader
 						.getSessionId());
+				// The partition of region that assigns the sequence
+				if (requestHeader.getConflictKey() != null)
+					((Sequence) header.getTimestamp())
+							.setRegionNumber(serviceManager.get(service)
+									.getRegionNumber(
+											requestHeader.getConflictKey()));
 				
 				value.setDataForNextProtocol(new Tuple<Tuple<String, Message>, Tuple<Integer, Object>>(new Tuple<String, Message>(service, original), new Tuple<Integer, Object>(
 						sender, header.getTimestamp())));
@@ -789,7 +1047,7 @@ public class MSP extends RequirementsAwareProtocol implements CommunicationListe
 				value.setDataForNextProtocol(new DeliveryPacket(service, arguments, null,
 						responseHeader.getTimestamp()));
 				doAtomicDelivery(value, requestHeader
-						.getSessionId());
+						.getShardKey());
 			}
 			ServiceStackContext.releaseReturnValues();
 			
@@ -812,7 +1070,7 @@ public class MSP extends RequirementsAwareProtocol implements CommunicationListe
 			// can be executed
 			// outside, therefore here the timestamp always non-null
 			return doAtomicDelivery(value,
-					requestHeader.getSessionId());
+					requestHeader.getShardKey());
 			
 		}
 		
@@ -820,8 +1078,13 @@ public class MSP extends RequirementsAwareProtocol implements CommunicationListe
 		
 	}
 
+	/**
+	 * @param key
+	 *            the session ID or the conflict key, which decides the shard of
+	 *            region
+	 */
 	private Token doAtomicDelivery(final Token token,
-			final String sessionId) {
+			final String key) {
 	
 		final DeliveryPacket packet = (DeliveryPacket)token.getDataForNextProtocol();
 		Token result = null;
@@ -832,6 +1095,14 @@ public class MSP extends RequirementsAwareProtocol implements CommunicationListe
 		AtomicService service = packet.getService();
 		if (service instanceof CompositeService)
 			sequence = null;
+		// The shard of session region that caches the sequence is decided by
+		// the session ID, the partition of region is kept as region number
+		else if (sequence != null && key != null) {
+			if (service.isPartitioned())
+				sequence.setRegionNumber(service.getRegionNumber(key));
+			else
+				sequence.setSessionId(key);
+		}
 
 		
 		// This is need for nested non-ordered required service
@@ -861,77 +1132,117 @@ public class MSP extends RequirementsAwareProtocol implements CommunicationListe
 			return doUp(Command.ABCAST_AGREEMENT, token);
 		}
 
-		Object lock = packet.getService().getMutualLock(sessionId);
+		Object lock = packet.getService().getMutualLock(key);
+		// Nested delivery that already holds the lock can not park
+		// without releasing it, thus it waits on the lock instead
+		final boolean isReentrant = Thread.holdsLock(lock);
+		boolean isSuspended = false;
 		int decision = 0;
-		synchronized (lock) {
+		for (;;) {
+			synchronized (lock) {
 
-			while ((decision = service.isExecutable(sessionId, sequence)) > 0) {
+				if (isSuspended) {
+					service.cancelSuspend(key, sequence);
+					isSuspended = false;
+				}
 
-				try {
+				while ((decision = service.isExecutable(key, sequence)) > 0) {
 
-					// This means it is a new thread already, and only for
-					// execution on replica sites
-					if (marker.get() == null && packet.getIHeader() == null) {					
+					// Only for execution on replica sites, the message is
+					// buffered by the region and delivered by another thread
+					// once it may become deliverable, thus no thread blocks
+					if (packet.getIHeader() == null) {
+						// The fault tolerance may change the expected sequence
+						service.resume(key);
 						Environment.isDeliverySuspended.set(true);
-						pool.execute(new Runnable() {
+						service.defer(key, sequence, new Runnable() {
 
 							@Override
 							public void run() {
-
-								// System.out.print(packet.getSequence() + " Run
-								// new!!!!***** \n");
-								marker.set(true);
-								CommonExecutor.releaseForReceiveInAnotherThread(new Callback(){
-
-									@Override
-									public Object run() {
-										return doAtomicDelivery(token.clone(packet.clone(), token.getData()), sessionId);
+								try {
+									pool.execute(new Runnable() {
+
+										@Override
+										public void run() {
+											CommonExecutor.releaseForReceiveInAnotherThread(new Callback(){
+
+												@Override
+												public Object run() {
+													return doAtomicDelivery(token.clone(packet.clone(), token.getData()), key);
+												}
+												
+											}, adaptor.getGroup(), null);
+										}
+
+									});
+								} catch (RejectedExecutionException e) {
+									// The group has stopped
+									if (logger.isDebugEnabled()) {
+										logger.debug("Drop the buffered delivery of service: " + packet.getService().getName());
 									}
-									
-								}, adaptor.getGroup(), null);				
-								marker.set(null);
+								}
 							}
 
 						});
 						return null;
 
-					} else {
+					}
+
+					if (logger.isDebugEnabled()) {
+						logger.debug("Suspend service: "
+								+ service.getName() + ", sequence: "
+								+ sequence + ", is session level: "
+								+ service.isSessional());
+					}
 
-						if (logger.isDebugEnabled()) {
-							logger.debug("Suspend service: "
-									+ service.getName() + ", sequence: "
-									+ sequence + ", is session level: "
-									+ (sessionId != null));
-						}
+					// The fault tolerance may change the expected sequence
+					service.resume(key);
+					if (!isReentrant) {
+						service.suspend(key, sequence);
+						isSuspended = true;
+						break;
+					}
 
-						lock.wait();
+					try {
+						service.await(key);
+					} catch (InterruptedException e) {
+						e.printStackTrace();
 					}
+				}
 
-				} catch (InterruptedException e) {
-					e.printStackTrace();
+				if (decision <= 0) {
+					// The fault tolerance may change the expected sequence
+					service.resume(key);
+					break;
 				}
 			}
-			// }
-			// System.out.print(timestamp + ":" + decision + "\n" );
 
-			// If it needs to be ordered
-			if (decision == 0) {
+			// Park outside of the lock, resume() may unpark before this, in
+			// which case it returns immediately
+			LockSupport.park(lock);
+		}
+
+		// If it needs to be ordered
+		if (decision == 0) {
 
-				if (logger.isInfoEnabled()) {
-					logger.info(UUID_ADDR + " Execute service: "
-							+ service.getName() + ", sequence: " + sequence
-							+ ", sessionId: " + sessionId);
-				}
-			
-				result = doUp(Command.ABCAST_AGREEMENT, token);
-				service.increaseSeqno(sessionId);
-				releaseFTSequencesAfterward(token);
-				// lock.notifyAll();
+			if (logger.isInfoEnabled()) {
+				logger.info(UUID_ADDR + " Execute service: "
+						+ service.getName() + ", sequence: " + sequence
+						+ ", key: " + key);
 			}
 
-			// synchronized (lock) {
-			// TODO move this into the decision == 0 block?
-			lock.notifyAll();
+			// The sequence is claimed by this thread, since the expected
+			// sequence does not advance until the completion below, thus the
+			// service is executed outside of the lock and the ordering
+			// decisions of the region are not blocked by it
+			result = doUp(Command.ABCAST_AGREEMENT, token);
+			// Complete in order, only the one that waits for the next
+			// sequence is unparked
+			synchronized (lock) {
+				service.increaseSeqno(key);
+				releaseFTSequencesAfterward(token);
+				service.resume(key);
+			}
 		}
 
 		// For concurrent service, no need for increasing the sequencer
@@ -945,8 +1256,8 @@ public class MSP extends RequirementsAwareProtocol implements CommunicationListe
 								+ service.getName()
 								+ ", sequence: "
 								+ sequence
-								+ ", sessionId : "
-								+ sessionId
+								+ ", key : "
+								+ key
 								+ ", this service is executed concurrently");
 			}
 		
@@ -954,8 +1265,8 @@ public class MSP extends RequirementsAwareProtocol implements CommunicationListe
 			// Notify the next ordered message to execute the corresponding
 			// service
 			synchronized (lock) {
-				service.increaseConcurrentno(sessionId);
-				lock.notifyAll();
+				service.increaseConcurrentno(key);
+				service.resume(key);
 			}
 			
 
@@ -965,6 +1276,231 @@ public class MSP extends RequirementsAwareProtocol implements CommunicationListe
 	}
 	
 	
+	/**
+	 * The bounded pool of daemon threads, which die after being idle for 60s
+	 * as those of a cached pool, thus nothing is left once the group stops.
+	 * @return the pool
+	 */
+	private ThreadPoolExecutor createDeliveryPool(){
+		
+		final ThreadPoolExecutor pool = new ThreadPoolExecutor(
+				Environment.DELIVERY_THREADS, Environment.DELIVERY_THREADS, 60L,
+				TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+
+					@Override
+					public Thread newThread(Runnable runnable) {
+						final Thread thread = new Thread(runnable, "MSP-delivery-"
+								+ adaptor.getGroup().getName() + "-" + UUID_ADDR);
+						thread.setDaemon(true);
+						return thread;
+					}
+
+				});
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+	
+	private Message createSecondUnicast(ReplicationUnit unit){
+		
+		final ResponseHeader header = new ResponseHeader(unit.getTuple());
+
+		// Send back the order timestamp to requester if this is the
+		// sequencer, this would use new response header instance
+
+		Message message = new Message(header, null, false);
+
+		if (Environment.ENABLE_CHANGE_FIFO)
+			message.setFIFO_Scope(util.getRandomShort());
+		message.setReqId(unit.getReqId());
+
+		if (logger.isTraceEnabled()) {
+			trace(logger, "ABCAST_SECOND_UNICAST", "ReqId: "
+					+ message.getReqId() + " Service: " + unit.getService()
+					+ " coordinate with timestamp: "
+					+ header.getTimestamp());
+		}
+		
+		return message;
+	}
+	
+	/**
+	 * Only the sequence of atomic service on region that requires sequence can be leased,
+	 * session level region and partitioned region are excluded.
+	 * @param service
+	 * @return
+	 */
+	private boolean isLeasable(AtomicService service){
+		return !(service instanceof CompositeService) && !service.isSessional()
+				&& !service.isPartitioned()
+				&& service.getRegion().isRequireBlocking();
+	}
+	
+	/**
+	 * Grant a lease if the requester has sent enough consecutive requests on the region,
+	 * and no lease is being held on the region. This is done by sequencer.
+	 * @param region
+	 * @param requester
+	 * @return the leased sequences or null if no lease granted
+	 */
+	private Sequence[] grantLease(Region region, int requester){
+		
+		final Integer number = region.getRegion();
+		Sequence[] sequences = null;
+		synchronized (leaseHolders) {
+			
+			Integer holder = leaseHolders.get(number);
+			// The holder crashed, its sequences are skipped by fault tolerance
+			if (holder != null && !regionDistributionManager.hasNode(holder)) {
+				leaseHolders.remove(number);
+				holder = null;
+			}
+			
+			int[] candidate = leaseCandidates.get(number);
+			if (candidate == null || candidate[0] != requester)
+				leaseCandidates.put(number, candidate = new int[] { requester, 0 });
+			
+			if (holder != null || ++candidate[1] < Environment.LEASE_THRESHOLD)
+				return null;
+			
+			if ((sequences = region.getNextSeqnosForLease(Environment.LEASE_SIZE,
+					UUID_ADDR)) == null)
+				return null;
+			
+			candidate[1] = 0;
+			leaseHolders.put(number, requester);
+		}
+		
+		return sequences;
+	}
+	
+	/**
+	 * Consume the leased sequence of the service's region, done by requester
+	 * @param service
+	 * @param sequencer UUID of the current sequencer
+	 * @return the sequence or null if there is no usable lease
+	 */
+	private Sequence stampByLease(AtomicService service, int sequencer){
+		
+		if (!isLeasable(service))
+			return null;
+		
+		final Lease lease = leases.get(service.getRegion().getRegion());
+		if (lease == null)
+			return null;
+		
+		// The sequencer has been changed, the unused sequences are dropped
+		// since the new sequencer may assign them again
+		if (lease.getSequencer() != sequencer) {
+			leases.remove(lease.getRegion(), lease);
+			lease.release();
+			return null;
+		}
+		
+		final Sequence sequence = lease.next();
+		// Let the sequencer know as early as possible, so it can grant the next one
+		if (lease.isExhausted())
+			releaseLease(lease);
+		
+		return sequence;
+	}
+	
+	private void installLease(final Lease lease){
+		
+		final Lease previous = leases.put(lease.getRegion(), lease);
+		if (previous != null)
+			releaseLease(previous);
+		
+		scheduleLeaseCheck(lease, new Runnable() {
+
+			@Override
+			public void run() {
+				
+				if (lease.isReleased())
+					return;
+				
+				try {
+					final Region region = serviceManager.getRegion(lease.getRegion());
+					if (!region.isSequencer(lease.getSequencer())) {
+						leases.remove(lease.getRegion(), lease);
+						lease.release();
+					} else if (lease.isExhausted() || lease.isIdle(Environment.LEASE_TIMEOUT))
+						releaseLease(lease);
+					else
+						scheduleLeaseCheck(lease, this);
+				} catch (Throwable t) {
+					logger.error("Release lease " + lease + " failed", t);
+				}
+			}
+			
+		});
+	}
+	
+	/**
+	 * Check the lease after it may become idle, the timer is a daemon thread
+	 * that is created on the first lease, thus no thread is created unless
+	 * leasing is enabled. The lease is dropped once this is stopped.
+	 * @param lease
+	 * @param check
+	 */
+	private void scheduleLeaseCheck(Lease lease, Runnable check){
+		
+		synchronized (leases) {
+			if (!isStopped) {
+				if (leaseTimer == null)
+					leaseTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+						@Override
+						public Thread newThread(Runnable runnable) {
+							final Thread thread = new Thread(runnable, "MSP-lease-" + UUID_ADDR);
+							thread.setDaemon(true);
+							return thread;
+						}
+						
+					});
+				leaseTimer.schedule(check, Environment.LEASE_TIMEOUT, TimeUnit.MILLISECONDS);
+				return;
+			}
+		}
+		
+		leases.remove(lease.getRegion(), lease);
+		lease.release();
+	}
+	
+	/**
+	 * Broadcast the unused sequences so that they are skipped by all nodes
+	 * @param lease
+	 */
+	private void releaseLease(Lease lease){
+		
+		leases.remove(lease.getRegion(), lease);
+		final Sequence[] unused = lease.release();
+		
+		if (logger.isTraceEnabled()) {
+			logger.trace("Release " + lease + " with " + unused.length + " unused sequences");
+		}
+		
+		adaptor.multicast(new Message(new LeaseHeader(lease.getRegion(), unused, true), null, false));
+	}
+	
+	/**
+	 * Pass the final broadcast to the lower layer first, since a lower layer
+	 * (e.g. BATCH) may take over the sending.
+	 * 
+	 * @param command
+	 * @param value
+	 * @param message the message to be broadcast
+	 * @return
+	 */
+	private Token multicast(short command, Token value, Message message){
+		
+		final Token token = doDown(command, value);
+		if (token == null || Token.ABCAST_BROADCAST_BUFFERED != token.getNextAction())
+			adaptor.multicast(message);
+		
+		return token;
+	}
+	
 	private void releaseFTSequencesAfterward(Token token){
 		
 		
@@ -983,7 +1519,7 @@ public class MSP extends RequirementsAwareProtocol implements CommunicationListe
 	}
 
 	@Override
-	public void setCachedSentMessages(Map<String, Message> sentMessages) {
+	public void setCachedSentMessages(SentMessageTable sentMessages) {
 		this.sentMessages = sentMessages;
 		
 	}
@@ -6,6 +6,7 @@ import java.io.IOException;
 
 import org.ssor.Sequence;
 import org.ssor.util.Streamable;
+import org.ssor.util.Util;
 /**
  * The vector that send back from sequencer, used for nested services that a sequencer may responsible for multiple regions
  * 
@@ -36,18 +37,30 @@ public class SequenceVector implements Streamable{
 	@Override
 	public void readFrom(DataInputStream in) throws IOException,
 			IllegalAccessException, InstantiationException {
-		
-		index = in.readInt();
-		sequence = new Sequence();
-		sequence.readFrom(in);
-		
+		readFrom(in, null);
 	}
 	@Override
 	public void writeTo(DataOutputStream out) throws IOException {
-		
-		out.writeInt(index);
-        sequence.writeTo(out);
-		
+		writeTo(out, null);
+	}
+
+	/**
+	 * The index and sequence are written as deltas to the previous vector in
+	 * the same stream, if any.
+	 */
+	public void readFrom(DataInputStream in, SequenceVector previous)
+			throws IOException {
+		index = (int) Util.unZigZag(Util.readVarLong(in))
+				+ (previous == null ? 0 : previous.index);
+		sequence = new Sequence();
+		sequence.readFrom(in, previous == null ? null : previous.sequence);
+	}
+
+	public void writeTo(DataOutputStream out, SequenceVector previous)
+			throws IOException {
+		Util.writeVarLong(out, Util.zigZag(index
+				- (previous == null ? 0 : previous.index)));
+		sequence.writeTo(out, previous == null ? null : previous.sequence);
 	}
 	
 	public String toString(){
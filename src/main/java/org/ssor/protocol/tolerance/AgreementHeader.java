@@ -17,6 +17,10 @@ public class AgreementHeader extends Header {
 	private boolean isTriggerRetransmission;
 	// For releasing region distribution synchrony
 	private Integer viewId = -1;
+	// The region agreed on by the new sequencer, null if it is not per region
+	private Integer region;
+	// Whether this is the last agreement of the view, which releases it
+	private boolean isLast = true;
 	
 	public AgreementHeader(FaultySequence[] faulty, boolean isTriggerRetransmission) {
 		super();
@@ -33,10 +37,26 @@ public class AgreementHeader extends Header {
 		  this.viewId = viewId;
 	}
 
+	public AgreementHeader(FaultySequence[] faulty,
+			boolean isTriggerRetransmission, Integer viewId, Integer region,
+			boolean isLast) {
+		this(faulty, isTriggerRetransmission, viewId);
+		this.region = region;
+		this.isLast = isLast;
+	}
+
 	public Integer getViewId() {
 		return viewId == -1 ? null : viewId;
 	}
 
+	public Integer getRegion() {
+		return region;
+	}
+
+	public boolean isLast() {
+		return isLast;
+	}
+
 
 	public AgreementHeader() {
 		super();
@@ -54,6 +74,8 @@ public class AgreementHeader extends Header {
 		}
 		isTriggerRetransmission = in.readBoolean();
 		viewId = in.readInt();
+		region = in.readBoolean() ? in.readInt() : null;
+		isLast = in.readBoolean();
 		readOuter(in);
 
 	}
@@ -67,6 +89,11 @@ public class AgreementHeader extends Header {
 			faulty[i].writeTo(out);
 		out.writeBoolean(isTriggerRetransmission);
 		out.writeInt(viewId);
+		// The number of session shard is negative
+		out.writeBoolean(region != null);
+		if (region != null)
+			out.writeInt(region);
+		out.writeBoolean(isLast);
 		writeOuter(out);
 
 	}
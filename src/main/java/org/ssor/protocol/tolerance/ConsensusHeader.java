@@ -28,27 +28,38 @@ public class ConsensusHeader extends Header {
 	// Tuple<region number, latest sequence,list of sequence>
 	private Triple<Integer, Sequence, Sequence[]>[] array;
 
-	// Tuple<sessiond ID, latest sequence, list of sequence>
-	private Triple<String, Sequence, Sequence[]>[] sessionalArray;
+	// Region numbers of the shards of session region, in the same order as
+	// sessionalArray
+	private Integer[] sessionalRegions;
+
+	// Tuple<sessiond ID, latest sequence, list of sequence> per shard
+	private Triple<String, Sequence, Sequence[]>[][] sessionalArray;
+
+	// Pushed to the warm standby on view change, rather than replied to its
+	// consensus request
+	private boolean isPushed;
 
 	private transient int load = 0;
 
+	private transient int sessionalLoad = 0;
+
 	public ConsensusHeader() {
 	}
 
 	@SuppressWarnings("unchecked")
 	public ConsensusHeader(Integer[] regions) {
 		
-		
+		int shards = 0;
 		for(Integer i : regions){
-			if(i == SessionRegion.SESSION_REGION){
-				array = new Triple[regions.length - 1];
-				break;
-			}
-				
+			if(SessionRegion.isSessionRegion(i))
+				shards++;
+		}
+		
+		array = new Triple[regions.length - shards];
+		if(shards != 0){
+			sessionalRegions = new Integer[shards];
+			sessionalArray = new Triple[shards][];
 		}
-		if(array == null)
-		 array = new Triple[regions.length];
 	}
 
 	@SuppressWarnings("unchecked")
@@ -82,26 +93,34 @@ public class ConsensusHeader extends Header {
 		}
 
 		if (in.readShort() != -1) {
-			size = in.readInt();
-			sessionalArray = new Triple[size];
+			final int shards = in.readInt();
+			sessionalRegions = new Integer[shards];
+			sessionalArray = new Triple[shards][];
 			String session = null;
-			for (int i = 0; i < size; i++) {
-
-				session = Util.readString(in);
-				latest = new Sequence();
-				latest.readFrom(in);
-				length = in.readInt();
-				sequences = new Sequence[length];
-				for (int j = 0; j < length; j++) {
-					sequences[j] = new Sequence();
-					sequences[j].readFrom(in);
+			for (int k = 0; k < shards; k++) {
+
+				sessionalRegions[k] = in.readInt();
+				size = in.readInt();
+				sessionalArray[k] = new Triple[size];
+				for (int i = 0; i < size; i++) {
+
+					session = Util.readString(in);
+					latest = new Sequence();
+					latest.readFrom(in);
+					length = in.readInt();
+					sequences = new Sequence[length];
+					for (int j = 0; j < length; j++) {
+						sequences[j] = new Sequence();
+						sequences[j].readFrom(in);
+					}
+
+					sessionalArray[k][i] = new Triple<String, Sequence, Sequence[]>(
+							session, latest, sequences);
 				}
-
-				sessionalArray[i] = new Triple<String, Sequence, Sequence[]>(
-						session, latest, sequences);
 			}
 		}
 
+		isPushed = in.readBoolean();
 		readOuter(in);
 	}
 
@@ -128,18 +147,24 @@ public class ConsensusHeader extends Header {
 		else {
 			out.writeShort(0);
 			out.writeInt(sessionalArray.length);
-			for (Triple<String, Sequence, Sequence[]> triple : sessionalArray) {
-
-				Util.writeString(triple.getVal1(), out);
-				triple.getVal2().writeTo(out);
-				sequences = triple.getVal3();
-				out.writeInt(sequences.length);
-				for (Sequence sequence : sequences) {
-					sequence.writeTo(out);
+			for (int k = 0; k < sessionalArray.length; k++) {
+
+				out.writeInt(sessionalRegions[k]);
+				out.writeInt(sessionalArray[k].length);
+				for (Triple<String, Sequence, Sequence[]> triple : sessionalArray[k]) {
+
+					Util.writeString(triple.getVal1(), out);
+					triple.getVal2().writeTo(out);
+					sequences = triple.getVal3();
+					out.writeInt(sequences.length);
+					for (Sequence sequence : sequences) {
+						sequence.writeTo(out);
+					}
 				}
 			}
 		}
 
+		out.writeBoolean(isPushed);
 		writeOuter(out);
 
 	}
@@ -164,10 +189,22 @@ public class ConsensusHeader extends Header {
 		return array;
 	}
 	
-	public Triple<String, Sequence, Sequence[]>[] getSessionalTripleArray() {
+	public Triple<String, Sequence, Sequence[]>[][] getSessionalTripleArray() {
 		return sessionalArray;
 	}
 
+	public Integer[] getSessionalRegions() {
+		return sessionalRegions;
+	}
+
+	public boolean isPushed() {
+		return isPushed;
+	}
+
+	public void setPushed(boolean isPushed) {
+		this.isPushed = isPushed;
+	}
+
 
 
 	@SuppressWarnings("unchecked")
@@ -184,15 +221,19 @@ public class ConsensusHeader extends Header {
 			map.get(seq.getSessionId()).add(seq);
 		}
 
-		sessionalArray = new Triple[map.size()];
+		final Triple<String, Sequence, Sequence[]>[] triples = new Triple[map.size()];
 		int i = 0;
 		String session = null;
 		for (List<Sequence> list : map.values()) {
 			session = list.get(0).getSessionId();
-			sessionalArray[i] = new Triple<String, Sequence, Sequence[]>(
+			triples[i] = new Triple<String, Sequence, Sequence[]>(
 					session, region.getExpectedSequence(session), list
 							.toArray(new Sequence[list.size()]));
 			i++;
 		}
+
+		sessionalRegions[sessionalLoad] = region.getRegion();
+		sessionalArray[sessionalLoad] = triples;
+		sessionalLoad++;
 	}
 }
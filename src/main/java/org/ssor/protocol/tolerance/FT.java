@@ -1,5 +1,6 @@
 package org.ssor.protocol.tolerance;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
@@ -7,6 +8,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -23,13 +25,16 @@ import org.ssor.listener.CommunicationListener;
 import org.ssor.protocol.Command;
 import org.ssor.protocol.Message;
 import org.ssor.protocol.ProtocolSharableInstances;
+import org.ssor.protocol.SentMessageTable;
 import org.ssor.protocol.RequirementsAwareProtocol;
 import org.ssor.protocol.Token;
 import org.ssor.protocol.replication.BatchRequestHeader;
+import org.ssor.protocol.replication.LeaseHeader;
 import org.ssor.protocol.replication.RequestHeader;
 import org.ssor.protocol.replication.ResponseHeader;
 import org.ssor.protocol.replication.abcast.DeliveryPacket;
 import org.ssor.protocol.replication.abcast.SequenceVector;
+import org.ssor.util.Environment;
 import org.ssor.util.SequenceLinkedList;
 import org.ssor.util.Triple;
 import org.ssor.util.Tuple;
@@ -67,8 +72,15 @@ public class FT extends RequirementsAwareProtocol implements
 	 */
 	private Map<Integer, Tuple<Integer, Region>> collectedSequences;
 
+	/*
+	 * The regions of crashed sequencer whose sequences are pushed to the warm
+	 * standby, <region number, whether it has been pushed>. Either the push or
+	 * the reply to consensus request sends them, but not both
+	 */
+	private ConcurrentMap<Integer, Boolean> standbyPushes;
+
 	// The same instance as the one in MSP
-	private Map<String, Message> sentMessages;
+	private SentMessageTable sentMessages;
 
 	private CommunicationAdaptor adaptor;
 
@@ -78,6 +90,8 @@ public class FT extends RequirementsAwareProtocol implements
 		assignedSequences = CollectionFacade.getConcurrentHashMap(100);
 		executedSequences = CollectionFacade.getConcurrentHashMap(100);
 		collectedSequences = CollectionFacade.getConcurrentHashMap(100);
+		standbyPushes = (ConcurrentMap<Integer, Boolean>) CollectionFacade
+				.getConcurrentHashMap(100);
 
 	}
 
@@ -110,14 +124,14 @@ public class FT extends RequirementsAwareProtocol implements
 				final CompositeService triggerService = (CompositeService) service;
 				// Remove as a sequencer or all requests it sent
 				releaseAssignedSequenceCache(header.getRequester(),
-						triggerService.getServices(),
+						header.getSessionId(), triggerService.getServices(),
 						(Sequence[]) ((ResponseHeader) header.getOuter())
 								.getTimestamp());
 			} else {
 
 				// Remove as a sequencer
-				releaseAssignedSequenceCache(header.getRequester(), service,
-						(Sequence) ((ResponseHeader) header.getOuter())
+				releaseAssignedSequenceCache(header.getRequester(),
+						header.getShardKey(), service, (Sequence) ((ResponseHeader) header.getOuter())
 								.getTimestamp());
 
 			}
@@ -170,6 +184,7 @@ public class FT extends RequirementsAwareProtocol implements
 					return doDown(command, null);
 				}
 				faulty = new FaultySequence[queue.size()];
+				// In any order, the receivers queue them by sequence
 				for (int i = 0; i < faulty.length; i++)
 					faulty[i] = new FaultySequence(queue.poll());
 
@@ -184,20 +199,27 @@ public class FT extends RequirementsAwareProtocol implements
 							"FT_FINAL_BROADCAST",
 							"Send the assigned sequence of faulty nodes after consensus, as the new seqeucner");
 				}
+				// View ID, region whose collection has finished and whether it
+				// is the last region under consensus of the view
 				@SuppressWarnings("unchecked")
-				final Tuple<Integer, List<Sequence>> tuple = (Tuple<Integer, List<Sequence>>) value
+				final Triple<Integer, Region, Boolean> triple = (Triple<Integer, Region, Boolean>) value
 						.getData();
 
-				List<Sequence> sequences = tuple.getVal2();
+				final List<Sequence> sequences = triple.getVal2()
+						.extractSkippedSequences();
 
 				faulty = new FaultySequence[sequences.size()];
 
 				for (int i = 0; i < faulty.length; i++) {
-					System.out.print("skipped target: " + sequences.get(i)
-							+ "\n");
+					if (logger.isDebugEnabled()) {
+						logger.debug("Agreed sequence to skip: "
+								+ sequences.get(i) + " for region: "
+								+ triple.getVal2());
+					}
 					faulty[i] = new FaultySequence(sequences.get(i));
 				}
-				header = new AgreementHeader(faulty, true, tuple.getVal1());
+				header = new AgreementHeader(faulty, true, triple.getVal1(),
+						triple.getVal2().getRegion(), triple.getVal3());
 			}
 			adaptor.multicast(message = new Message(header, null, false));
 
@@ -215,8 +237,7 @@ public class FT extends RequirementsAwareProtocol implements
 			final Message original = (Message) value.getData();
 
 			Message message = null;
-			final Integer[] regions = (Integer[]) original.getBody();
-			final ConsensusHeader header = new ConsensusHeader(regions);
+			Integer[] regions = (Integer[]) original.getBody();
 
 			if (logger.isTraceEnabled()) {
 				trace(logger, "FT_UNICAST",
@@ -224,29 +245,23 @@ public class FT extends RequirementsAwareProtocol implements
 								+ regions.length + " regions");
 			}
 
-			/*
-			 * Does not remove, since they would be removed when receive the
-			 * last broadcast which triggered by this node itself (but the last
-			 * broadcast should be suspended during this consensus)
-			 */
-			SequenceLinkedList list = null;
-			for (Integer number : regions) {
-				list = executedSequences.get(number);
-				if (logger.isDebugEnabled()) {
-					logger
-							.debug("Receive region: "
-									+ number
-									+ ", now extract the agreed sequences sent by this node");
+			// The regions that have been pushed to the warm standby
+			if (!standbyPushes.isEmpty()) {
+				final List<Integer> list = new ArrayList<Integer>(
+						regions.length);
+				for (Integer number : regions) {
+					if (!Boolean.TRUE.equals(standbyPushes.remove(number)))
+						list.add(number);
 				}
-				// synchronized (list) {
-				// The change would be sync with the change state
-				// list.setConsensus(true);
-				header.addTripleValue(serviceManager.getRegion(number), list
-						.getAllForConsensus());
-				// }
+
+				if (list.size() == 0)
+					return doDown(command, null);
+				regions = list.toArray(new Integer[list.size()]);
 			}
-			adaptor.unicast(message = new Message(header, null, false),
-					original.getSrc());
+
+			adaptor.unicast(message = new Message(
+					createConsensusHeader(regions), null, false), original
+					.getSrc());
 
 			value.setDataForNextProtocol(message);
 			return doDown(command, value);
@@ -258,78 +273,75 @@ public class FT extends RequirementsAwareProtocol implements
 				return doDown(command, value);
 
 			@SuppressWarnings("unchecked")
-			final Triple<Set<Region>, Object, Integer> triple = (Triple<Set<Region>, Object, Integer>) value
+			final Triple<Set<Region>, Object, AgreementHeader> triple = (Triple<Set<Region>, Object, AgreementHeader>) value
 					.getData();
 
 			RequestHeader header = null;
-			Message message = null;
 			Integer[] retransmitedIndexList = null;
-			final Set<Map.Entry<String, Message>> entries = sentMessages
-					.entrySet();
-
 			final Set<Message> retransmitedSet = new HashSet<Message>();
+			// The composite requests may belong to more than one region
+			final Set<String> visited = new HashSet<String>();
+			Message cached = null;
 
-			for (Map.Entry<String, Message> entry : entries) {
-				message = entry.getValue();
-				header = (RequestHeader) message.getHeader();
+			/*
+			 * Pipelined by region, the requests sequenced by a region are
+			 * retransmitted and then the region is unblocked, so that it does
+			 * not wait for the retransmission of the other regions
+			 */
+			for (Region reg : triple.getVal1()) {
 
-				// If composed service
-				if (message.getSequenceCache() != null
-						&& message.getSequenceCache().isNeedRetransmission()) {
+				for (Message message : sentMessages.getByRegion(reg)) {
+					if (!visited.add(message.getReqId()))
+						continue;
+
+					header = (RequestHeader) message.getHeader();
+					cached = null;
+					// If composed service
+					if (message.getSequenceCache() != null
+							&& message.getSequenceCache()
+									.isNeedRetransmission()) {
+
+						if (logger.isTraceEnabled()) {
+							trace(logger, "FT_RETRANSMIT",
+									"Retransmission needed for composed service: "
+											+ header.getService());
+						}
 
-					if (logger.isTraceEnabled()) {
-						trace(logger, "FT_RETRANSMIT",
-								"Retransmission needed for composed service: "
-										+ header.getService());
+						retransmitedIndexList = header.getNestedBelongingRegion(
+								triple.getVal1(), message.getSequenceCache()
+										.getWaitingIndices(), serviceManager
+										.get(header.getService()));
+						cached = new Message(new BatchRequestHeader(header,
+								retransmitedIndexList), null, false);
+					} else if (message.isNeedRetransmited()
+							&& !serviceManager.get(header.getService())
+									.getRegion(header.getShardKey())
+									.isAllowRequest()
+							&& triple.getVal1().contains(
+									serviceManager.get(header.getService())
+											.getRegion(header.getShardKey()))) {
+
+						if (logger.isTraceEnabled()) {
+							trace(logger, "FT_RETRANSMIT",
+									"Retransmission needed for service: "
+											+ header.getService());
+						}
+						header.setOuter(null);
+						// Get rid of the arguments of service
+						cached = new Message(header, null, false);
 					}
 
-					retransmitedIndexList = header.getNestedBelongingRegion(
-							triple.getVal1(), message.getSequenceCache()
-									.getWaitingIndices(), serviceManager
-									.get(header.getService()));
-					Message cached = new Message(new BatchRequestHeader(header,
-							retransmitedIndexList), null, false);
-					cached.setReqId(message.getReqId());
-					retransmitedSet.add(cached);
-				} else if (message.isNeedRetransmited()
-						&& !serviceManager.get(header.getService()).getRegion()
-								.isAllowRequest()
-						&& triple.getVal1().contains(
-								serviceManager.get(header.getService())
-										.getRegion())) {
-
-					if (logger.isTraceEnabled()) {
-						trace(logger, "FT_RETRANSMIT",
-								"Retransmission needed for service: "
-										+ header.getService());
+					// Not pinned if it was never sent to a sequencer, in
+					// which case it may have expired meanwhile
+					if (cached != null
+							&& sentMessages.pin(message.getReqId()) != null) {
+						cached.setReqId(message.getReqId());
+						retransmitedSet.add(cached);
+						adaptor.unicast(cached, triple.getVal2());
 					}
-					header.setOuter(null);
-					// Get rid of the arguments of service
-					Message cached = new Message(header, null, false);
-					cached.setReqId(message.getReqId());
-					retransmitedSet.add(cached);
-
 				}
 
-			}
-
-			for (Message msg : retransmitedSet) {
-				System.out.print("111ret: " + msg.getReqId() + "\n");
-				adaptor.unicast(msg, triple.getVal2());
-			}
-			/*
-			 * We then unblock the suspend request and set the flag up
-			 */
-
-			System.out.print(triple.getVal1().size() + "***size\n");
-			System.out.print(retransmitedSet.size() + "re size\n");
-			// SequenceLinkedList sequenceList = null;
-			// Notify null sessional region
-			for (Region reg : triple.getVal1()) {
-
-				// sequenceList = executedMessages.get(reg.getRegion());
 				// Unblock so the incoming timestamp can be accepted
-
 				if (!reg.isAllowRequest()) {
 
 					if (logger.isTraceEnabled()) {
@@ -337,7 +349,6 @@ public class FT extends RequirementsAwareProtocol implements
 								"Allow requests to be handled for region: "
 										+ reg);
 					}
-					System.out.print("region: " + reg.getRegion() + "\n");
 					reg.allowRequest();
 
 					if (reg instanceof SessionRegion)
@@ -349,14 +360,18 @@ public class FT extends RequirementsAwareProtocol implements
 
 			}
 
-			// This would release join view changing
-			if (triple.getVal3() == null)
-				regionDistributionSynchronyManager.releaseOnRetransmission(util
-						.getUUIDFromAddress(triple.getVal2()), null);
-			else
-				regionDistributionSynchronyManager.releaseOnRetransmission(
-						triple.getVal3(), util.getUUIDFromAddress(triple
-								.getVal2()));
+			// Only the agreement of the last region releases the view changing
+			final AgreementHeader agreement = triple.getVal3();
+			if (agreement.isLast()) {
+				// This would release join view changing
+				if (agreement.getViewId() == null)
+					regionDistributionSynchronyManager.releaseOnRetransmission(
+							util.getUUIDFromAddress(triple.getVal2()), null);
+				else
+					regionDistributionSynchronyManager.releaseOnRetransmission(
+							agreement.getViewId(), util
+									.getUUIDFromAddress(triple.getVal2()));
+			}
 
 			value.setDataForNextProtocol(retransmitedSet);
 			return doDown(command, value);
@@ -406,6 +421,82 @@ public class FT extends RequirementsAwareProtocol implements
 					.getVal1(), tulpe.getVal2()));
 			return doUp(command, value);
 
+		}
+		case Command.ABCAST_BATCH_COORDINATE: {
+
+			if (value == null)
+				return doUp(command, value);
+
+			if (logger.isTraceEnabled()) {
+				trace(logger, "ABCAST_BATCH_COORDINATE",
+						"Cache the assigned sequences on sequencer");
+			}
+
+			if (Token.REPLICATION_COORDINATE_NOT_SEQUENCER == value
+					.getNextAction())
+				return doUp(command, value);
+
+			final List<Tuple<Integer, Object>> tuples = (List<Tuple<Integer, Object>>) value
+					.getDataForNextProtocol();
+			final List<Object> sequences = new ArrayList<Object>(tuples.size());
+			for (Tuple<Integer, Object> tuple : tuples)
+				sequences.add(createAssignedSequenceCache(tuple.getVal1(),
+						tuple.getVal2()));
+
+			value.setDataForNextProtocol(sequences);
+			return doUp(command, value);
+
+		}
+		case Command.ABCAST_LEASE: {
+
+			if (value == null)
+				return doUp(command, value);
+
+			if (Token.REPLICATION_LEASE_NOT_GRANTED == value.getNextAction())
+				return doUp(command, value);
+
+			if (logger.isTraceEnabled()) {
+				trace(logger, "ABCAST_LEASE",
+						"Cache the leased sequences on sequencer");
+			}
+
+			// The leased sequences are treated as assigned, thus the unused
+			// ones would be skipped if the holder crash
+			final Tuple<Integer, Object> tulpe = (Tuple<Integer, Object>) value
+					.getDataForNextProtocol();
+
+			value.setDataForNextProtocol(createAssignedSequenceCache(tulpe
+					.getVal1(), tulpe.getVal2()));
+			return doUp(command, value);
+
+		}
+		case Command.ABCAST_LEASE_RECEIVE: {
+
+			if (value == null)
+				return doUp(command, value);
+
+			if (!((LeaseHeader) ((Message) value.getData()).getHeader())
+					.isRelease())
+				return doUp(command, value);
+
+			final Tuple<Integer, Object> tulpe = (Tuple<Integer, Object>) value
+					.getDataForNextProtocol();
+			final SequenceLinkedList list = assignedSequences.get(tulpe
+					.getVal1());
+			// Only the sequencer has the cache
+			if (list != null) {
+
+				if (logger.isTraceEnabled()) {
+					trace(logger, "ABCAST_LEASE_RECEIVE",
+							"Remove the released sequences from cache of sequencer");
+				}
+
+				for (Sequence sequence : (Sequence[]) tulpe.getVal2())
+					list.remove(sequence);
+			}
+
+			return doUp(command, value);
+
 		}
 		case Command.ABCAST_ACQUIRE_SEQUENCE: {
 
@@ -472,6 +563,10 @@ public class FT extends RequirementsAwareProtocol implements
 
 			}
 
+			// The region agreed on, even there is no sequence to skip
+			if (header.getRegion() != null)
+				set.add(serviceManager.getRegion(header.getRegion()));
+
 			/*
 			 * In case for a region there is no sequence needs to be agreed on,
 			 * but there is need to release the corresponding suspending
@@ -480,13 +575,18 @@ public class FT extends RequirementsAwareProtocol implements
 			 * this can be optimized since it included unnecessary regions, suhc
 			 * as those do not crash region would suffer one extra notify
 			 * function
+			 * 
+			 * Only on the last agreement, the other regions of the sender may
+			 * be still under consensus before
 			 */
-			Integer[] regionNumbers = regionDistributionManager.get(
-					util.getUUIDFromAddress(((Message) value.getData())
-							.getSrc())).getResponsibleRegions();
-			for (Integer regionNumber : regionNumbers) {
-				// This would auto-get ride of duplicate elements
-				set.add(serviceManager.getRegion(regionNumber));
+			if (header.isLast()) {
+				Integer[] regionNumbers = regionDistributionManager.get(
+						util.getUUIDFromAddress(((Message) value.getData())
+								.getSrc())).getResponsibleRegions();
+				for (Integer regionNumber : regionNumbers) {
+					// This would auto-get ride of duplicate elements
+					set.add(serviceManager.getRegion(regionNumber));
+				}
 			}
 
 			// If this is tolerance of non-sequencer, then release the lock
@@ -506,8 +606,8 @@ public class FT extends RequirementsAwareProtocol implements
 				value.setNextAction(Token.FT_AGREEMENT_RETRANSMISSION);
 
 			value
-					.setDataForNextProtocol(new Triple<Set<Region>, Object, Integer>(
-							set, null, header.getViewId()));
+					.setDataForNextProtocol(new Triple<Set<Region>, Object, AgreementHeader>(
+							set, null, header));
 
 			// The Object can be either boolean or address
 			return doUp(command, value);
@@ -526,22 +626,32 @@ public class FT extends RequirementsAwareProtocol implements
 			final ConsensusHeader header = (ConsensusHeader) message
 					.getHeader();
 
-			Tuple<Integer, List<Sequence>> tuple = collectSequence(header
-					.getTripleArray(), message.getSrc());
+			// A push may arrive before the view is installed on the standby
+			if (header.isPushed()) {
+				for (Triple<Integer, Sequence, Sequence[]> triple : header
+						.getTripleArray())
+					collectionSuspend(triple.getVal1());
+				if (header.getSessionalRegions() != null) {
+					for (Integer shard : header.getSessionalRegions())
+						collectionSuspend(shard);
+				}
+			}
+
+			// The view ID and region of which collection has finished
+			final List<Tuple<Integer, Region>> finished = new LinkedList<Tuple<Integer, Region>>();
+			collectSequence(header.getTripleArray(), message.getSrc(),
+					finished);
 			if (header.getSessionalTripleArray() != null) {
 
-				if (tuple == null)
-					tuple = collectSessionalSequence(header
-							.getSessionalTripleArray(), message.getSrc());
-				else
-					tuple.getVal2().addAll(
-							collectSessionalSequence(
-									header.getSessionalTripleArray(),
-									message.getSrc()).getVal2());
+				// Each shard of session region is collected independently
+				final Integer[] shards = header.getSessionalRegions();
+				for (int i = 0; i < shards.length; i++)
+					collectSessionalSequence(shards[i], header
+							.getSessionalTripleArray()[i], message.getSrc(),
+							finished);
 			}
 
-			if (tuple != null)
-				down(Command.FT_FINAL_BROADCAST, new Token(tuple));
+			broadcastAgreements(finished);
 			return doUp(command, value);
 
 		}
@@ -681,6 +791,8 @@ public class FT extends RequirementsAwareProtocol implements
 
 						uuid = regionDistributionManager
 								.getNextSequencer(regionNumber);
+						if (Environment.ENABLE_WARM_STANDBY)
+							standbyPushes.put(regionNumber, false);
 
 						// If this node willing to become the new sequencer
 						if (UUID_ADDR == uuid) {
@@ -786,6 +898,13 @@ public class FT extends RequirementsAwareProtocol implements
 						.getUUID_ADDR()));
 				return doUp(command, value);
 			}
+			if (Environment.ENABLE_WARM_STANDBY) {
+				@SuppressWarnings("unchecked")
+				final Map<Integer, List<Integer>> allocation = (Map<Integer, List<Integer>>) value
+						.getDataForNextProtocol();
+				pushToStandby(allocation);
+			}
+
 			// Maintain view order, extends to protocol scope
 			regionDistributionSynchronyManager.suspend(node.getUUID_ADDR());
 
@@ -841,13 +960,13 @@ public class FT extends RequirementsAwareProtocol implements
 
 			// Used the instance of region as lock, since consensus aims to
 			// block everything before finish
-			region = service.getRegion();
+			region = getRegion(service, (Sequence) sequence);
 			// This should not sync concurrency but sync between this and the
 			// adding of new message
 
-			list = executedSequences.get(service.getRegionNumber());
+			list = executedSequences.get(region.getRegion());
 			// Set region number on the cached sequence
-			((Sequence) sequence).setRegionNumber(service.getRegionNumber());
+			((Sequence) sequence).setRegionNumber(region.getRegion());
 			// synchronized (list) {
 
 			if (!region.isSequencer(id)) {
@@ -883,11 +1002,12 @@ public class FT extends RequirementsAwareProtocol implements
 				nestedService = trigger.getServices()[vector.getIndex()];
 				// Used the instance of region as lock, since consensus aims to
 				// block everything before finish
-				region = nestedService.getRegion();
+				region = nestedService.getRegion(vector.getSequence()
+						.getSessionId());
 				// This should not sync concurrency but sync between this and
 				// the adding of new message
 
-				number = nestedService.getRegionNumber();
+				number = region.getRegion();
 				list = executedSequences.get(number);
 
 				// synchronized (list) {
@@ -927,17 +1047,14 @@ public class FT extends RequirementsAwareProtocol implements
 	private void releaseExecutedSequenceCache(AtomicService service,
 			Sequence sequence) {
 
+		final long value = sequence.getValue();
 		// Concurrent sequence would be removed by the subsequent sequence
-		if (sequence.getConcurrentno() != null
-				&& sequence.getConcurrentno() == -1)
+		if (Sequence.isConcurrent(value))
 			return;
 
-		SequenceLinkedList list = executedSequences.get(service
-				.getRegionNumber());
-		/*
-		 * We use iteration here, can be optimized
-		 */
-		if (sequence.getConcurrentno() == null)
+		SequenceLinkedList list = executedSequences.get(getRegion(service,
+				sequence).getRegion());
+		if (Sequence.concurrentno(value) == Sequence.NONE)
 			list.remove(sequence);
 		else
 			list.removeWithConcurrentSequences(sequence);
@@ -960,17 +1077,31 @@ public class FT extends RequirementsAwareProtocol implements
 		}
 	}
 
+	/*
+	 * The shard of session region is decided by the session ID of sequence,
+	 * while the partition of region is kept as its region number
+	 */
+	private Region getRegion(AtomicService service, Sequence sequence) {
+		if (service.isPartitioned() && sequence.getRegionNumber() != null)
+			return serviceManager.getRegion(sequence.getRegionNumber());
+
+		return service.getRegion(sequence.getSessionId());
+	}
+
 	private Object createAssignedSequenceCache(int uuid, Object sequence) {
 
 		if (sequence == null)
 			return null;
 
 		SequenceLinkedList list = null;
-		if (assignedSequences.containsKey(uuid))
-			list = assignedSequences.get(uuid);
-		else {
-			list = new SequenceLinkedList();
-			assignedSequences.put(uuid, list);
+		// Requests may be coordinated by more than one thread
+		synchronized (assignedSequences) {
+			if (assignedSequences.containsKey(uuid))
+				list = assignedSequences.get(uuid);
+			else {
+				list = new SequenceLinkedList();
+				assignedSequences.put(uuid, list);
+			}
 		}
 
 		list.add(sequence);
@@ -983,18 +1114,17 @@ public class FT extends RequirementsAwareProtocol implements
 		return sequence;
 	}
 
-	private void releaseAssignedSequenceCache(int uuid, AtomicService service,
-			Sequence sequence) {
+	private void releaseAssignedSequenceCache(int uuid, String sessionId,
+			AtomicService service, Sequence sequence) {
 
-		if (!service.isSequencer(UUID_ADDR))
+		if (!service.isSequencer(sessionId, UUID_ADDR))
 			return;
 
 		SequenceLinkedList list = assignedSequences.get(uuid);
 
 		/*
-		 * We use iteration here, can be optimized this may be null if this is
-		 * assigned by original sequencer but arrive right after the region was
-		 * moved to here
+		 * This may be null if this is assigned by original sequencer but arrive
+		 * right after the region was moved to here
 		 */
 		if (list != null)
 			list.remove(sequence);
@@ -1005,11 +1135,12 @@ public class FT extends RequirementsAwareProtocol implements
 		}
 	}
 
-	private void releaseAssignedSequenceCache(int uuid,
+	private void releaseAssignedSequenceCache(int uuid, String sessionId,
 			AtomicService[] nestedService, Sequence[] sequences) {
 
 		for (int i = 0; i < nestedService.length; i++) {
-			releaseAssignedSequenceCache(uuid, nestedService[i], sequences[i]);
+			releaseAssignedSequenceCache(uuid, sessionId, nestedService[i],
+					sequences[i]);
 		}
 		if (logger.isDebugEnabled()) {
 			logger.debug("Sequencer removes assigned seqeunce cache for node: "
@@ -1026,13 +1157,85 @@ public class FT extends RequirementsAwareProtocol implements
 
 	}
 
+	/*
+	 * Does not remove, since they would be removed when receive the last
+	 * broadcast which triggered by this node itself (but the last broadcast
+	 * should be suspended during this consensus)
+	 */
+	private ConsensusHeader createConsensusHeader(Integer[] regions) {
+
+		final ConsensusHeader header = new ConsensusHeader(regions);
+		SequenceLinkedList list = null;
+		for (Integer number : regions) {
+			list = executedSequences.get(number);
+			if (logger.isDebugEnabled()) {
+				logger.debug("Receive region: " + number
+						+ ", now extract the agreed sequences sent by this node");
+			}
+			header.addTripleValue(serviceManager.getRegion(number), list
+					.getAllForConsensus());
+		}
+
+		return header;
+	}
+
+	/**
+	 * Push the sequences of the regions of crashed sequencer to their next
+	 * sequencer, as soon as the view is installed. The next sequencer is
+	 * known by every node, thus it stands by with the sequences it has
+	 * received as a replica, and only the gap is closed by the pushes rather
+	 * than by a consensus request and the replies.
+	 * 
+	 * @param allocation
+	 *            <Node ID, list of assigned regions>
+	 */
+	private void pushToStandby(Map<Integer, List<Integer>> allocation) {
+
+		List<Integer> regions = null;
+		Object address = null;
+		for (Map.Entry<Integer, List<Integer>> entry : allocation.entrySet()) {
+
+			// Left to the reply to consensus request
+			if ((address = regionDistributionManager.getAddress(entry
+					.getKey())) == null)
+				continue;
+
+			regions = new ArrayList<Integer>(entry.getValue().size());
+			for (Integer number : entry.getValue()) {
+				if (standbyPushes.replace(number, false, true))
+					regions.add(number);
+			}
+
+			if (regions.size() == 0)
+				continue;
+
+			if (logger.isTraceEnabled()) {
+				trace(logger, "SUSPECT_NOTIFY", "Push sequences of "
+						+ regions.size() + " regions to the standby: "
+						+ entry.getKey());
+			}
+
+			final ConsensusHeader header = createConsensusHeader(regions
+					.toArray(new Integer[regions.size()]));
+			header.setPushed(true);
+			try {
+				adaptor.unicast(new Message(header, null, false), address);
+			} catch (Throwable t) {
+				// The standby crashes as well, its regions are re-elected
+				logger.error("Push to standby " + entry.getKey() + " failed",
+						t);
+				for (Integer number : regions)
+					standbyPushes.remove(number);
+			}
+		}
+	}
+
 	private Object crashDuringConsensus(int id) {
 
 		final Set<Map.Entry<Integer, Tuple<Integer, Region>>> set = collectedSequences
 				.entrySet();
 
-		List<Sequence> list = null;
-		Integer viewId = null;
+		final List<Tuple<Integer, Region>> finished = new LinkedList<Tuple<Integer, Region>>();
 		Region region = null;
 		for (Map.Entry<Integer, Tuple<Integer, Region>> entry : set) {
 
@@ -1048,8 +1251,6 @@ public class FT extends RequirementsAwareProtocol implements
 				if (region.isSequenceCollectionFinished()) {
 
 					Tuple<Integer, Region> tuple = collectedSequences.remove(entry.getKey());
-					if(tuple != null)
-					  viewId = tuple.getVal1();
 					if (logger.isDebugEnabled()) {
 						logger
 								.debug("The sent sequences of existing correct nodes for region: "
@@ -1057,38 +1258,28 @@ public class FT extends RequirementsAwareProtocol implements
 										+ " has been collected completely");
 					}
 
-					// Unblock acceptance of sequence request, this need FIFO
-					// property
-					// synchronized(region){
-					// region.setSequencerConsensus(false);
-					// }
 					// This would trigger a broadcast
-					if (list == null)
-						list = new LinkedList<Sequence>();
-					list.addAll(region.extractSkippedSequences());
+					if (tuple != null)
+						finished.add(tuple);
 				}
 
 			}
 
-			if (list != null)
-				down(Command.FT_FINAL_BROADCAST, new Token(
-						new Tuple<Integer, List<Sequence>>(viewId, list)));
-
 		}
 
+		broadcastAgreements(finished);
 		return null;
 
 	}
 
-	private Tuple<Integer, List<Sequence>> collectSequence(
-			Triple<Integer, Sequence, Sequence[]>[] triples, Object address) {
+	private void collectSequence(
+			Triple<Integer, Sequence, Sequence[]>[] triples, Object address,
+			List<Tuple<Integer, Region>> finished) {
 
 		Region region = null;
 		Sequence seq = null;
 
-		List<Sequence> list = null;
 		int uuid = util.getUUIDFromAddress(address);
-		Integer viewId = null;
 		// Running consensus process
 		for (Triple<Integer, Sequence, Sequence[]> triple : triples) {
 
@@ -1116,55 +1307,41 @@ public class FT extends RequirementsAwareProtocol implements
 
 				collectionSuspend(triple.getVal1());
 				Tuple<Integer, Region> tuple = collectedSequences.remove(triple.getVal1());
-				if(tuple != null)
-				  viewId = tuple.getVal1();
-				
 
 				if (logger.isTraceEnabled()) {
 					trace(logger, "FT_COLLECT", "Sequences for region: "
 							+ region + " has been collected completetly");
 				}
-				// Unblock acceptance of sequence request, this need FIFO
-				// property
-				// synchronized(region){
-				// region.setSequencerConsensus(false);
-				// }
 				// This would trigger a broadcast
-				if (list == null)
-					list = new LinkedList<Sequence>();
-				list.addAll(region.extractSkippedSequences());
+				if (tuple != null)
+					finished.add(tuple);
 
 			}
 
 		}
 
-		if (list != null)
-			return new Tuple<Integer, List<Sequence>>(viewId, list);
-
-		return null;
-
 	}
 
-	private Tuple<Integer, List<Sequence>> collectSessionalSequence(
-			Triple<String, Sequence, Sequence[]>[] triples, Object address) {
+	private void collectSessionalSequence(Integer shard,
+			Triple<String, Sequence, Sequence[]>[] triples, Object address,
+			List<Tuple<Integer, Region>> finished) {
 
 		Region region = null;
 		Sequence seq = null;
 
-		List<Sequence> list = null;
+		// The shard is agreed on once, by the first session that finishes it
+		Tuple<Integer, Region> collected = null;
+		Tuple<Integer, Region> tuple = null;
 		int uuid = util.getUUIDFromAddress(address);
-		Integer viewId = null;
 		// Running consensus process
 		for (Triple<String, Sequence, Sequence[]> triple : triples) {
 
-			if (collectedSequences.containsKey(SessionRegion.SESSION_REGION))
-				region = collectedSequences.get(SessionRegion.SESSION_REGION)
-						.getVal2();
+			if (collectedSequences.containsKey(shard))
+				region = collectedSequences.get(shard).getVal2();
 			// Only for join consensus
 			else
-				collectedSequences.put(SessionRegion.SESSION_REGION,
-						new Tuple<Integer, Region>(null,
-								region = serviceManager.getSessionRegion()));
+				collectedSequences.put(shard, new Tuple<Integer, Region>(null,
+						region = serviceManager.getRegion(shard)));
 
 			seq = triple.getVal2();
 			region.addCollectedSequences(triple.getVal1(), uuid, triple
@@ -1181,53 +1358,86 @@ public class FT extends RequirementsAwareProtocol implements
 			// If all tokens have been collected
 			if (region.isSequenceCollectionFinished()) {
 
-				collectionSuspend(SessionRegion.SESSION_REGION);
-				viewId = collectedSequences.remove(SessionRegion.SESSION_REGION).getVal1();
-			
+				collectionSuspend(shard);
+				tuple = collectedSequences.remove(shard);
 
 				if (logger.isTraceEnabled()) {
 					trace(logger, "FT_COLLECT",
 							"Sequences for session region: " + region
 									+ " has been collected completetly");
 				}
-				// Unblock acceptance of sequence request, this need FIFO
-				// property
-				// synchronized(region){
-				// region.setSequencerConsensus(false);
-				// }
 				// This would trigger a broadcast
-				if (list == null)
-					list = new LinkedList<Sequence>();
-				list.addAll(region.extractSkippedSequences());
+				if (collected == null)
+					collected = tuple;
 
 			}
 
 		}
 
-		if (list == null && triples.length == 0) {
+		if (collected == null && triples.length == 0) {
 
-			region = serviceManager.getSessionRegion();
+			if (collectedSequences.containsKey(shard))
+				region = collectedSequences.get(shard).getVal2();
+			// Only for join consensus, the shard may have no session yet
+			else
+				collectedSequences.put(shard, new Tuple<Integer, Region>(null,
+						region = serviceManager.getRegion(shard)));
 			region.isContainInView(uuid);
 			if (region.isSequenceCollectionFinished()) {
 				// Ensure the installing of view of this node can be complete before process collection
-				collectionSuspend(SessionRegion.SESSION_REGION);
-				viewId = collectedSequences
-						.remove(SessionRegion.SESSION_REGION).getVal1();
+				collectionSuspend(shard);
+				collected = collectedSequences.remove(shard);
 
 				if (logger.isTraceEnabled()) {
 					trace(logger, "FT_COLLECT",
 							"Sequences for session region: " + region
 									+ " has been collected completetly");
 				}
-				return new Tuple<Integer, List<Sequence>>(viewId,
-						new LinkedList<Sequence>());
 			}
 		}
 
-		if (list != null)
-			return new Tuple<Integer, List<Sequence>>(viewId, list);
+		if (collected != null)
+			finished.add(collected);
+	}
 
-		return null;
+	/*
+	 * Each region is agreed on as soon as its collection has finished, so
+	 * that the requests of the region are retransmitted and allowed without
+	 * waiting for the other regions under consensus. The agreement of the
+	 * last one of the view releases the view changing.
+	 */
+	private void broadcastAgreements(List<Tuple<Integer, Region>> finished) {
+
+		Tuple<Integer, Region> tuple = null;
+		for (int i = 0; i < finished.size(); i++) {
+			tuple = finished.get(i);
+			down(Command.FT_FINAL_BROADCAST, new Token(
+					new Triple<Integer, Region, Boolean>(tuple.getVal1(), tuple
+							.getVal2(), isLastAgreement(finished, i))));
+		}
+	}
+
+	private boolean isLastAgreement(List<Tuple<Integer, Region>> finished,
+			int index) {
+
+		final Integer viewId = finished.get(index).getVal1();
+		for (int i = index + 1; i < finished.size(); i++) {
+			if (isSameView(viewId, finished.get(i).getVal1()))
+				return false;
+		}
+
+		// The collection of the view is still running for other regions
+		for (Tuple<Integer, Region> tuple : collectedSequences.values()) {
+			if (isSameView(viewId, tuple.getVal1()))
+				return false;
+		}
+
+		return true;
+	}
+
+	// The view ID is null for join
+	private boolean isSameView(Integer viewId, Integer other) {
+		return viewId == null ? other == null : viewId.equals(other);
 	}
 
 	private void collectionSuspend(Integer regionNumber) {
@@ -1296,7 +1506,7 @@ public class FT extends RequirementsAwareProtocol implements
 	}
 
 	@Override
-	public void setCachedSentMessages(Map<String, Message> sentMessages) {
+	public void setCachedSentMessages(SentMessageTable sentMessages) {
 		this.sentMessages = sentMessages;
 
 	}
@@ -76,7 +76,7 @@ public class FTManager extends AbstractProtocolManager {
     			logger.trace("Receive consensus agreement and retransmission needed");
     		}
     		
-        	((Triple<Set<Region>, Object, Integer>)token.getDataForNextProtocol()).setVal2(message.getSrc());
+        	((Triple<Set<Region>, Object, AgreementHeader>)token.getDataForNextProtocol()).setVal2(message.getSrc());
     		return protocolStack.down(Command.FT_RETRANSMIT, new Token(token.getDataForNextProtocol()));
     		
     		
@@ -0,0 +1,143 @@
+package org.ssor.util;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of direct buffers, which are bucketed by size classes of power of
+ * two, so that the buffers used for sending and receiving are reused rather
+ * than allocated per message. A buffer is taken by {@link #acquire(int)} and
+ * must be given back by {@link #release(ByteBuffer)} once it is no longer
+ * accessed, a buffer that is never released is simply reclaimed by GC.
+ *
+ * The request that is larger than the largest size class is served by a heap
+ * buffer which is not pooled.
+ *
+ * @author Tao Chen
+ *
+ */
+public class BufferPool {
+
+	// The smallest size class is 256 bytes
+	private static final int MIN_SHIFT = 8;
+
+	private final int maxShift;
+	// Maximum number of idle buffers per size class
+	private final int maxIdle;
+
+	// Index = shift - MIN_SHIFT
+	private final Queue<ByteBuffer>[] buckets;
+	private final AtomicInteger[] idle;
+
+	private final AtomicLong allocated = new AtomicLong();
+	private final AtomicLong reused = new AtomicLong();
+
+	/**
+	 * @param maxBufferSize
+	 *            the largest buffer that is pooled, rounded up to power of two
+	 * @param maxIdle
+	 *            maximum number of idle buffers kept per size class
+	 */
+	public BufferPool(int maxBufferSize, int maxIdle) {
+		this.maxShift = Math.max(MIN_SHIFT, shiftOf(maxBufferSize));
+		this.maxIdle = maxIdle;
+		buckets = newBuckets(maxShift - MIN_SHIFT + 1);
+		idle = new AtomicInteger[buckets.length];
+		for (int i = 0; i < buckets.length; i++) {
+			buckets[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+			idle[i] = new AtomicInteger();
+		}
+	}
+
+	/**
+	 * @param size
+	 *            the required capacity
+	 * @return a cleared buffer whose capacity is at least the given size
+	 */
+	public ByteBuffer acquire(int size) {
+
+		final int shift = Math.max(MIN_SHIFT, shiftOf(size));
+		if (shift > maxShift) {
+			allocated.incrementAndGet();
+			return ByteBuffer.allocate(size);
+		}
+
+		final ByteBuffer buffer = buckets[shift - MIN_SHIFT].poll();
+		if (buffer == null) {
+			allocated.incrementAndGet();
+			return ByteBuffer.allocateDirect(1 << shift);
+		}
+
+		idle[shift - MIN_SHIFT].decrementAndGet();
+		reused.incrementAndGet();
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Give the buffer back, it must not be accessed afterwards.
+	 *
+	 * @param buffer
+	 *            the buffer that was acquired from this pool
+	 */
+	public void release(ByteBuffer buffer) {
+
+		if (buffer == null || !buffer.isDirect())
+			return;
+
+		final int shift = shiftOf(buffer.capacity());
+		if (shift < MIN_SHIFT || shift > maxShift
+				|| buffer.capacity() != 1 << shift)
+			return;
+
+		// Let the surplus to be reclaimed by GC
+		if (idle[shift - MIN_SHIFT].incrementAndGet() > maxIdle) {
+			idle[shift - MIN_SHIFT].decrementAndGet();
+			return;
+		}
+
+		buckets[shift - MIN_SHIFT].offer(buffer);
+	}
+
+	/**
+	 * @return number of buffers that have been allocated
+	 */
+	public long getAllocatedCount() {
+		return allocated.get();
+	}
+
+	/**
+	 * @return number of acquisitions that have been served by pooled buffers
+	 */
+	public long getReusedCount() {
+		return reused.get();
+	}
+
+	/**
+	 * @return number of idle buffers that are kept in the pool
+	 */
+	public int getIdleCount() {
+		int count = 0;
+		for (AtomicInteger number : idle)
+			count += number.get();
+		return count;
+	}
+
+	public String toString() {
+		return "(allocated: " + getAllocatedCount() + ", reused: "
+				+ getReusedCount() + ", idle: " + getIdleCount() + ")";
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Queue<ByteBuffer>[] newBuckets(int length) {
+		return (Queue<ByteBuffer>[]) new Queue<?>[length];
+	}
+
+	// The smallest shift that 1 << shift >= size
+	private static int shiftOf(int size) {
+		return size <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(size - 1);
+	}
+}
@@ -0,0 +1,87 @@
+package org.ssor.util;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Output stream that writes into a buffer acquired from {@link BufferPool},
+ * the buffer is replaced by a larger one from the same pool when it is full.
+ * The stream can be reused by {@link #reset(BufferPool, int)}, after the
+ * written buffer has been taken by {@link #detach()}.
+ *
+ * @author Tao Chen
+ *
+ */
+public class ByteBufferOutputStream extends OutputStream {
+
+	private BufferPool pool;
+
+	private ByteBuffer buffer;
+
+	public ByteBufferOutputStream() {
+		super();
+	}
+
+	public ByteBufferOutputStream(BufferPool pool, int size) {
+		super();
+		reset(pool, size);
+	}
+
+	/**
+	 * Start writing into a new buffer, the previous one (if not detached) is
+	 * released
+	 *
+	 * @param pool
+	 *            the pool
+	 * @param size
+	 *            the expected size
+	 */
+	public void reset(BufferPool pool, int size) {
+		if (buffer != null)
+			this.pool.release(buffer);
+		this.pool = pool;
+		buffer = pool.acquire(size);
+	}
+
+	@Override
+	public void write(int b) {
+		ensure(1);
+		buffer.put((byte) b);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) {
+		ensure(len);
+		buffer.put(b, off, len);
+	}
+
+	/**
+	 * @return number of bytes that have been written
+	 */
+	public int size() {
+		return buffer.position();
+	}
+
+	/**
+	 * @return the buffer that has been written, which is flipped, the caller
+	 *         is responsible for releasing it to the pool
+	 */
+	public ByteBuffer detach() {
+		final ByteBuffer written = buffer;
+		buffer = null;
+		written.flip();
+		return written;
+	}
+
+	private void ensure(int length) {
+		if (buffer.remaining() >= length)
+			return;
+
+		final ByteBuffer larger = pool.acquire(Math.max(
+				buffer.capacity() * 2, buffer.position() + length));
+		buffer.flip();
+		larger.put(buffer);
+		pool.release(buffer);
+		buffer = larger;
+	}
+}
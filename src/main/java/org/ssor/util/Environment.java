@@ -18,6 +18,61 @@ public class Environment {
 	// Indicate if it is allow to use session level FIFO communication (used by GCM)
 	// to determine on different sessions.
 	public static boolean ENABLE_CHANGE_FIFO = false;
+	
+	// Indicate if the sequencer coordinates the pending requests of a region
+	// in batch, this trades a thread hand-off for less locking and unicasts
+	// under high load.
+	public static boolean ENABLE_BATCH_COORDINATION = false;
+	
+	// Indicate if the requester coordinates in-process when it is the
+	// sequencer of the requested service, rather than unicast to itself. It
+	// falls back to the unicast while a view change is in progress.
+	public static boolean ENABLE_LOCAL_COORDINATION = true;
+	
+	// Indicate if the sequencer leases a block of sequences to the requester
+	// that dominates a region, thus the requester can order its requests
+	// without coordination.
+	public static boolean ENABLE_SEQUENCE_LEASING = false;
+	// Number of sequences per lease
+	public static int LEASE_SIZE = 16;
+	// Number of consecutive requests from the same node that trigger a lease
+	public static int LEASE_THRESHOLD = 8;
+	// The unused sequences are released after the lease has been idle for
+	// this period, in milliseconds
+	public static long LEASE_TIMEOUT = 50;
+
+	// Indicate if the next sequencer of a region takes over as a warm standby
+	// on the crash of the sequencer. It keeps the sequences it has received
+	// as a replica, and the other nodes push theirs to it once the view is
+	// installed, rather than wait for its consensus request. This must be the
+	// same on all nodes.
+	public static boolean ENABLE_WARM_STANDBY = false;
+
+	// Number of threads that deliver the messages which arrive out of order,
+	// once they become deliverable
+	public static int DELIVERY_THREADS = Runtime.getRuntime()
+			.availableProcessors() * 2;
+
+	// Number of shards of the session region, the sessions are partitioned
+	// by the hash of session ID and each shard is elected independently, so
+	// that the session level sequencing can be spread across nodes. This must
+	// be the same on all nodes and be set before the service manager created.
+	public static int SESSION_SHARDS = 1;
+
+	// The outstanding request sent by this node expires if it is not sent to
+	// a sequencer within this period, and the caller fails, in milliseconds, 0
+	// means never expire
+	public static long SENT_MESSAGE_TIMEOUT = 5 * 60 * 1000;
+	// Granularity of the expiry of sent messages, in milliseconds
+	public static long SENT_MESSAGE_EXPIRY_TICK = 100;
+	// The estimated bytes of outstanding requests that this node may hold,
+	// the new requests fail once it is exceeded, 0 means unbounded
+	public static long SENT_MESSAGE_CAPACITY = 64 * 1024 * 1024;
+
+	// Indicate if the arguments of request are written by the codec compiled
+	// from the signature of service, rather than tagged one by one. This must
+	// be the same on all nodes.
+	public static boolean ENABLE_SIGNATURE_CODEC = true;
 
 	private static final Map<String, Group> globalContext = CollectionFacade.getConcurrentHashMap();
 	
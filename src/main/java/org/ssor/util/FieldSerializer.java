@@ -0,0 +1,252 @@
+package org.ssor.util;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.ssor.exception.ConfigurationException;
+
+/**
+ * The built-in {@link Serializer}, which writes the non-static and
+ * non-transient fields of an object one after another, without any class
+ * descriptor. The fields of superclasses come first, and the fields of a class
+ * are ordered by name, thus all nodes agree on the layout as long as they have
+ * the same class.
+ *
+ * The accessors of each class are resolved once and cached, the primitive
+ * fields are read and written without boxing, and the other fields are
+ * written as arbitrary objects. The class must have a no-arg constructor,
+ * which may be private.
+ *
+ * Only acyclic object graphs are supported, an object that is reached again
+ * while it is being written fails the write. An object that is shared by
+ * several fields is written once per reference, thus it is read as copies.
+ *
+ * @author Tao Chen
+ *
+ */
+public class FieldSerializer implements Serializer {
+
+	private static final int OBJECT = 0;
+	private static final int BOOLEAN = 1;
+	private static final int BYTE = 2;
+	private static final int CHAR = 3;
+	private static final int DOUBLE = 4;
+	private static final int FLOAT = 5;
+	private static final int INT = 6;
+	private static final int LONG = 7;
+	private static final int SHORT = 8;
+	private static final int STRING = 9;
+
+	// The objects that are being written by the current thread, used to
+	// detect cycles
+	private static final ThreadLocal<Set<Object>> writing = new ThreadLocal<Set<Object>>() {
+
+		@Override
+		protected Set<Object> initialValue() {
+			return Collections
+					.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+		}
+
+	};
+
+	private final ConcurrentMap<Class<?>, ClassAccessor> accessors = new ConcurrentHashMap<Class<?>, ClassAccessor>();
+
+	@Override
+	public void writeTo(Object object, DataOutputStream out) throws Exception {
+		final Set<Object> path = writing.get();
+		if (!path.add(object))
+			throw new IOException("Cyclic reference to object of "
+					+ object.getClass().getName()
+					+ ", which can not be serialized by fields");
+
+		try {
+			for (FieldAccessor accessor : getAccessor(object.getClass()).fields)
+				accessor.write(object, out);
+		} finally {
+			path.remove(object);
+		}
+	}
+
+	@Override
+	public Object readFrom(Class<?> clazz, DataInputStream in)
+			throws Exception {
+		final ClassAccessor accessor = getAccessor(clazz);
+		final Object object = accessor.constructor.newInstance();
+		for (FieldAccessor field : accessor.fields)
+			field.read(object, in);
+		return object;
+	}
+
+	private ClassAccessor getAccessor(Class<?> clazz) {
+		ClassAccessor accessor = accessors.get(clazz);
+		if (accessor == null) {
+			final ClassAccessor existing = accessors.putIfAbsent(clazz,
+					accessor = new ClassAccessor(clazz));
+			if (existing != null)
+				accessor = existing;
+		}
+
+		return accessor;
+	}
+
+	private static class ClassAccessor {
+
+		private final Constructor<?> constructor;
+		private final FieldAccessor[] fields;
+
+		public ClassAccessor(Class<?> clazz) {
+
+			try {
+				constructor = clazz.getDeclaredConstructor();
+				constructor.setAccessible(true);
+			} catch (NoSuchMethodException e) {
+				throw new ConfigurationException("Class " + clazz.getName()
+						+ " can not be serialized by fields, as it has no no-arg constructor");
+			}
+
+			final LinkedList<Class<?>> hierarchy = new LinkedList<Class<?>>();
+			for (Class<?> c = clazz; c != null && c != Object.class; c = c
+					.getSuperclass())
+				hierarchy.addFirst(c);
+
+			final List<FieldAccessor> list = new ArrayList<FieldAccessor>();
+			Field[] declared = null;
+			for (Class<?> c : hierarchy) {
+				declared = c.getDeclaredFields();
+				Arrays.sort(declared, new Comparator<Field>() {
+
+					@Override
+					public int compare(Field f1, Field f2) {
+						return f1.getName().compareTo(f2.getName());
+					}
+
+				});
+
+				for (Field field : declared) {
+					if ((field.getModifiers() & (Modifier.STATIC | Modifier.TRANSIENT)) != 0)
+						continue;
+					field.setAccessible(true);
+					list.add(new FieldAccessor(field));
+				}
+			}
+
+			fields = list.toArray(new FieldAccessor[list.size()]);
+		}
+	}
+
+	private static class FieldAccessor {
+
+		private final Field field;
+		private final int type;
+
+		public FieldAccessor(Field field) {
+			this.field = field;
+			this.type = typeOf(field.getType());
+		}
+
+		public void write(Object object, DataOutputStream out)
+				throws Exception {
+			switch (type) {
+			case BOOLEAN:
+				out.writeBoolean(field.getBoolean(object));
+				break;
+			case BYTE:
+				out.writeByte(field.getByte(object));
+				break;
+			case CHAR:
+				out.writeChar(field.getChar(object));
+				break;
+			case DOUBLE:
+				out.writeDouble(field.getDouble(object));
+				break;
+			case FLOAT:
+				out.writeFloat(field.getFloat(object));
+				break;
+			case INT:
+				out.writeInt(field.getInt(object));
+				break;
+			case LONG:
+				out.writeLong(field.getLong(object));
+				break;
+			case SHORT:
+				out.writeShort(field.getShort(object));
+				break;
+			case STRING:
+				Util.writeTypedObject(out, field.get(object));
+				break;
+			default:
+				Util.writeArbitraryObject(out, field.get(object));
+			}
+		}
+
+		public void read(Object object, DataInputStream in) throws Exception {
+			switch (type) {
+			case BOOLEAN:
+				field.setBoolean(object, in.readBoolean());
+				break;
+			case BYTE:
+				field.setByte(object, in.readByte());
+				break;
+			case CHAR:
+				field.setChar(object, in.readChar());
+				break;
+			case DOUBLE:
+				field.setDouble(object, in.readDouble());
+				break;
+			case FLOAT:
+				field.setFloat(object, in.readFloat());
+				break;
+			case INT:
+				field.setInt(object, in.readInt());
+				break;
+			case LONG:
+				field.setLong(object, in.readLong());
+				break;
+			case SHORT:
+				field.setShort(object, in.readShort());
+				break;
+			case STRING:
+				field.set(object, Util.readTypedObject(in));
+				break;
+			default:
+				field.set(object, Util.readArbitraryObject(in));
+			}
+		}
+
+		private static int typeOf(Class<?> clazz) {
+			if (clazz == boolean.class)
+				return BOOLEAN;
+			if (clazz == byte.class)
+				return BYTE;
+			if (clazz == char.class)
+				return CHAR;
+			if (clazz == double.class)
+				return DOUBLE;
+			if (clazz == float.class)
+				return FLOAT;
+			if (clazz == int.class)
+				return INT;
+			if (clazz == long.class)
+				return LONG;
+			if (clazz == short.class)
+				return SHORT;
+			if (clazz == String.class)
+				return STRING;
+			return OBJECT;
+		}
+	}
+}
@@ -213,6 +213,13 @@ public class Group implements ManagerBus, RequirementsAwareAdaptor,
 
 	}
 
+	/**
+	 * Stop the protocols, this is called once the adaptor closes
+	 */
+	public void stop() {
+		protocolStack.stop();
+	}
+
 	public ProtocolStack getProtocolStack() {
 		return protocolStack;
 	}
@@ -326,9 +333,10 @@ public class Group implements ManagerBus, RequirementsAwareAdaptor,
 	public void setState(String serviceName, String sessionId, Sequence sequence) {
 
 		State state = null;
-		if (sessionId == null)
+		// The key is the conflict key if the region is partitioned
+		if (!serviceManager.get(serviceName).isSessional())
 			state = states.get(serviceManager.get(serviceName)
-					.getRegionNumber());
+					.getRegionNumber(sessionId));
 		else
 			state = sessionalStates.get(sessionId);
 		System.out.print("State:" + state + "msg region: " + sequence
@@ -379,9 +387,10 @@ public class Group implements ManagerBus, RequirementsAwareAdaptor,
 
 		Set<Map.Entry<String, State>> sessionalSet = sessionalStates.entrySet();
 		for (Map.Entry<String, State> entry : sessionalSet) {
-			serviceManager.getSessionRegion().setState(entry.getKey(),
-					entry.getValue().getSequence());
-			serviceManager.getSessionRegion().trigger(entry.getKey());
+			serviceManager.getSessionRegion(entry.getKey()).setState(
+					entry.getKey(), entry.getValue().getSequence());
+			serviceManager.getSessionRegion(entry.getKey()).trigger(
+					entry.getKey());
 		}
 
 		states.clear();
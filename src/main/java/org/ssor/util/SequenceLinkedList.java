@@ -1,11 +1,14 @@
 package org.ssor.util;
 
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Queue;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import org.ssor.CollectionFacade;
 import org.ssor.Sequence;
 import org.ssor.protocol.replication.abcast.SequenceVector;
 
@@ -13,15 +16,20 @@ import org.ssor.protocol.replication.abcast.SequenceVector;
  * A wrapper of sequence queue, simple concurrent tasks, the sequences holding
  * here may or may not belong to the same region
  * 
- * This is mainly used when cache of sequence is needed
+ * This is mainly used when cache of sequence is needed, the sequences are
+ * indexed by session ID and seqno, so that a sequence and the concurrent
+ * sequences ahead of it can be released in constant time.
  * 
  * @author Tao Chen
  * 
  */
-@SuppressWarnings("unchecked")
 public class SequenceLinkedList {
 
-	Queue<Sequence> queue = CollectionFacade.getConcurrentQueue();
+	// The sequences that share the session ID and seqno, that is the
+	// sequential one and the concurrent ones, key = (session ID, seqno)
+	private final ConcurrentMap<Key, Bucket> buckets = new ConcurrentHashMap<Key, Bucket>();
+
+	private final AtomicInteger size = new AtomicInteger();
 
 	/**
 	 * Add sequence, the incoming parameter can be array of sequence,
@@ -33,20 +41,44 @@ public class SequenceLinkedList {
 	public void add(Object object) {
 		if (object instanceof Sequence) {
 
-			queue.add((Sequence) object);
+			add((Sequence) object);
 
 		} else if (object instanceof Sequence[]) {
 
 			final Sequence[] sequences = (Sequence[]) object;
 			for (Sequence seq : sequences)
-				queue.add(seq);
+				add(seq);
 
 		} else {
 			final SequenceVector[] vectors = (SequenceVector[]) object;
 
 			for (SequenceVector vector : vectors)
-				queue.add(vector.getSequence());
+				add(vector.getSequence());
+
+		}
+	}
+
+	private void add(Sequence sequence) {
+		final Key key = new Key(sequence.getSessionId(), Sequence
+				.seqno(sequence.getValue()));
+		Bucket bucket = null;
+		Bucket existing = null;
+		for (;;) {
+			if ((bucket = buckets.get(key)) == null
+					&& (existing = buckets.putIfAbsent(key,
+							bucket = new Bucket())) != null)
+				bucket = existing;
+
+			synchronized (bucket) {
+				// It has been emptied and unlinked, retry on a new one
+				if (bucket.isRemoved)
+					continue;
+
+				bucket.add(sequence);
+			}
 
+			size.incrementAndGet();
+			return;
 		}
 	}
 
@@ -58,19 +90,22 @@ public class SequenceLinkedList {
 	 */
 	public void remove(Sequence sequence) {
 
-		/*
-		 * We use iteration here, can be optimized
-		 */
-		Iterator<Sequence> itr = queue.iterator();
-		Sequence seq = null;
-		while (itr.hasNext()) {
-			seq = itr.next();
-			if (seq.isEquals(sequence)) {
-				queue.remove(seq);
-				
-				break;
+		final long value = sequence.getValue();
+		final Key key = new Key(sequence.getSessionId(), Sequence.seqno(value));
+		final Bucket bucket = buckets.get(key);
+		if (bucket == null)
+			return;
+
+		synchronized (bucket) {
+			for (int i = 0; i < bucket.size(); i++) {
+				if (bucket.get(i).getValue() == value) {
+					bucket.remove(i);
+					size.decrementAndGet();
+					break;
+				}
 			}
 
+			unlinkIfEmpty(key, bucket);
 		}
 
 	}
@@ -85,35 +120,66 @@ public class SequenceLinkedList {
 	 */
 	public void removeWithConcurrentSequences(Sequence sequence) {
 
-		/*
-		 * We use iteration here, can be optimized
-		 */
-		Iterator<Sequence> itr = queue.iterator();
-		Sequence seq = null;
-		while (itr.hasNext()) {
-			seq = itr.next();
-			if (seq.isEquals(sequence)
-					|| (seq.getConcurrentno() != null && (seq
-							.getConcurrentno() == -1
-							&& seq.getSeqno() + 1 == sequence
-									.getSeqno() && sequence
-							.isSessionEquals(seq)))) {
-
-				queue.remove(seq);
-
+		remove(sequence);
+
+		final Key key = new Key(sequence.getSessionId(), Sequence
+				.seqno(sequence.getValue()) - 1);
+		final Bucket bucket = buckets.get(key);
+		if (bucket == null)
+			return;
+
+		synchronized (bucket) {
+			final Iterator<Sequence> itr = bucket.iterator();
+			while (itr.hasNext()) {
+				if (Sequence.isConcurrent(itr.next().getValue())) {
+					itr.remove();
+					size.decrementAndGet();
+				}
 			}
 
+			unlinkIfEmpty(key, bucket);
 		}
 
 	}
 
+	/**
+	 * Must be called with the lock of bucket held.
+	 */
+	private void unlinkIfEmpty(Key key, Bucket bucket) {
+		if (bucket.isEmpty()) {
+			bucket.isRemoved = true;
+			buckets.remove(key, bucket);
+		}
+	}
+
 	public int size() {
-		return queue.size();
+		return size.get();
 
 	}
 
+	/**
+	 * The sequences are not polled in the order of adding, since they are
+	 * indexed by hash. The only caller drains the list into the skipped
+	 * sequences of regions, which are ordered by sequence anyway.
+	 * 
+	 * @return any of the sequences, null if this is empty
+	 */
 	public Sequence poll() {
-		return queue.poll();
+		Sequence seq = null;
+		for (Map.Entry<Key, Bucket> entry : buckets.entrySet()) {
+			synchronized (entry.getValue()) {
+				if (!entry.getValue().isEmpty()) {
+					seq = entry.getValue().remove(0);
+					size.decrementAndGet();
+				}
+				unlinkIfEmpty(entry.getKey(), entry.getValue());
+			}
+
+			if (seq != null)
+				return seq;
+		}
+
+		return null;
 	}
 
 	/**
@@ -125,14 +191,12 @@ public class SequenceLinkedList {
 	public Sequence[] getAllForConsensus() {
 		final List<Sequence> list = new LinkedList<Sequence>();
 
-		Iterator<Sequence> itr = queue.iterator();
-		Sequence seq = null;
-		while (itr.hasNext()) {
-			seq = itr.next();
-			if (!seq.isProposedForConsensus()){
-				System.out.print("acquired: " + seq +"\n");
-				
-				list.add(seq);
+		for (Bucket bucket : buckets.values()) {
+			synchronized (bucket) {
+				for (Sequence seq : bucket) {
+					if (!seq.isProposedForConsensus())
+						list.add(seq);
+				}
 			}
 
 		}
@@ -150,14 +214,11 @@ public class SequenceLinkedList {
 	 */
 	public void markSequence() {
 
-		Iterator<Sequence> itr = queue.iterator();
-		Sequence seq = null;
-		while (itr.hasNext()) {
-			seq = itr.next();
-			// if (regionNumber == seq.getRegionNumber()) {
-			seq.isProposedForConsensus(true);
-
-			// }
+		for (Bucket bucket : buckets.values()) {
+			synchronized (bucket) {
+				for (Sequence seq : bucket)
+					seq.isProposedForConsensus(true);
+			}
 
 		}
 	}
@@ -171,14 +232,18 @@ public class SequenceLinkedList {
 	 */
 	public void removeByRegionNumber(int regionNumber) {
 
-		Iterator<Sequence> itr = queue.iterator();
-		Sequence seq = null;
-		while (itr.hasNext()) {
-			seq = itr.next();
-			if (seq.getRegionNumber() == regionNumber) {
-
-				queue.remove(seq);
-
+		Iterator<Sequence> itr = null;
+		for (Map.Entry<Key, Bucket> entry : buckets.entrySet()) {
+			synchronized (entry.getValue()) {
+				itr = entry.getValue().iterator();
+				while (itr.hasNext()) {
+					if (itr.next().getRegionNumber() == regionNumber) {
+						itr.remove();
+						size.decrementAndGet();
+					}
+				}
+
+				unlinkIfEmpty(entry.getKey(), entry.getValue());
 			}
 
 		}
@@ -186,7 +251,52 @@ public class SequenceLinkedList {
 	}
 
 	public void clear() {
-		queue.clear();
+		for (Map.Entry<Key, Bucket> entry : buckets.entrySet()) {
+			synchronized (entry.getValue()) {
+				size.addAndGet(-entry.getValue().size());
+				entry.getValue().clear();
+				unlinkIfEmpty(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
+	@SuppressWarnings("serial")
+	private static class Bucket extends ArrayList<Sequence> {
+
+		// Set once it is unlinked from the map, guarded by itself
+		private boolean isRemoved = false;
+
+		public Bucket() {
+			super(2);
+		}
+	}
+
+	private static class Key {
+
+		private final String sessionId;
+		private final int seqno;
+
+		public Key(String sessionId, int seqno) {
+			this.sessionId = sessionId;
+			this.seqno = seqno;
+		}
+
+		@Override
+		public int hashCode() {
+			return sessionId == null ? seqno : sessionId.hashCode() * 31
+					+ seqno;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key))
+				return false;
+
+			final Key that = (Key) o;
+			return seqno == that.seqno
+					&& (sessionId == null ? that.sessionId == null
+							: sessionId.equals(that.sessionId));
+		}
 	}
 
 }
@@ -0,0 +1,42 @@
+package org.ssor.util;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+
+/**
+ * Serializes the objects of the classes that are neither primitive nor
+ * {@link Streamable}, in place of Java serialization. A serializer is
+ * registered with the class and its magic number in ssor-streaming.xml, e.g.
+ *
+ * <pre>
+ * &lt;class id=&quot;100&quot; name=&quot;com.foo.Account&quot; serializer=&quot;org.ssor.util.FieldSerializer&quot;/&gt;
+ * </pre>
+ *
+ * The implementation must have a public no-arg constructor and be thread safe,
+ * since one instance is shared by all the registered classes.
+ *
+ * @author Tao Chen
+ *
+ */
+public interface Serializer {
+
+	/**
+	 * @param object
+	 *            the object, never null
+	 * @param out
+	 *            the output stream
+	 * @throws Exception
+	 */
+	public void writeTo(Object object, DataOutputStream out) throws Exception;
+
+	/**
+	 * @param clazz
+	 *            the class that is registered with the magic number
+	 * @param in
+	 *            the input stream
+	 * @return the object
+	 * @throws Exception
+	 */
+	public Object readFrom(Class<?> clazz, DataInputStream in) throws Exception;
+
+}
@@ -0,0 +1,225 @@
+package org.ssor.util;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Modifier;
+
+import org.ssor.conf.ClassConfigurator;
+
+/**
+ * The codec of the arguments of a service signature, which is compiled once
+ * from the declared parameter types when the service is configured. The
+ * arguments are written in the order of parameters by the encoder chosen for
+ * each type, thus neither the class of the argument array nor the type of the
+ * primitive arguments goes to the wire.
+ *
+ * The primitive parameters are written as they are. The parameter of a final
+ * class that is Streamable or has a registered {@link Serializer} is written
+ * after a single presence byte, without its magic number. The other
+ * parameters may be of a subclass or null, thus they are written with their
+ * type as by {@link Util#writeArbitraryObject(DataOutputStream, Object)}, so
+ * that the elements of an array are written by their own types as well.
+ *
+ * @author Tao Chen
+ *
+ */
+public class SignatureCodec {
+
+	private static final int OBJECT = 0;
+	private static final int BOOLEAN = 1;
+	private static final int BYTE = 2;
+	private static final int CHAR = 3;
+	private static final int DOUBLE = 4;
+	private static final int FLOAT = 5;
+	private static final int INT = 6;
+	private static final int LONG = 7;
+	private static final int SHORT = 8;
+	private static final int STREAMABLE = 9;
+	private static final int SERIALIZER = 10;
+
+	private final Class<?>[] parameterTypes;
+	private final int[] encoders;
+	// The constructors and serializers of the exact parameters, indexed as
+	// parameters
+	private final Constructor<?>[] constructors;
+	private final Serializer[] serializers;
+
+	private SignatureCodec(Class<?>[] parameterTypes) {
+		this.parameterTypes = parameterTypes;
+		encoders = new int[parameterTypes.length];
+		constructors = new Constructor<?>[parameterTypes.length];
+		serializers = new Serializer[parameterTypes.length];
+
+		for (int i = 0; i < parameterTypes.length; i++)
+			encoders[i] = compile(i, parameterTypes[i]);
+	}
+
+	/**
+	 * @param parameterTypes
+	 *            the declared parameter types of service
+	 * @return the codec, null if the types are unknown
+	 */
+	public static SignatureCodec compile(Class<?>[] parameterTypes) {
+		return parameterTypes == null ? null : new SignatureCodec(
+				parameterTypes);
+	}
+
+	/**
+	 * @param arguments
+	 *            the arguments
+	 * @return true if the arguments can be written by this codec
+	 */
+	public boolean accept(Object[] arguments) {
+		return arguments.getClass() == Object[].class
+				&& arguments.length == parameterTypes.length;
+	}
+
+	/**
+	 * @param out
+	 *            the output stream
+	 * @param arguments
+	 *            the arguments, which have been accepted
+	 * @throws Exception
+	 */
+	public void writeTo(DataOutputStream out, Object[] arguments)
+			throws Exception {
+
+		Object argument = null;
+		for (int i = 0; i < encoders.length; i++) {
+			argument = arguments[i];
+			switch (encoders[i]) {
+			case BOOLEAN:
+				out.writeBoolean(((Boolean) argument).booleanValue());
+				break;
+			case BYTE:
+				out.writeByte(((Byte) argument).byteValue());
+				break;
+			case CHAR:
+				out.writeChar(((Character) argument).charValue());
+				break;
+			case DOUBLE:
+				out.writeDouble(((Double) argument).doubleValue());
+				break;
+			case FLOAT:
+				out.writeFloat(((Float) argument).floatValue());
+				break;
+			case INT:
+				out.writeInt(((Integer) argument).intValue());
+				break;
+			case LONG:
+				out.writeLong(((Long) argument).longValue());
+				break;
+			case SHORT:
+				out.writeShort(((Short) argument).shortValue());
+				break;
+			case STREAMABLE:
+				out.writeBoolean(argument != null);
+				if (argument != null)
+					((Streamable) argument).writeTo(out);
+				break;
+			case SERIALIZER:
+				out.writeBoolean(argument != null);
+				if (argument != null)
+					serializers[i].writeTo(argument, out);
+				break;
+			default:
+				Util.writeArbitraryObject(out, argument);
+			}
+		}
+	}
+
+	/**
+	 * @param in
+	 *            the input stream
+	 * @return the arguments that can be passed to the service directly
+	 * @throws Exception
+	 */
+	public Object[] readFrom(DataInputStream in) throws Exception {
+
+		final Object[] arguments = new Object[encoders.length];
+		for (int i = 0; i < encoders.length; i++) {
+			switch (encoders[i]) {
+			case BOOLEAN:
+				arguments[i] = in.readBoolean();
+				break;
+			case BYTE:
+				arguments[i] = in.readByte();
+				break;
+			case CHAR:
+				arguments[i] = in.readChar();
+				break;
+			case DOUBLE:
+				arguments[i] = in.readDouble();
+				break;
+			case FLOAT:
+				arguments[i] = in.readFloat();
+				break;
+			case INT:
+				arguments[i] = in.readInt();
+				break;
+			case LONG:
+				arguments[i] = in.readLong();
+				break;
+			case SHORT:
+				arguments[i] = in.readShort();
+				break;
+			case STREAMABLE:
+				if (in.readBoolean()) {
+					final Streamable streamable = (Streamable) constructors[i]
+							.newInstance();
+					streamable.readFrom(in);
+					arguments[i] = streamable;
+				}
+				break;
+			case SERIALIZER:
+				if (in.readBoolean())
+					arguments[i] = serializers[i].readFrom(parameterTypes[i],
+							in);
+				break;
+			default:
+				arguments[i] = Util.readArbitraryObject(in);
+			}
+		}
+
+		return arguments;
+	}
+
+	private int compile(int index, Class<?> type) {
+		if (type == boolean.class)
+			return BOOLEAN;
+		if (type == byte.class)
+			return BYTE;
+		if (type == char.class)
+			return CHAR;
+		if (type == double.class)
+			return DOUBLE;
+		if (type == float.class)
+			return FLOAT;
+		if (type == int.class)
+			return INT;
+		if (type == long.class)
+			return LONG;
+		if (type == short.class)
+			return SHORT;
+
+		// Only the exact class can be decoded without its magic number
+		if (!Modifier.isFinal(type.getModifiers()) || type.isArray())
+			return OBJECT;
+
+		if (Streamable.class.isAssignableFrom(type)) {
+			try {
+				constructors[index] = type.getDeclaredConstructor();
+				constructors[index].setAccessible(true);
+				return STREAMABLE;
+			} catch (NoSuchMethodException e) {
+				return OBJECT;
+			}
+		}
+
+		if ((serializers[index] = ClassConfigurator.getSerializer(type)) != null)
+			return SERIALIZER;
+
+		return OBJECT;
+	}
+}
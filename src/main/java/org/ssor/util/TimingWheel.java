@@ -0,0 +1,141 @@
+package org.ssor.util;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A hashed timing wheel that expires a large number of timeouts with O(1)
+ * scheduling, the time is measured in ticks, which is advanced by a single
+ * daemon thread. The current tick can be read by now(), so that the owners of
+ * the timeouts can record the last access without reading the system clock.
+ *
+ * A timeout is not cancelled, it is expected to check its own state once
+ * expired and return the next deadline if it is still in use, therefore a
+ * frequently accessed entry costs only a volatile write per access.
+ *
+ * @author Tao Chen
+ *
+ */
+public class TimingWheel implements Runnable {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(TimingWheel.class);
+
+	/**
+	 * The callback of an expired timeout
+	 */
+	public interface Timeout {
+
+		/**
+		 * @param now
+		 *            the current tick
+		 * @return the next deadline in ticks if this needs to be scheduled
+		 *         again, or a negative value if it is done
+		 */
+		public long expire(long now);
+
+	}
+
+	private final long tickMillis;
+	// Index = deadline % slots.length
+	private final Queue<Entry>[] slots;
+	private volatile long ticks = 0;
+
+	private final Thread thread;
+
+	@SuppressWarnings("unchecked")
+	public TimingWheel(String name, long tickMillis, int slots) {
+		this.tickMillis = tickMillis;
+		this.slots = new Queue[slots];
+		for (int i = 0; i < slots; i++)
+			this.slots[i] = new ConcurrentLinkedQueue<Entry>();
+
+		thread = new Thread(this, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * @return the current tick
+	 */
+	public long now() {
+		return ticks;
+	}
+
+	/**
+	 * @param millis
+	 *            a period in milliseconds
+	 * @return the number of ticks that covers the given period
+	 */
+	public long toTicks(long millis) {
+		return (millis + tickMillis - 1) / tickMillis;
+	}
+
+	/**
+	 * Schedule the timeout, it expires at the first tick that is not earlier
+	 * than the deadline.
+	 *
+	 * @param timeout
+	 *            the timeout
+	 * @param deadline
+	 *            the deadline in ticks
+	 */
+	public void schedule(Timeout timeout, long deadline) {
+		// Can not be put into the slot that has been passed
+		final long at = Math.max(deadline, ticks + 1);
+		slots[(int) (at % slots.length)].add(new Entry(timeout, at));
+	}
+
+	@Override
+	public void run() {
+		long next = System.currentTimeMillis() + tickMillis;
+		long now = 0;
+		Queue<Entry> slot = null;
+		Entry entry = null;
+		long deadline = 0;
+		int size = 0;
+		for (;;) {
+			try {
+				Thread.sleep(Math.max(next - System.currentTimeMillis(), 0));
+			} catch (InterruptedException e) {
+				continue;
+			}
+			next += tickMillis;
+			ticks = now = ticks + 1;
+
+			slot = slots[(int) (now % slots.length)];
+			// The ones added during the expiry are left for the next round
+			size = slot.size();
+			for (int i = 0; i < size && (entry = slot.poll()) != null; i++) {
+
+				// Not yet, this is scheduled beyond one round of the wheel
+				if (entry.deadline > now) {
+					slot.add(entry);
+					continue;
+				}
+
+				try {
+					if ((deadline = entry.timeout.expire(now)) >= 0)
+						schedule(entry.timeout, deadline);
+				} catch (Throwable t) {
+					logger.error("Expiry of timeout " + entry.timeout
+							+ " failed", t);
+				}
+			}
+		}
+	}
+
+	private static class Entry {
+
+		private final Timeout timeout;
+		private final long deadline;
+
+		public Entry(Timeout timeout, long deadline) {
+			this.timeout = timeout;
+			this.deadline = deadline;
+		}
+	}
+}
@@ -32,6 +32,8 @@ public abstract class Util {
 	private static final byte TYPE_NULL = 0;
 	private static final byte TYPE_STREAMABLE = 1;
 	private static final byte TYPE_SERIALIZABLE = 2;
+	// The object that is written by the serializer registered for its class
+	private static final byte TYPE_SERIALIZER = 3;
 
 	private static final byte TYPE_BOOLEAN = 10;
 	private static final byte TYPE_BYTE = 11;
@@ -43,6 +45,11 @@ public abstract class Util {
 	private static final byte TYPE_SHORT = 17;
 	private static final byte TYPE_STRING = 18;
 	private static final byte TYPE_BYTEARRAY = 19;
+	// The string that may exceed the limit of modified UTF-8
+	private static final byte TYPE_LONG_STRING = 20;
+
+	// The longest string that is always within 65535 bytes of modified UTF-8
+	private static final int MAX_UTF_LENGTH = 0xFFFF / 3;
 
 	// Used for read/write of arbitrary objects (only can be used for
 	// 1-demenssional array)
@@ -194,6 +201,85 @@ public abstract class Util {
 		return null;
 	}
 
+	/**
+	 * Write the int as unsigned varint, 7 bits per byte with the high bit set
+	 * on all but the last byte, thus the small value takes a single byte.
+	 * 
+	 * @param out
+	 *            the output stream
+	 * @param value
+	 *            the value, the negative value takes 5 bytes
+	 * @throws IOException
+	 */
+	public static void writeVarInt(DataOutputStream out, int value)
+			throws IOException {
+		while ((value & ~0x7F) != 0) {
+			out.write((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+
+	public static int readVarInt(DataInputStream in) throws IOException {
+		int value = 0;
+		int b = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			b = in.readUnsignedByte();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+
+		throw new IOException("Malformed varint");
+	}
+
+	/**
+	 * Write the long as unsigned varint.
+	 * 
+	 * @param out
+	 *            the output stream
+	 * @param value
+	 *            the value, the negative value takes 10 bytes
+	 * @throws IOException
+	 */
+	public static void writeVarLong(DataOutputStream out, long value)
+			throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.write(((int) value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	public static long readVarLong(DataInputStream in) throws IOException {
+		long value = 0;
+		int b = 0;
+		for (int shift = 0; shift < 70; shift += 7) {
+			b = in.readUnsignedByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+
+		throw new IOException("Malformed varlong");
+	}
+
+	/**
+	 * Map the signed value to unsigned one, so that the value of small
+	 * magnitude, either positive or negative, takes few bytes as varint.
+	 * 
+	 * @param value
+	 *            the signed value
+	 * @return the zig-zag encoded value
+	 */
+	public static long zigZag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	public static long unZigZag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
 	/**
 	 * Convert an object to bytes, by way of either use traditional Serializable
 	 * interface or use the light-weight and efficient Streamable interface if
@@ -221,6 +307,17 @@ public abstract class Util {
 		}
 
 		Byte type = PRIMITIVE_TYPES.get(obj.getClass());
+		if (type == null
+				&& ClassConfigurator.getSerializer(obj.getClass()) != null) {
+			final ExposedByteArrayOutputStream out_stream = new ExposedByteArrayOutputStream(
+					128);
+			final ExposedDataOutputStream out = new ExposedDataOutputStream(
+					out_stream);
+			writeSerializedObject(out, obj);
+			Util.close(out);
+			return out_stream.toByteArray();
+		}
+
 		if (type == null) { // will throw an exception if object is not
 			// serializable
 			final ExposedByteArrayOutputStream out_stream = new ExposedByteArrayOutputStream(
@@ -328,6 +425,13 @@ public abstract class Util {
 			// Close the stream
 			Util.close(in);
 			break;
+		case TYPE_SERIALIZER:
+			in_stream = new ExposedByteArrayInputStream(buffer, offset + 1,
+					length - 1);
+			in = new DataInputStream(in_stream);
+			retval = readSerializedObject((DataInputStream) in);
+			Util.close(in);
+			break;
 		case TYPE_SERIALIZABLE: // the object is Externalizable or Serializable
 			in_stream = new ExposedByteArrayInputStream(buffer, offset + 1,
 					length - 1);
@@ -491,9 +595,7 @@ public abstract class Util {
 		} else {
 
 			out.writeShort(OBJECT);
-			byte[] b = Util.objectToByteBuffer(object);
-			out.writeInt(b.length);
-			out.write(b, 0, b.length);
+			writeTypedObject(out, object);
 		}
 	}
 
@@ -530,14 +632,200 @@ public abstract class Util {
 
 			return objects;
 
-		} else {
+		} else
+			return readTypedObject(in);
+	}
+
+	/**
+	 * Write the type of object and then its content directly into the stream,
+	 * thus no intermediate buffer is allocated, except for the object that
+	 * falls back to Serializable, which is length prefixed as the
+	 * ObjectInputStream may read ahead.
+	 * 
+	 * @param out
+	 *            the output stream
+	 * @param obj
+	 *            the object
+	 * @throws Exception
+	 */
+	public static void writeTypedObject(DataOutputStream out, Object obj)
+			throws Exception {
+
+		if (obj == null) {
+			out.write(TYPE_NULL);
+			return;
+		}
 
-			int len = in.readInt();
-			byte[] buffer = new byte[len];
-			in.readFully(buffer, 0, len);
+		if (obj instanceof Streamable) {
+			out.write(TYPE_STREAMABLE);
+			writeGenericStreamable((Streamable) obj, out);
+			return;
+		}
 
-			return Util.objectFromByteBuffer(buffer);
+		final Byte type = PRIMITIVE_TYPES.get(obj.getClass());
+		if (type == null
+				&& ClassConfigurator.getSerializer(obj.getClass()) != null) {
+			writeSerializedObject(out, obj);
+			return;
 		}
+
+		if (type == null) {
+			final ExposedByteArrayOutputStream out_stream = new ExposedByteArrayOutputStream(
+					128);
+			final ObjectOutputStream oos = new ObjectOutputStream(out_stream);
+			oos.writeObject(obj);
+			oos.close();
+			out.write(TYPE_SERIALIZABLE);
+			out.writeInt(out_stream.size());
+			out.write(out_stream.getRawBuffer(), 0, out_stream.size());
+			return;
+		}
+
+		switch (type.byteValue()) {
+		case TYPE_BOOLEAN:
+			out.write(TYPE_BOOLEAN);
+			out.writeBoolean(((Boolean) obj).booleanValue());
+			break;
+		case TYPE_BYTE:
+			out.write(TYPE_BYTE);
+			out.writeByte(((Byte) obj).byteValue());
+			break;
+		case TYPE_CHAR:
+			out.write(TYPE_CHAR);
+			out.writeChar(((Character) obj).charValue());
+			break;
+		case TYPE_DOUBLE:
+			out.write(TYPE_DOUBLE);
+			out.writeDouble(((Double) obj).doubleValue());
+			break;
+		case TYPE_FLOAT:
+			out.write(TYPE_FLOAT);
+			out.writeFloat(((Float) obj).floatValue());
+			break;
+		case TYPE_INT:
+			out.write(TYPE_INT);
+			out.writeInt(((Integer) obj).intValue());
+			break;
+		case TYPE_LONG:
+			out.write(TYPE_LONG);
+			out.writeLong(((Long) obj).longValue());
+			break;
+		case TYPE_SHORT:
+			out.write(TYPE_SHORT);
+			out.writeShort(((Short) obj).shortValue());
+			break;
+		case TYPE_STRING:
+			final String str = (String) obj;
+			if (str.length() <= MAX_UTF_LENGTH) {
+				out.write(TYPE_STRING);
+				out.writeUTF(str);
+			} else {
+				out.write(TYPE_LONG_STRING);
+				out.writeInt(str.length());
+				out.writeChars(str);
+			}
+			break;
+		case TYPE_BYTEARRAY:
+			final byte[] buf = (byte[]) obj;
+			out.write(TYPE_BYTEARRAY);
+			out.writeInt(buf.length);
+			out.write(buf, 0, buf.length);
+			break;
+		default:
+			throw new IllegalArgumentException("type " + type + " is invalid");
+		}
+	}
+
+	/**
+	 * Read the object that is written by
+	 * {@link #writeTypedObject(DataOutputStream, Object)}, directly from the
+	 * stream.
+	 * 
+	 * @param in
+	 *            the input stream
+	 * @return the object
+	 * @throws Exception
+	 */
+	public static Object readTypedObject(DataInputStream in) throws Exception {
+
+		final byte type = in.readByte();
+		switch (type) {
+		case TYPE_NULL:
+			return null;
+		case TYPE_STREAMABLE:
+			return readGenericStreamable(in);
+		case TYPE_SERIALIZER:
+			return readSerializedObject(in);
+		case TYPE_SERIALIZABLE:
+			final byte[] buffer = new byte[in.readInt()];
+			in.readFully(buffer);
+			final ObjectInputStream ois = new ObjectInputStream(
+					new ExposedByteArrayInputStream(buffer));
+			try {
+				return ois.readObject();
+			} finally {
+				Util.close(ois);
+			}
+		case TYPE_BOOLEAN:
+			return in.readBoolean();
+		case TYPE_BYTE:
+			return in.readByte();
+		case TYPE_CHAR:
+			return in.readChar();
+		case TYPE_DOUBLE:
+			return in.readDouble();
+		case TYPE_FLOAT:
+			return in.readFloat();
+		case TYPE_INT:
+			return in.readInt();
+		case TYPE_LONG:
+			return in.readLong();
+		case TYPE_SHORT:
+			return in.readShort();
+		case TYPE_STRING:
+			return in.readUTF();
+		case TYPE_LONG_STRING:
+			final char[] chars = new char[in.readInt()];
+			for (int i = 0; i < chars.length; i++)
+				chars[i] = in.readChar();
+			return new String(chars);
+		case TYPE_BYTEARRAY:
+			final byte[] bytes = new byte[in.readInt()];
+			in.readFully(bytes);
+			return bytes;
+		default:
+			throw new IllegalArgumentException("type " + type + " is invalid");
+		}
+	}
+
+	/**
+	 * Write the object by the serializer registered for its class, prefixed by
+	 * the type and the magic number of the class.
+	 * 
+	 * @param out
+	 *            the output stream
+	 * @param obj
+	 *            the object, whose class has a serializer
+	 * @throws Exception
+	 */
+	private static void writeSerializedObject(DataOutputStream out, Object obj)
+			throws Exception {
+		out.write(TYPE_SERIALIZER);
+		out.writeShort(ClassConfigurator.getMagicNumber(obj.getClass()));
+		ClassConfigurator.getSerializer(obj.getClass()).writeTo(obj, out);
+	}
+
+	private static Object readSerializedObject(DataInputStream in)
+			throws Exception {
+		final short magic = in.readShort();
+		final Class<?> clazz = ClassConfigurator.get(magic);
+		final Serializer serializer = clazz == null ? null : ClassConfigurator
+				.getSerializer(clazz);
+		if (serializer == null)
+			throw new ClassNotFoundException("Serializer for magic number "
+					+ magic + " cannot be found.");
+
+		return serializer.readFrom(clazz, in);
 	}
 
 	public static void close(InputStream inp) {
@@ -0,0 +1,113 @@
+package org.ssor;
+
+import junit.framework.TestCase;
+
+import org.ssor.annotation.ConflictKey;
+import org.ssor.exception.ConfigurationException;
+
+/**
+ * The conflict key of service.
+ *
+ * @author Tao Chen
+ *
+ */
+public class AtomicServiceTest extends TestCase {
+
+	public enum Currency {
+		EUR {
+			public String toString() {
+				return "euro";
+			}
+		},
+		GBP
+	}
+
+	public interface Account {
+
+		public void deposit(@ConflictKey String account, int amount);
+
+		public void exchange(@ConflictKey Currency from, Currency to,
+				@ConflictKey long amount);
+
+		public void transfer(@ConflictKey Object account, int amount);
+
+		public void move(Object from, Object to, Integer amount);
+	}
+
+	public static class AccountImpl implements Account {
+
+		public void deposit(String account, int amount) {
+		}
+
+		public void exchange(Currency from, Currency to, long amount) {
+		}
+
+		public void transfer(Object account, int amount) {
+		}
+
+		public void move(Object from, Object to, Integer amount) {
+		}
+	}
+
+	private static final String NAME = AccountImpl.class.getName();
+
+	public void testConflictKeyOfValueTypes() {
+		final AtomicService deposit = new AtomicService(NAME + ".deposit",
+				new Class<?>[] { String.class, int.class });
+		assertEquals("A", deposit.getConflictKey(new Object[] { "A", 1 }));
+
+		final AtomicService exchange = new AtomicService(NAME + ".exchange",
+				new Class<?>[] { Currency.class, Currency.class, long.class });
+		// The name of enum rather than its toString()
+		assertEquals("EUR|10", exchange.getConflictKey(new Object[] {
+				Currency.EUR, Currency.GBP, 10L }));
+
+		final AtomicService move = new AtomicService(NAME + ".move",
+				new Class<?>[] { Object.class, Object.class, Integer.class });
+		move.setConflictKey(new int[] { 2 });
+		assertEquals("5", move.getConflictKey(new Object[] { "A", "B", 5 }));
+	}
+
+	public void testConflictKeyOfSeveralArgumentsIsTuple() {
+		final AtomicService exchange = new AtomicService(NAME + ".exchange",
+				new Class<?>[] { Currency.class, Currency.class, long.class });
+		final PartitionedRegion region = new PartitionedRegion(7,
+				Region.CONFLICT_REGION, 8);
+
+		// Equal tuples always share the partition
+		final String key = exchange.getConflictKey(new Object[] {
+				Currency.GBP, Currency.EUR, 10L });
+		assertEquals(key, exchange.getConflictKey(new Object[] {
+				Currency.GBP, Currency.GBP, 10L }));
+		assertSame(region.getShard(key), region.getShard(exchange
+				.getConflictKey(new Object[] { Currency.GBP, Currency.GBP,
+						10L })));
+
+		// Differ in any of the key arguments
+		assertFalse(key.equals(exchange.getConflictKey(new Object[] {
+				Currency.EUR, Currency.EUR, 10L })));
+		assertFalse(key.equals(exchange.getConflictKey(new Object[] {
+				Currency.GBP, Currency.EUR, 11L })));
+
+	}
+
+	public void testAnnotatedConflictKeyOfObjectIsRejected() {
+		try {
+			new AtomicService(NAME + ".transfer", new Class<?>[] {
+					Object.class, int.class });
+			fail();
+		} catch (ConfigurationException e) {
+		}
+	}
+
+	public void testConfiguredConflictKeyOfObjectIsRejected() {
+		final AtomicService move = new AtomicService(NAME + ".move",
+				new Class<?>[] { Object.class, Object.class, Integer.class });
+		try {
+			move.setConflictKey(new int[] { 0, 2 });
+			fail();
+		} catch (ConfigurationException e) {
+		}
+		assertFalse(move.hasConflictKey());
+	}
+}
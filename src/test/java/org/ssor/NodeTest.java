@@ -0,0 +1,56 @@
+package org.ssor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.ssor.protocol.election.Decision;
+
+/**
+ * Balancing of the shards of session region on join, only the first shard
+ * keeps its fixed placement.
+ *
+ * @author Tao Chen
+ *
+ */
+public class NodeTest extends TestCase {
+
+	public void testSplitRegionMovesNonFirstShards() {
+		final Node node = new Node(1, null);
+		for (int i = 0; i < 4; i++)
+			node.addRegion(SessionRegion.SESSION_REGION - i);
+
+		final List<Integer> moved = getMoved(node.splitRegion());
+		// Half of the regions, never the first shard
+		assertEquals(2, moved.size());
+		assertFalse(moved.contains(SessionRegion.SESSION_REGION));
+	}
+
+	public void testSplitRegionKeepsInterestedShards() {
+		final Node node = new Node(1, null);
+		for (int i = 0; i < 4; i++)
+			node.addRegion(SessionRegion.SESSION_REGION - i);
+		node.addRegion(5);
+		node.addRegion(6);
+		final List<Integer> interests = new ArrayList<Integer>();
+		interests.add(SessionRegion.SESSION_REGION - 1);
+		interests.add(5);
+		node.setInterestedRegions(interests);
+
+		final List<Integer> moved = getMoved(node.splitRegion());
+		assertEquals(3, moved.size());
+		assertTrue(moved.contains(SessionRegion.SESSION_REGION - 2));
+		assertTrue(moved.contains(SessionRegion.SESSION_REGION - 3));
+		assertTrue(moved.contains(6));
+	}
+
+	private List<Integer> getMoved(Decision[] decisions) {
+		final List<Integer> moved = new ArrayList<Integer>();
+		for (Decision decision : decisions) {
+			if (decision.isChnage())
+				moved.add(decision.getRegion());
+		}
+		return moved;
+	}
+}
@@ -0,0 +1,57 @@
+package org.ssor;
+
+import junit.framework.TestCase;
+
+import org.ssor.gcm.LoopbackGCMAdaptor;
+
+/**
+ * The messages that are processed in-process rather than received from GCM,
+ * they are taken only on a stable view and the view delivery waits for them.
+ *
+ * @author Tao Chen
+ *
+ */
+public class RegionDistributionSynchronyManagerTest extends TestCase {
+
+	private RegionDistributionSynchronyManager manager;
+
+	protected void setUp() throws Exception {
+		manager = new LoopbackGCMAdaptor("rds-test").getGroup()
+				.getRegionDistributionSynchronyManager();
+		manager.setViewSeqno(0L);
+	}
+
+	public void testLocalMessageIsNotTakenWhileViewIsChanging() {
+		assertTrue(manager.cacheMsgOnStableView());
+		manager.releaseMsgOnView(null);
+
+		manager.recordJoin(2);
+		assertFalse(manager.cacheMsgOnStableView());
+
+		// The joining node has been elected
+		manager.suspend(2);
+		assertFalse(manager.cacheMsgOnStableView());
+		manager.releaseOnRetransmission(2, null);
+		assertTrue(manager.cacheMsgOnStableView());
+		manager.releaseMsgOnView(null);
+	}
+
+	public void testViewDeliveryWaitsForLocalMessage() throws Exception {
+		assertTrue(manager.cacheMsgOnStableView());
+
+		final Thread view = new Thread() {
+			public void run() {
+				manager.isViewDeliverable();
+			}
+		};
+		view.start();
+		view.join(200);
+		assertTrue(view.isAlive());
+		assertEquals(0, manager.getViewSeqno().longValue());
+
+		manager.releaseMsgOnView(null);
+		view.join(5000);
+		assertFalse(view.isAlive());
+		assertEquals(1, manager.getViewSeqno().longValue());
+	}
+}
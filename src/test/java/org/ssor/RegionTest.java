@@ -1,7 +1,16 @@
 package org.ssor;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import junit.framework.TestCase;
 
@@ -57,6 +66,252 @@ public class RegionTest extends TestCase {
 		}*/
 	}
 	
+	public void testConcurrentAssignment() throws InterruptedException {
+		final Region region = new Region(3, Region.CONFLICT_REGION, 1);
+		final AtomicService service = new AtomicService(
+				"java.lang.Object.hashCode", new Class<?>[0]);
+		final Set<Integer> seqnos = Collections
+				.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+		final Thread[] threads = new Thread[8];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				public void run() {
+					Sequence sequence = null;
+					for (int j = 0; j < 5000; j++) {
+						sequence = region.getNextSeqno(null, service, 1);
+						assertNull(sequence.getConcurrentno());
+						seqnos.add(sequence.getSeqno());
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+
+		// Unique and contiguous
+		assertEquals(40000, seqnos.size());
+		assertEquals(0, (int) Collections.min(seqnos));
+		assertEquals(39999, (int) Collections.max(seqnos));
+	}
+
+	public void testConcurrentAssignmentOfConcurrentDeliverable()
+			throws InterruptedException {
+		final Region region = new Region(3, Region.CONFLICT_REGION, 1);
+		final AtomicService concurrent = createConcurrentDeliverable();
+		final AtomicService sequential = new AtomicService(
+				"java.lang.Object.hashCode", new Class<?>[0]);
+		final Queue<Sequence> sequences = new ConcurrentLinkedQueue<Sequence>();
+
+		final Thread[] threads = new Thread[8];
+		for (int i = 0; i < threads.length; i++) {
+			final AtomicService service = i % 2 == 0 ? sequential
+					: concurrent;
+			threads[i] = new Thread() {
+				public void run() {
+					for (int j = 0; j < 5000; j++)
+						sequences.add(region.getNextSeqno(null, service, 1));
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+		// Close the last run of concurrent ones
+		sequences.add(region.getNextSeqno(null, sequential, 1));
+
+		final Set<Integer> seqnos = new HashSet<Integer>();
+		int concurrentCount = 0;
+		int carriedCount = 0;
+		for (Sequence sequence : sequences) {
+			if (sequence.getConcurrentno() != null
+					&& sequence.getConcurrentno() == -1) {
+				concurrentCount++;
+				continue;
+			}
+
+			// Each sequential one has a seqno of its own
+			assertTrue(seqnos.add(sequence.getSeqno()));
+			if (sequence.getConcurrentno() != null)
+				carriedCount += sequence.getConcurrentno();
+		}
+
+		assertEquals(0, (int) Collections.min(seqnos));
+		assertEquals(seqnos.size() - 1, (int) Collections.max(seqnos));
+		// Each concurrent one is counted by the sequential one after it
+		assertEquals(concurrentCount, carriedCount);
+		for (Sequence sequence : sequences)
+			assertTrue(seqnos.contains(sequence.getSeqno()));
+	}
+
+	public void testSaturatedConcurrentnoFallsBackToSequential() {
+		final Region region = new Region(3, Region.CONFLICT_REGION, 1);
+		final AtomicService service = createConcurrentDeliverable();
+
+		// The first one is sequential, the rest are concurrent with it
+		assertEquals(new Sequence(0, null).getValue(), region.getNextSeqno(
+				null, service, 1).getValue());
+		for (int i = 0; i < Region.MAX_CONCURRENTNO; i++)
+			assertEquals(new Sequence(0, -1).getValue(), region.getNextSeqno(
+					null, service, 1).getValue());
+
+		// Saturated, thus sequential and carries the number ahead of it
+		assertEquals(new Sequence(1, Region.MAX_CONCURRENTNO).getValue(),
+				region.getNextSeqno(null, service, 1).getValue());
+		assertEquals(new Sequence(1, -1).getValue(), region.getNextSeqno(
+				null, service, 1).getValue());
+	}
+
+	public void testExhaustedSetsFallBackToSequential() {
+		final Region region = new Region(3, Region.CONFLICT_REGION, 1);
+		// Only the empty set and one more can be interned
+		region.setConcurrentDeliverableSets(new ConcurrentDeliverableSet.Table(
+				2));
+		final AtomicService first = new AtomicService(
+				"java.lang.Object.toString", new Class<?>[0]);
+		final AtomicService second = new AtomicService(
+				"java.lang.Object.hashCode", new Class<?>[0]);
+		first.addConcurrentDeliverableService(second);
+		second.addConcurrentDeliverableService(first);
+		final ServiceManager manager = new ServiceManager();
+		manager.register(first);
+		manager.register(second);
+		first.initConcurrentDeliverableServices();
+		second.initConcurrentDeliverableServices();
+
+		assertEquals(new Sequence(0, null).getValue(), region.getNextSeqno(
+				null, first, 1).getValue());
+		// The set of both can not be interned, thus sequential
+		assertEquals(new Sequence(1, null).getValue(), region.getNextSeqno(
+				null, second, 1).getValue());
+		assertEquals(new Sequence(2, null).getValue(), region.getNextSeqno(
+				null, first, 1).getValue());
+	}
+
+	public void testSetsAreScopedPerGroup() {
+		final Region region = new Region(3, Region.CONFLICT_REGION, 1);
+		final Region other = new Region(3, Region.CONFLICT_REGION, 1);
+		final ServiceManager manager = new ServiceManager();
+		manager.register(new AtomicService("java.lang.Object.toString",
+				region, new Class<?>[0]));
+		new ServiceManager().register(new AtomicService(
+				"java.lang.Object.toString", other, new Class<?>[0]));
+
+		assertNotSame(region.getConcurrentDeliverableSets(), other
+				.getConcurrentDeliverableSets());
+		assertSame(region.getConcurrentDeliverableSets(), manager
+				.getSessionRegion().getConcurrentDeliverableSets());
+	}
+
+	public void testLeasedSequencesAreSkippedOnRelease() {
+		final Region region = new Region(3, Region.CONFLICT_REGION, 1);
+		final AtomicService service = new AtomicService(
+				"java.lang.Object.hashCode", new Class<?>[0]);
+
+		final Sequence first = region.getNextSeqno(null, service, 1);
+		// Only the sequencer leases
+		assertNull(region.getNextSeqnosForLease(4, 2));
+		final Sequence[] leased = region.getNextSeqnosForLease(4, 1);
+		for (int i = 0; i < leased.length; i++)
+			assertEquals(new Sequence(1 + i, null).getValue(), leased[i]
+					.getValue());
+		final Sequence next = region.getNextSeqno(null, service, 1);
+		assertEquals(new Sequence(5, null).getValue(), next.getValue());
+
+		// The unused leased sequences are released and skipped
+		assertEquals(0, region.isExecutable(null, first, service));
+		region.increaseSeqno(null);
+		assertTrue(region.isExecutable(null, next, service) > 0);
+		region.skip(leased);
+		assertEquals(0, region.isExecutable(null, next, service));
+	}
+
+	public void testLeaseCarriesConcurrentRun() {
+		final Region region = new Region(3, Region.CONFLICT_REGION, 1);
+		final AtomicService service = createConcurrentDeliverable();
+
+		region.getNextSeqno(null, service, 1);
+		region.getNextSeqno(null, service, 1);
+		region.getNextSeqno(null, service, 1);
+		// Only the first one follows the concurrent ones
+		final Sequence[] leased = region.getNextSeqnosForLease(2, 1);
+		assertEquals(new Sequence(1, 2).getValue(), leased[0].getValue());
+		assertEquals(new Sequence(2, null).getValue(), leased[1].getValue());
+		// The CDS set is cleared
+		assertEquals(new Sequence(3, null).getValue(), region.getNextSeqno(
+				null, service, 1).getValue());
+	}
+
+	public void testDeferredDeliveriesCompleteInOrder()
+			throws InterruptedException {
+		// A replica of the region, the sequences arrive in random order
+		final Region region = new Region(3, Region.CONFLICT_REGION, 2);
+		final AtomicService service = new AtomicService(
+				"java.lang.Object.hashCode", new Class<?>[0]);
+		final List<Integer> delivered = Collections
+				.synchronizedList(new ArrayList<Integer>());
+		final List<Integer> seqnos = new ArrayList<Integer>();
+		for (int i = 0; i < 500; i++)
+			seqnos.add(i);
+		Collections.shuffle(seqnos, new Random(7));
+
+		final ExecutorService pool = Executors.newFixedThreadPool(2);
+		try {
+			for (int seqno : seqnos)
+				deliver(region, service, new Sequence(seqno, null), pool,
+						delivered);
+
+			final long deadline = System.currentTimeMillis() + 10000;
+			while (delivered.size() < seqnos.size()
+					&& System.currentTimeMillis() < deadline)
+				Thread.sleep(10);
+		} finally {
+			pool.shutdown();
+		}
+
+		Collections.sort(seqnos);
+		assertEquals(seqnos, delivered);
+	}
+
+	// Deliver as MSP does on replicas, the one that is not deliverable yet is
+	// buffered by the region and handed to the pool once it may be
+	private void deliver(final Region region, final AtomicService service,
+			final Sequence sequence, final ExecutorService pool,
+			final List<Integer> delivered) {
+		synchronized (region.getMutualLock(null)) {
+			if (region.isExecutable(null, sequence, service) > 0) {
+				region.defer(null, sequence, new Runnable() {
+					public void run() {
+						pool.execute(new Runnable() {
+							public void run() {
+								deliver(region, service, sequence, pool,
+										delivered);
+							}
+						});
+					}
+				});
+				return;
+			}
+		}
+
+		// Executed outside of the lock, then completed in order
+		delivered.add(sequence.getSeqno());
+		synchronized (region.getMutualLock(null)) {
+			region.increaseSeqno(null);
+			region.resume(null);
+		}
+	}
+
+	private AtomicService createConcurrentDeliverable() {
+		final AtomicService service = new AtomicService(
+				"java.lang.Object.toString", new Class<?>[0]);
+		service.addConcurrentDeliverableService(service);
+		new ServiceManager().register(service);
+		service.initConcurrentDeliverableServices();
+		return service;
+	}
+
 	private void setView(Region region){
 		Queue queue = CollectionFacade.getConcurrentQueue();
 		queue.add(1111);
@@ -0,0 +1,111 @@
+package org.ssor;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+/**
+ * The compact record of a session is kept until the session is removed
+ * explicitly, and the sessions are routed to the shards by session ID.
+ *
+ * @author Tao Chen
+ *
+ */
+public class SessionRegionTest extends TestCase {
+
+	private static final int UUID_ADDR = 1;
+
+	private static final String SESSION = "session";
+
+	private AtomicService service;
+
+	protected void setUp() throws Exception {
+		service = new AtomicService("java.lang.Object.toString",
+				new Class<?>[0]);
+		new ServiceManager().register(service);
+	}
+
+	public void testSequencerKeepsSession() {
+		final SessionRegion shard = createShard();
+		shard.setSequencer(UUID_ADDR);
+		final Region session = shard.add(SESSION);
+		deliver(shard, 2);
+
+		assertSame(session, shard.add(SESSION));
+		assertEquals(2, shard.getNextSeqno(SESSION, service, UUID_ADDR)
+				.getSeqno().intValue());
+		assertEquals(2, shard.getExpectedSequence(SESSION).getSeqno()
+				.intValue());
+	}
+
+	public void testReplicaTakesRepeatedSequenceAsDuplicate() {
+		final SessionRegion shard = createShard();
+		shard.setSequencer(UUID_ADDR + 1);
+		for (int i = 0; i < 2; i++) {
+			assertEquals(0, shard.isExecutable(SESSION, new Sequence(i, null),
+					service));
+			shard.increaseSeqno(SESSION);
+		}
+
+		// A duplicate rather than a restart
+		assertEquals(-1, shard.isExecutable(SESSION, new Sequence(0, null),
+				service));
+		assertEquals(2, shard.getExpectedSequence(SESSION).getSeqno()
+				.intValue());
+	}
+
+	public void testRemovedSessionStartsOver() {
+		final SessionRegion shard = createShard();
+		shard.setSequencer(UUID_ADDR);
+		final Region session = shard.add(SESSION);
+		deliver(shard, 2);
+
+		shard.remove(SESSION);
+		assertNotSame(session, shard.add(SESSION));
+		assertEquals(0, shard.getExpectedSequence(SESSION).getSeqno()
+				.intValue());
+		assertEquals(0, shard.getNextSeqno(SESSION, service, UUID_ADDR)
+				.getSeqno().intValue());
+	}
+
+	public void testShardOfSessionIsStable() {
+		final SessionRegion[] shards = SessionRegion.createShards(4);
+		for (int i = 0; i < shards.length; i++)
+			assertEquals(SessionRegion.SESSION_REGION - i, shards[i]
+					.getRegion());
+
+		// The shards of another node
+		final SessionRegion[] remote = SessionRegion.createShards(4);
+		final Set<Region> used = new HashSet<Region>();
+		Region shard = null;
+		for (int i = 0; i < 100; i++) {
+			shard = shards[0].getShard(SESSION + i);
+			used.add(shard);
+			for (SessionRegion other : shards)
+				assertSame(shard, other.getShard(SESSION + i));
+			assertEquals(shard.getRegion(), remote[3].getShard(SESSION + i)
+					.getRegion());
+		}
+		assertEquals(shards.length, used.size());
+
+		// Not sessional, or not sharded
+		assertSame(shards[2], shards[2].getShard(null));
+		final SessionRegion single = createShard();
+		assertSame(single, single.getShard(SESSION));
+	}
+
+	private SessionRegion createShard() {
+		return SessionRegion.createShards(1)[0];
+	}
+
+	// Assign and deliver the given number of sequences on the sequencer
+	private void deliver(SessionRegion shard, int count) {
+		for (int i = 0; i < count; i++) {
+			final Sequence sequence = shard.getNextSeqno(SESSION, service,
+					UUID_ADDR);
+			assertEquals(0, shard.isExecutable(SESSION, sequence, service));
+			shard.increaseSeqno(SESSION);
+		}
+	}
+}
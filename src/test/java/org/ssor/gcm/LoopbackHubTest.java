@@ -0,0 +1,470 @@
+package org.ssor.gcm;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.ssor.AtomicService;
+import org.ssor.Region;
+import org.ssor.Sequence;
+import org.ssor.protocol.Message;
+import org.ssor.protocol.replication.LeaseHeader;
+import org.ssor.protocol.tolerance.ConsensusHeader;
+import org.ssor.util.Environment;
+
+/**
+ * Run several replicas in the same JVM through {@link LoopbackHub}.
+ *
+ * @author Tao Chen
+ *
+ */
+public class LoopbackHubTest extends TestCase {
+
+	private static final int REGION = 3;
+
+	private static int groups = 0;
+
+	public interface Log {
+
+		public void append(int value);
+
+		public List<Integer> entries();
+
+		public int size();
+	}
+
+	public static class LogImpl implements Log {
+
+		private final List<Integer> list = Collections
+				.synchronizedList(new ArrayList<Integer>());
+
+		public void append(int value) {
+			list.add(value);
+		}
+
+		public List<Integer> entries() {
+			return new ArrayList<Integer>(list);
+		}
+
+		public int size() {
+			return list.size();
+		}
+	}
+
+	private LoopbackHub hub;
+
+	// Number of leases granted to the replicas
+	private final AtomicInteger grants = new AtomicInteger();
+
+	// Number of the consensus replies and the pushes received
+	private final AtomicInteger replies = new AtomicInteger();
+	private final AtomicInteger pushes = new AtomicInteger();
+
+	protected void setUp() throws Exception {
+		hub = new LoopbackHub();
+		hub.setDefaultLink(new LoopbackLink(200, 100, 0, 0));
+	}
+
+	protected void tearDown() throws Exception {
+		hub.close();
+	}
+
+	public void testOrderingAcrossReplicas() throws Throwable {
+
+		final LoopbackGCMAdaptor[] nodes = start(3);
+		final Log[] logs = getLogs(nodes);
+
+		append(logs, 0, 50);
+		waitForEntries(logs, 150);
+
+		for (int i = 1; i < logs.length; i++)
+			assertEquals("Replica " + i, logs[0].entries(), logs[i].entries());
+	}
+
+	public void testCrashAndViewChange() throws Throwable {
+
+		final LoopbackGCMAdaptor[] nodes = start(3);
+		final Log[] logs = getLogs(nodes);
+
+		append(logs, 0, 20);
+		waitForEntries(logs, 60);
+
+		// Crash the sequencer of the region
+		final int sequencer = getRegion(nodes[0]).getSequencerWhenRequest();
+		final List<LoopbackGCMAdaptor> survivors = new ArrayList<LoopbackGCMAdaptor>();
+		for (LoopbackGCMAdaptor node : nodes) {
+			if (node.getUUID() == sequencer)
+				node.close();
+			else
+				survivors.add(node);
+		}
+		assertEquals(2, survivors.size());
+
+		for (LoopbackGCMAdaptor node : survivors)
+			waitForRequest(node, sequencer);
+
+		final Log[] survived = getLogs(survivors
+				.toArray(new LoopbackGCMAdaptor[survivors.size()]));
+		append(survived, 100, 20);
+		waitForEntries(survived, 100);
+
+		assertEquals(survived[0].entries(), survived[1].entries());
+	}
+
+	public void testCrashOfSequencerOfSeveralRegions() throws Throwable {
+
+		// The regions are split on join, thus a replica is the sequencer of
+		// more than one of them
+		final LoopbackGCMAdaptor[] nodes = start(2, 3);
+		final Log[] logs = getLogs(nodes);
+
+		append(logs, 0, 20);
+		waitForEntries(logs, 40);
+
+		Integer sequencer = null;
+		final List<Integer> regions = new ArrayList<Integer>();
+		for (LoopbackGCMAdaptor node : nodes) {
+			regions.clear();
+			for (int i = 0; i < 3; i++) {
+				if (getRegion(nodes[0], REGION + i).getSequencerWhenRequest() == node
+						.getUUID())
+					regions.add(REGION + i);
+			}
+			if (regions.size() > 1) {
+				sequencer = node.getUUID();
+				break;
+			}
+		}
+		assertNotNull(sequencer);
+
+		// Each region is agreed on by itself, the last one releases the view
+		LoopbackGCMAdaptor survivor = null;
+		for (LoopbackGCMAdaptor node : nodes) {
+			if (node.getUUID() == sequencer)
+				node.close();
+			else
+				survivor = node;
+		}
+		for (Integer region : regions) {
+			waitForRequest(survivor, sequencer, region);
+			assertTrue(getRegion(survivor, region).isAllowRequest());
+		}
+
+		final Log[] survived = getLogs(new LoopbackGCMAdaptor[] { survivor });
+		append(survived, 100, 20);
+		waitForEntries(survived, 60);
+	}
+
+	public void testCrashWithWarmStandby() throws Throwable {
+
+		final boolean isStandby = Environment.ENABLE_WARM_STANDBY;
+		Environment.ENABLE_WARM_STANDBY = true;
+		try {
+			final LoopbackGCMAdaptor[] nodes = start(3);
+			final Log[] logs = getLogs(nodes);
+
+			append(logs, 0, 20);
+			waitForEntries(logs, 60);
+			replies.set(0);
+
+			final int sequencer = getRegion(nodes[0]).getSequencerWhenRequest();
+			final List<LoopbackGCMAdaptor> survivors = new ArrayList<LoopbackGCMAdaptor>();
+			for (LoopbackGCMAdaptor node : nodes) {
+				if (node.getUUID() == sequencer)
+					node.close();
+				else
+					survivors.add(node);
+			}
+
+			for (LoopbackGCMAdaptor node : survivors)
+				waitForRequest(node, sequencer);
+
+			final Log[] survived = getLogs(survivors
+					.toArray(new LoopbackGCMAdaptor[survivors.size()]));
+			append(survived, 100, 20);
+			waitForEntries(survived, 100);
+			assertEquals(survived[0].entries(), survived[1].entries());
+
+			// Each survivor pushed to the standby instead of replying
+			assertEquals(survivors.size(), pushes.get());
+			assertEquals(0, replies.get());
+		} finally {
+			Environment.ENABLE_WARM_STANDBY = isStandby;
+		}
+	}
+
+	public void testViewChangeAfterMessagesInFlight() throws Throwable {
+
+		final List<Object> events = Collections
+				.synchronizedList(new ArrayList<Object>());
+		final LoopbackGCMAdaptor observer = new LoopbackGCMAdaptor(
+				nextGroupName()) {
+
+			@Override
+			public void receive(Message message, Object address) {
+				if (message.getHeader() instanceof LeaseHeader) {
+					events.add(message.getReqId());
+					return;
+				}
+				super.receive(message, address);
+			}
+
+			@Override
+			protected void viewLeave(int left, Collection<Object> view) {
+				events.add("leave " + left);
+			}
+		};
+		observer.init(hub);
+		final LoopbackGCMAdaptor crashed = new LoopbackGCMAdaptor(observer
+				.getGroup().getName());
+		crashed.init(hub);
+
+		// The messages are still on the link when the sender crashes
+		hub.setLink(crashed.getUUID(), observer.getUUID(), new LoopbackLink(
+				100000, 0, 0, 0));
+		for (int i = 0; i < 3; i++) {
+			final Message message = new Message(new LeaseHeader(REGION,
+					new Sequence[0], true), null, false);
+			message.setReqId("m" + i);
+			crashed.multicast(message);
+		}
+		crashed.close();
+		// Nothing can be sent after crash
+		crashed.multicast(new Message(new LeaseHeader(REGION,
+				new Sequence[0], true), null, true));
+
+		final long deadline = System.currentTimeMillis() + 5000;
+		while (events.size() < 4 && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		Thread.sleep(200);
+
+		final List<Object> expected = new ArrayList<Object>();
+		expected.add("m0");
+		expected.add("m1");
+		expected.add("m2");
+		expected.add("leave " + crashed.getUUID());
+		assertEquals(expected, events);
+	}
+
+	public void testLeasedSequencesAreOrderedAcrossReplicas() throws Throwable {
+
+		final boolean isLeasing = Environment.ENABLE_SEQUENCE_LEASING;
+		Environment.ENABLE_SEQUENCE_LEASING = true;
+		try {
+			final LoopbackGCMAdaptor[] nodes = start(3);
+			final Log[] logs = getLogs(nodes);
+
+			final int sequencer = getRegion(nodes[0]).getSequencerWhenRequest();
+			Log requester = null;
+			Log coordinator = null;
+			for (int i = 0; i < nodes.length; i++) {
+				if (nodes[i].getUUID() == sequencer)
+					coordinator = logs[i];
+				else if (requester == null)
+					requester = logs[i];
+			}
+
+			// The requester dominates the region and is granted leases, the
+			// sequencer interleaves with them
+			append(new Log[] { requester, coordinator }, 0, 60);
+			waitForEntries(logs, 120);
+
+			assertTrue(grants.get() > 0);
+			for (int i = 1; i < logs.length; i++)
+				assertEquals("Replica " + i, logs[0].entries(), logs[i]
+						.entries());
+		} finally {
+			Environment.ENABLE_SEQUENCE_LEASING = isLeasing;
+		}
+	}
+
+	public void testRequestSentToSequencerDoesNotExpire() throws Throwable {
+
+		final long timeout = Environment.SENT_MESSAGE_TIMEOUT;
+		Environment.SENT_MESSAGE_TIMEOUT = 100;
+		try {
+			final LoopbackGCMAdaptor[] nodes = start(3);
+			final Log[] logs = getLogs(nodes);
+
+			final int sequencer = getRegion(nodes[0]).getSequencerWhenRequest();
+			int requester = 0;
+			while (nodes[requester].getUUID() == sequencer)
+				requester++;
+
+			// The sequence arrives long after the timeout, the request must
+			// not expire as the others would wait for its sequence forever
+			hub.setLink(sequencer, nodes[requester].getUUID(),
+					new LoopbackLink(500000, 0, 0, 0));
+			append(new Log[] { logs[requester] }, 0, 4);
+			waitForEntries(logs, 4);
+
+			for (int i = 1; i < logs.length; i++)
+				assertEquals("Replica " + i, logs[0].entries(), logs[i]
+						.entries());
+		} finally {
+			Environment.SENT_MESSAGE_TIMEOUT = timeout;
+		}
+	}
+
+	public void testOutOfOrderDeliveriesOnBoundedThreads() throws Throwable {
+
+		final LoopbackGCMAdaptor[] nodes = start(3);
+		final Log[] logs = getLogs(nodes);
+
+		// The broadcasts of the first node arrive late, thus the others'
+		// are buffered by the replicas until the late ones are delivered
+		for (int i = 1; i < nodes.length; i++)
+			hub.setLink(nodes[0].getUUID(), nodes[i].getUUID(),
+					new LoopbackLink(20000, 0, 0, 0));
+		append(logs, 0, 30);
+		waitForEntries(logs, 90);
+
+		for (int i = 1; i < logs.length; i++)
+			assertEquals("Replica " + i, logs[0].entries(), logs[i].entries());
+
+		int total = 0;
+		for (LoopbackGCMAdaptor node : nodes) {
+			final int threads = countDeliveryThreads(node);
+			assertTrue(threads + " delivery threads",
+					threads <= Environment.DELIVERY_THREADS);
+			total += threads;
+		}
+		assertTrue(total > 0);
+
+		// The delivery threads are gone with the group
+		for (LoopbackGCMAdaptor node : nodes)
+			node.close();
+		final long deadline = System.currentTimeMillis() + 5000;
+		while (total > 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+			total = 0;
+			for (LoopbackGCMAdaptor node : nodes)
+				total += countDeliveryThreads(node);
+		}
+		assertEquals(0, total);
+	}
+
+	private LoopbackGCMAdaptor[] start(int count) throws Throwable {
+		return start(count, 1);
+	}
+
+	// The log is on the first region, the other regions only take part in
+	// the election
+	private LoopbackGCMAdaptor[] start(int count, int regions)
+			throws Throwable {
+		final String[] methods = new String[] { "append", "entries", "size" };
+		final String group = nextGroupName();
+		final LoopbackGCMAdaptor[] nodes = new LoopbackGCMAdaptor[count];
+		for (int i = 0; i < count; i++) {
+			nodes[i] = new LoopbackGCMAdaptor(group) {
+
+				@Override
+				public void receive(Message message, Object address) {
+					if (message.getHeader() instanceof LeaseHeader
+							&& !((LeaseHeader) message.getHeader()).isRelease())
+						grants.incrementAndGet();
+					else if (message.getHeader() instanceof ConsensusHeader)
+						(((ConsensusHeader) message.getHeader()).isPushed() ? pushes
+								: replies).incrementAndGet();
+					super.receive(message, address);
+				}
+			};
+			for (int j = 0; j < regions; j++)
+				nodes[i].getGroup().getServiceManager().register(
+						new AtomicService(LogImpl.class.getName() + "."
+								+ methods[j], new Region(REGION + j,
+								Region.CONFLICT_REGION),
+								j == 0 ? new Class<?>[] { int.class }
+										: new Class<?>[0]));
+			// The replica finds the instance by the proxy
+			nodes[i].getGroup().getProxyFactory().get(LogImpl.class);
+			nodes[i].init(hub);
+			Thread.sleep(500);
+		}
+
+		// Wait for the election of regions
+		Thread.sleep(3000);
+		return nodes;
+	}
+
+	private Log[] getLogs(LoopbackGCMAdaptor[] nodes) {
+		final Log[] logs = new Log[nodes.length];
+		for (int i = 0; i < nodes.length; i++)
+			logs[i] = (Log) nodes[i].getGroup().getProxyFactory().get(
+					LogImpl.class);
+		return logs;
+	}
+
+	// Each replica appends the given number of values concurrently
+	private void append(final Log[] logs, final int base, final int count)
+			throws InterruptedException {
+		final Thread[] threads = new Thread[logs.length];
+		for (int i = 0; i < logs.length; i++) {
+			final int index = i;
+			threads[i] = new Thread() {
+				public void run() {
+					for (int j = 0; j < count; j++)
+						logs[index].append(base + index * 1000 + j);
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+	}
+
+	private void waitForEntries(Log[] logs, int count)
+			throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + 10000;
+		for (Log log : logs) {
+			while (log.entries().size() < count
+					&& System.currentTimeMillis() < deadline)
+				Thread.sleep(10);
+			assertEquals(count, log.entries().size());
+		}
+	}
+
+	private void waitForRequest(LoopbackGCMAdaptor node, int crashed)
+			throws InterruptedException {
+		waitForRequest(node, crashed, REGION);
+	}
+
+	private void waitForRequest(LoopbackGCMAdaptor node, int crashed,
+			int number) throws InterruptedException {
+		final Region region = getRegion(node, number);
+		final long deadline = System.currentTimeMillis() + 10000;
+		Integer sequencer = null;
+		while (((sequencer = region.getSequencerWhenRequest()) == null || sequencer == crashed)
+				&& System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertNotNull(sequencer);
+		assertTrue(sequencer != crashed);
+	}
+
+	private int countDeliveryThreads(LoopbackGCMAdaptor node) {
+		final String name = "MSP-delivery-" + node.getGroup().getName() + "-"
+				+ node.getUUID();
+		int count = 0;
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (thread.isAlive() && name.equals(thread.getName()))
+				count++;
+		}
+		return count;
+	}
+
+	private Region getRegion(LoopbackGCMAdaptor node) {
+		return getRegion(node, REGION);
+	}
+
+	private Region getRegion(LoopbackGCMAdaptor node, int number) {
+		return node.getGroup().getServiceManager().getRegion(number);
+	}
+
+	private static synchronized String nextGroupName() {
+		return "loopback-" + (groups++);
+	}
+}
@@ -0,0 +1,260 @@
+package org.ssor.gcm;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+
+import org.ssor.Sequence;
+import org.ssor.protocol.Message;
+import org.ssor.protocol.replication.LeaseHeader;
+import org.ssor.util.BufferPool;
+
+/**
+ * Run several members over TCP on the local host. The pooled buffers of
+ * frames, a multicast frame is held by every peer and the local delivery, and
+ * goes back to the pool once all of them release it.
+ *
+ * @author Tao Chen
+ *
+ */
+public class NioGCMAdaptorTest extends TestCase {
+
+	private static final int MESSAGES = 2000;
+
+	// Each test binds its own ports, the closed ones may linger
+	private static int port = 17921;
+
+	// Counts the received messages rather than passing them up
+	private static class Node extends NioGCMAdaptor {
+
+		private final AtomicInteger received = new AtomicInteger();
+		private final AtomicLong sum = new AtomicLong();
+		// Source and first argument of the received messages, in the order
+		// of delivery
+		private final List<String> messages = Collections
+				.synchronizedList(new ArrayList<String>());
+		private final List<String> events = Collections
+				.synchronizedList(new ArrayList<String>());
+
+		private Collection<Object> view;
+		private long viewSeqno;
+
+		public Node() {
+			super("nio-test");
+		}
+
+		@Override
+		public void receive(Message message, Object address) {
+			if (!(message.getHeader() instanceof LeaseHeader)) {
+				super.receive(message, address);
+				return;
+			}
+
+			final Object[] body = (Object[]) message.getBody();
+			sum.addAndGet((Integer) body[0] + ((String) body[1]).length());
+			messages.add(address + ":" + body[0]);
+			received.incrementAndGet();
+		}
+
+		@Override
+		protected void viewInstall(Collection<Object> view, long viewSeqno) {
+			this.view = new ArrayList<Object>(view);
+			this.viewSeqno = viewSeqno;
+			super.viewInstall(view, viewSeqno);
+		}
+
+		@Override
+		protected void viewJoin(int joined) {
+			events.add("join " + joined);
+			super.viewJoin(joined);
+		}
+
+		@Override
+		protected void viewLeave(int left, Collection<Object> view) {
+			events.add("leave " + left + " " + view);
+			super.viewLeave(left, view);
+		}
+	}
+
+	private Node[] nodes;
+
+	protected void tearDown() throws Exception {
+		if (nodes == null)
+			return;
+		for (int i = nodes.length - 1; i >= 0; i--) {
+			if (nodes[i] != null)
+				nodes[i].close();
+		}
+	}
+
+	public void testHandshake() throws Exception {
+
+		start(3);
+
+		// Each join is counted by the members that welcome it
+		assertEquals(list(1), nodes[0].view);
+		assertEquals(0, nodes[0].viewSeqno);
+		assertEquals(list(1, 2), nodes[1].view);
+		assertEquals(1, nodes[1].viewSeqno);
+		assertEquals(list(1, 2, 3), nodes[2].view);
+		assertEquals(2, nodes[2].viewSeqno);
+
+		// The connections back to the members are not seen as joins
+		assertEquals(list("join 2", "join 3"), nodes[0].events);
+		assertEquals(list("join 3"), nodes[1].events);
+		assertTrue(nodes[2].events.isEmpty());
+	}
+
+	public void testMulticastIsFifoPerSender() throws Exception {
+
+		start(3);
+
+		final int count = MESSAGES / 4;
+		final Thread[] threads = new Thread[nodes.length];
+		for (int i = 0; i < nodes.length; i++) {
+			final Node node = nodes[i];
+			threads[i] = new Thread() {
+				public void run() {
+					for (int j = 0; j < count; j++)
+						node.multicast(createMessage(j, "v"));
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+
+		waitForMessages(count * nodes.length);
+		for (Node node : nodes) {
+			for (int src = 1; src <= nodes.length; src++) {
+				final List<String> from = new ArrayList<String>();
+				for (String message : new ArrayList<String>(node.messages)) {
+					if (message.startsWith(src + ":"))
+						from.add(message);
+				}
+				assertEquals(count, from.size());
+				for (int j = 0; j < count; j++)
+					assertEquals(src + ":" + j, from.get(j));
+			}
+		}
+	}
+
+	public void testCloseIsSeenAsViewChange() throws Exception {
+
+		start(3);
+		nodes[1].close();
+
+		final long deadline = System.currentTimeMillis() + 10000;
+		while ((nodes[0].events.size() < 3 || nodes[2].events.size() < 1)
+				&& System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+
+		assertEquals(list("join 2", "join 3", "leave 2 [3, 1]"),
+				nodes[0].events);
+		assertEquals(list("leave 2 [1, 3]"), nodes[2].events);
+
+		// The survivors still reach each other
+		nodes[0].multicast(createMessage(0, "v"));
+		waitForMessages(nodes[0], 1);
+		waitForMessages(nodes[2], 1);
+	}
+
+	public void testFramesAreReleasedAfterMulticastAndLocalDelivery()
+			throws Exception {
+
+		start(2);
+		final Node sender = nodes[0];
+		final Node receiver = nodes[1];
+
+		final StringBuilder large = new StringBuilder();
+		for (int i = 0; i < 3000; i++)
+			large.append('x');
+
+		long expected = 0;
+		String value = null;
+		for (int i = 0; i < MESSAGES; i++) {
+			value = i % 10 == 0 ? large.toString() : "v" + i;
+			expected += i + value.length();
+			sender.multicast(createMessage(i, value));
+		}
+
+		waitForMessages(MESSAGES);
+
+		// A buffer released twice would be shared by two frames
+		assertEquals(expected, sender.sum.get());
+		assertEquals(expected, receiver.sum.get());
+
+		// Every buffer is back once all the holders have released it
+		assertAllReleased(sender.getBufferPool());
+		assertAllReleased(receiver.getBufferPool());
+		assertTrue(sender.getBufferPool().getReusedCount() > 0);
+		assertTrue(receiver.getBufferPool().getReusedCount() > 0);
+	}
+
+	// Start the members one after another, as a static membership requires
+	private void start(int count) throws Exception {
+		final StringBuilder members = new StringBuilder();
+		for (int i = 0; i < count; i++)
+			members.append(i == 0 ? "" : ",").append("127.0.0.1:").append(
+					nextPort());
+
+		nodes = new Node[count];
+		try {
+			for (int i = 0; i < count; i++) {
+				nodes[i] = new Node();
+				nodes[i].init(NioConfiguration.parse(members.toString(), i));
+				Thread.sleep(500);
+			}
+		} catch (Throwable t) {
+			throw new Exception(t);
+		}
+
+		// Wait for the election of regions
+		Thread.sleep(3000);
+	}
+
+	private Message createMessage(int i, String value) {
+		return new Message(new LeaseHeader(3, new Sequence[0], true),
+				new Object[] { i, value }, false);
+	}
+
+	private void waitForMessages(int count) throws InterruptedException {
+		for (Node node : nodes)
+			waitForMessages(node, count);
+	}
+
+	private void waitForMessages(Node node, int count)
+			throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + 10000;
+		while (node.received.get() < count
+				&& System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertEquals(count, node.received.get());
+	}
+
+	// The group traffic may still hold buffers after the last delivery
+	private void assertAllReleased(BufferPool pool)
+			throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + 10000;
+		while (pool.getIdleCount() != pool.getAllocatedCount()
+				&& System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertEquals(pool.toString(), pool.getAllocatedCount(), pool
+				.getIdleCount());
+	}
+
+	private static List<Object> list(Object... values) {
+		final List<Object> list = new ArrayList<Object>();
+		Collections.addAll(list, values);
+		return list;
+	}
+
+	private static synchronized int nextPort() {
+		return port++;
+	}
+}
@@ -0,0 +1,202 @@
+package org.ssor.protocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import org.ssor.AtomicService;
+import org.ssor.Sequence;
+import org.ssor.ServiceManager;
+import org.ssor.protocol.replication.LeaseHeader;
+import org.ssor.protocol.replication.RequestHeader;
+
+/**
+ * The round trip of the compact wire format.
+ *
+ * @author Tao Chen
+ *
+ */
+public class MessageTest extends TestCase {
+
+	public void testSequences() throws Exception {
+		final long[] values = new long[] { Sequence.UNASSIGNED,
+				Sequence.pack(0, Sequence.NONE), Sequence.pack(100, 3),
+				// Negative deltas
+				Sequence.pack(5, Sequence.NONE), Sequence.pack(-1, 0),
+				Sequence.UNASSIGNED, Sequence.pack(7, Integer.MAX_VALUE),
+				Sequence.pack(Integer.MAX_VALUE, Sequence.NONE),
+				Sequence.pack(Integer.MIN_VALUE + 1, -1),
+				Sequence.pack(Sequence.NONE, 2) };
+
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(bytes);
+		Sequence previous = null;
+		Sequence sequence = null;
+		for (long value : values) {
+			sequence = new Sequence(null, null, value);
+			sequence.writeTo(out, previous);
+			previous = sequence;
+		}
+		out.flush();
+
+		final DataInputStream in = new DataInputStream(
+				new ByteArrayInputStream(bytes.toByteArray()));
+		previous = null;
+		for (long value : values) {
+			sequence = new Sequence();
+			sequence.readFrom(in, previous);
+			assertEquals(Sequence.seqno(value), Sequence.seqno(sequence
+					.getValue()));
+			assertEquals(Sequence.concurrentno(value), Sequence
+					.concurrentno(sequence.getValue()));
+			previous = sequence;
+		}
+		assertEquals(-1, in.read());
+	}
+
+	public void testLeaseHeader() throws Exception {
+		final Sequence[] sequences = new Sequence[] {
+				new Sequence(3, null, Sequence.pack(10, Sequence.NONE)),
+				new Sequence(3, null, Sequence.pack(2, 1)),
+				new Sequence(3, null, Sequence.UNASSIGNED) };
+		final Message message = new Message(new LeaseHeader(3, sequences,
+				true), null, true);
+
+		final LeaseHeader header = (LeaseHeader) roundTrip(message)
+				.getHeader();
+		assertEquals(3, header.getRegion());
+		assertTrue(header.isRelease());
+		assertEquals(sequences.length, header.getSequences().length);
+		for (int i = 0; i < sequences.length; i++)
+			assertEquals(sequences[i].getValue(), header.getSequences()[i]
+					.getValue());
+	}
+
+	public void testRequestHeaderKeys() throws Exception {
+		final String service = "java.lang.Object.toString";
+		new ServiceManager().register(new AtomicService(service,
+				new Class<?>[0]));
+
+		RequestHeader header = (RequestHeader) roundTrip(
+				new Message(new RequestHeader("session", service, 1), null,
+						true)).getHeader();
+		assertEquals(service, header.getService());
+		assertEquals("session", header.getSessionId());
+		assertNull(header.getConflictKey());
+		assertEquals("session", header.getShardKey());
+
+		// The conflict key does not take the place of session ID
+		final RequestHeader partitioned = new RequestHeader(null, service, 1);
+		partitioned.setConflictKey("key");
+		header = (RequestHeader) roundTrip(
+				new Message(partitioned, null, true)).getHeader();
+		assertNull(header.getSessionId());
+		assertEquals("key", header.getConflictKey());
+		assertEquals("key", header.getShardKey());
+	}
+
+	public void testReqIds() throws Exception {
+		final String generated = new Message(null, null, true).getReqId();
+		final String[] reqIds = new String[] { generated,
+				generated.toUpperCase(), generated.substring(1) + "g",
+				generated + "0", "m1", "", null };
+
+		Message message = null;
+		for (String reqId : reqIds) {
+			message = new Message(null, null, false);
+			message.setReqId(reqId);
+			assertEquals(reqId, roundTrip(message).getReqId());
+		}
+
+		// The hex one is packed
+		message = new Message(null, null, false);
+		message.setReqId(generated);
+		final int packed = write(message).length;
+		message.setReqId(generated.toUpperCase());
+		assertEquals(packed + 18, write(message).length);
+	}
+
+	public void testViewSeqno() throws Exception {
+		final Message message = new Message(null, "body", true);
+		assertNull(roundTrip(message).getViewSeqno());
+
+		// Not present on the wire, as before
+		message.setViewSeqno(-1);
+		assertNull(roundTrip(message).getViewSeqno());
+
+		for (long seqno : new long[] { 0, 1, Long.MAX_VALUE }) {
+			message.setViewSeqno(seqno);
+			assertEquals(Long.valueOf(seqno), roundTrip(message)
+					.getViewSeqno());
+		}
+
+		// The fields of a reused message are reset
+		final Message reused = new Message();
+		message.setViewSeqno(5);
+		read(reused, write(message));
+		read(reused, write(new Message(null, null, false)));
+		assertNull(reused.getViewSeqno());
+		assertNull(reused.getReqId());
+		assertNull(reused.getBody());
+	}
+
+	public void testMagicNumberAtEndOfHeaderBoundary() throws Exception {
+		final short[] magics = new short[] { Header.EOH, 0, 1, -2, 126, 127,
+				128, Short.MAX_VALUE, Short.MIN_VALUE };
+
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(bytes);
+		for (short magic : magics)
+			Header.writeMagicNumber(out, magic);
+		out.flush();
+
+		final DataInputStream in = new DataInputStream(
+				new ByteArrayInputStream(bytes.toByteArray()));
+		for (short magic : magics)
+			assertEquals(magic, Header.readMagicNumber(in));
+		assertEquals(-1, in.read());
+
+		// The end of header chain takes a single byte
+		bytes.reset();
+		Header.writeMagicNumber(out, Header.EOH);
+		out.flush();
+		assertEquals(1, bytes.size());
+	}
+
+	public void testUnknownVersionIsRejected() throws Exception {
+		final byte[] bytes = write(new Message(null, "body", true));
+		for (int version : new int[] { 0, Message.WIRE_VERSION + 1, 15 }) {
+			bytes[0] = (byte) (version << 4 | (bytes[0] & 0xF));
+			try {
+				read(new Message(), bytes);
+				fail("Version " + version);
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	private byte[] write(Message message) throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(bytes);
+		message.writeTo(out);
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private void read(Message message, byte[] bytes) throws Exception {
+		final DataInputStream in = new DataInputStream(
+				new ByteArrayInputStream(bytes));
+		message.readFrom(in);
+		assertEquals(-1, in.read());
+	}
+
+	private Message roundTrip(Message message) throws Exception {
+		final Message copy = new Message();
+		read(copy, write(message));
+		return copy;
+	}
+}
@@ -0,0 +1,79 @@
+package org.ssor.protocol;
+
+import junit.framework.TestCase;
+
+import org.ssor.Region;
+import org.ssor.util.Environment;
+
+/**
+ * The expiry of outstanding requests, a request that has been sent to the
+ * sequencer never expires.
+ *
+ * @author Tao Chen
+ *
+ */
+public class SentMessageTableTest extends TestCase {
+
+	private long timeout;
+
+	private SentMessageTable table;
+
+	protected void setUp() throws Exception {
+		timeout = Environment.SENT_MESSAGE_TIMEOUT;
+		Environment.SENT_MESSAGE_TIMEOUT = 200;
+		table = new SentMessageTable(0);
+	}
+
+	protected void tearDown() throws Exception {
+		Environment.SENT_MESSAGE_TIMEOUT = timeout;
+	}
+
+	public void testExpiresBeforeSentToSequencer() throws Exception {
+		final Message message = put("m0");
+
+		waitForExpiry(message);
+		assertTrue(message.isExpired());
+		assertNull(table.get("m0"));
+		assertNull(table.pin("m0"));
+		assertEquals(0, table.size());
+		assertEquals(0, table.getByRegion(new Region(3, Region.CONFLICT_REGION))
+				.size());
+		assertEquals(1, table.getExpiredCount());
+	}
+
+	public void testPinnedIsKeptUntilRemoved() throws Exception {
+		final Message message = put("m0");
+		final Message expiring = put("m1");
+		assertSame(message, table.pin("m0"));
+
+		waitForExpiry(expiring);
+		// The sequence may have been assigned, the agreement must find it
+		assertFalse(message.isExpired());
+		assertSame(message, table.get("m0"));
+		assertSame(message, table.pin("m0"));
+		assertEquals(1, table.getByRegion(
+				new Region(3, Region.CONFLICT_REGION)).size());
+		assertEquals(1, table.getExpiredCount());
+
+		assertSame(message, table.remove("m0"));
+		assertEquals(0, table.size());
+		assertEquals(0, table.getBytes());
+	}
+
+	private Message put(String reqId) {
+		final Message message = new Message(null, new Object[] { reqId },
+				false);
+		message.setReqId(reqId);
+		table.put(message, new Region(3, Region.CONFLICT_REGION));
+		return message;
+	}
+
+	private void waitForExpiry(Message message) throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + 5000;
+		synchronized (message) {
+			while (!message.isExpired()
+					&& System.currentTimeMillis() < deadline)
+				message.wait(100);
+		}
+	}
+}
@@ -0,0 +1,68 @@
+package org.ssor.protocol.tolerance;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+
+import junit.framework.TestCase;
+
+import org.ssor.Sequence;
+import org.ssor.SessionRegion;
+
+/**
+ * The agreement of the new sequencer is per region, only the last one of the
+ * view releases it.
+ *
+ * @author Tao Chen
+ *
+ */
+public class AgreementHeaderTest extends TestCase {
+
+	public void testRegionAgreementRoundTrip() throws Exception {
+		final AgreementHeader header = new AgreementHeader(
+				new FaultySequence[] { new FaultySequence(new Sequence(3,
+						null, 4, null)) }, true, 2, 3, false);
+
+		final AgreementHeader read = roundTrip(header);
+		assertEquals(1, read.getFaulty().length);
+		assertEquals(4, read.getFaulty()[0].getSequence().getSeqno()
+				.intValue());
+		assertTrue(read.isTriggerRetransmission());
+		assertEquals(2, read.getViewId().intValue());
+		assertEquals(3, read.getRegion().intValue());
+		assertFalse(read.isLast());
+	}
+
+	public void testShardAgreementOfJoinRoundTrip() throws Exception {
+		final AgreementHeader header = new AgreementHeader(
+				new FaultySequence[0], true, null,
+				SessionRegion.SESSION_REGION - 1, true);
+
+		final AgreementHeader read = roundTrip(header);
+		assertNull(read.getViewId());
+		assertEquals(SessionRegion.SESSION_REGION - 1, read.getRegion()
+				.intValue());
+		assertTrue(read.isLast());
+	}
+
+	public void testAgreementOfOldSequencerIsLast() throws Exception {
+		final AgreementHeader read = roundTrip(new AgreementHeader(
+				new FaultySequence[0], false));
+		assertFalse(read.isTriggerRetransmission());
+		assertNull(read.getRegion());
+		assertTrue(read.isLast());
+	}
+
+	private AgreementHeader roundTrip(AgreementHeader header) throws Exception {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		header.writeTo(new DataOutputStream(bytes));
+
+		final AgreementHeader read = new AgreementHeader();
+		final DataInputStream in = new DataInputStream(
+				new ByteArrayInputStream(bytes.toByteArray()));
+		read.readFrom(in);
+		assertEquals(-1, in.read());
+		return read;
+	}
+}
@@ -0,0 +1,96 @@
+package org.ssor.protocol.tolerance;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.ssor.Region;
+import org.ssor.Sequence;
+import org.ssor.SessionRegion;
+import org.ssor.util.Triple;
+
+/**
+ * The sessional part of consensus header is keyed by the shards of session
+ * region.
+ *
+ * @author Tao Chen
+ *
+ */
+public class ConsensusHeaderTest extends TestCase {
+
+	public void testShardNumbersRoundTrip() throws Exception {
+		final Region region = new Region(3, Region.CONFLICT_REGION, 1);
+		final SessionRegion[] shards = SessionRegion.createShards(3);
+
+		final ConsensusHeader header = new ConsensusHeader(new Integer[] { 3,
+				shards[0].getRegion(), shards[2].getRegion() });
+		header.addTripleValue(region, new Sequence[] { new Sequence(3, null,
+				4, null) });
+		header.addTripleValue(shards[0], new Sequence[] {
+				new Sequence(shards[0].getRegion(), "a", 0, null),
+				new Sequence(shards[0].getRegion(), "a", 1, null) });
+		header.addTripleValue(shards[2], new Sequence[] { new Sequence(
+				shards[2].getRegion(), "b", 7, null) });
+
+		final ConsensusHeader read = roundTrip(header);
+
+		assertFalse(read.isPushed());
+		assertEquals(1, read.getTripleArray().length);
+		assertEquals(3, read.getTripleArray()[0].getVal1().intValue());
+		assertEquals(4, read.getTripleArray()[0].getVal3()[0].getSeqno()
+				.intValue());
+
+		assertEquals(2, read.getSessionalRegions().length);
+		assertEquals(-1, read.getSessionalRegions()[0].intValue());
+		assertEquals(-3, read.getSessionalRegions()[1].intValue());
+
+		final Map<String, Sequence[]> first = toMap(read
+				.getSessionalTripleArray()[0]);
+		assertEquals(1, first.size());
+		assertEquals(2, first.get("a").length);
+		assertEquals(1, first.get("a")[1].getSeqno().intValue());
+		final Map<String, Sequence[]> last = toMap(read
+				.getSessionalTripleArray()[1]);
+		assertEquals(1, last.size());
+		assertEquals(7, last.get("b")[0].getSeqno().intValue());
+	}
+
+	public void testWithoutSessionRegion() throws Exception {
+		final ConsensusHeader header = new ConsensusHeader(new Integer[] { 3 });
+		header.addTripleValue(new Region(3, Region.CONFLICT_REGION, 1),
+				new Sequence[0]);
+		// Pushed to the warm standby
+		header.setPushed(true);
+
+		final ConsensusHeader read = roundTrip(header);
+		assertTrue(read.isPushed());
+		assertEquals(1, read.getTripleArray().length);
+		assertNull(read.getSessionalRegions());
+		assertNull(read.getSessionalTripleArray());
+	}
+
+	private ConsensusHeader roundTrip(ConsensusHeader header) throws Exception {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		header.writeTo(new DataOutputStream(bytes));
+
+		final ConsensusHeader read = new ConsensusHeader();
+		final DataInputStream in = new DataInputStream(
+				new ByteArrayInputStream(bytes.toByteArray()));
+		read.readFrom(in);
+		assertEquals(-1, in.read());
+		return read;
+	}
+
+	private Map<String, Sequence[]> toMap(
+			Triple<String, Sequence, Sequence[]>[] triples) {
+		final Map<String, Sequence[]> map = new HashMap<String, Sequence[]>();
+		for (Triple<String, Sequence, Sequence[]> triple : triples)
+			map.put(triple.getVal1(), triple.getVal3());
+		return map;
+	}
+}
@@ -0,0 +1,72 @@
+package org.ssor.util;
+
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+/**
+ * The reuse of pooled buffers.
+ *
+ * @author Tao Chen
+ *
+ */
+public class BufferPoolTest extends TestCase {
+
+	public void testReleasedBufferIsReused() {
+		final BufferPool pool = new BufferPool(4096, 4);
+		final ByteBuffer buffer = pool.acquire(300);
+		assertTrue(buffer.isDirect());
+		assertEquals(512, buffer.capacity());
+
+		buffer.putInt(1);
+		pool.release(buffer);
+		assertEquals(1, pool.getIdleCount());
+
+		// The same size class, cleared
+		final ByteBuffer reused = pool.acquire(400);
+		assertSame(buffer, reused);
+		assertEquals(0, reused.position());
+		assertEquals(reused.capacity(), reused.limit());
+		assertEquals(0, pool.getIdleCount());
+		assertEquals(1, pool.getAllocatedCount());
+		assertEquals(1, pool.getReusedCount());
+
+		// Another size class
+		assertNotSame(buffer, pool.acquire(1024));
+		assertEquals(2, pool.getAllocatedCount());
+	}
+
+	public void testOversizedBufferIsNotPooled() {
+		final BufferPool pool = new BufferPool(4096, 4);
+		final ByteBuffer buffer = pool.acquire(5000);
+		assertFalse(buffer.isDirect());
+		assertTrue(buffer.capacity() >= 5000);
+
+		pool.release(buffer);
+		assertEquals(0, pool.getIdleCount());
+	}
+
+	public void testForeignBufferIsNotPooled() {
+		final BufferPool pool = new BufferPool(4096, 4);
+		pool.release(ByteBuffer.allocateDirect(300));
+		pool.release(ByteBuffer.allocate(512));
+		pool.release(null);
+		assertEquals(0, pool.getIdleCount());
+	}
+
+	public void testIdleBuffersAreBounded() {
+		final BufferPool pool = new BufferPool(4096, 2);
+		final ByteBuffer[] buffers = new ByteBuffer[3];
+		for (int i = 0; i < buffers.length; i++)
+			buffers[i] = pool.acquire(256);
+		for (ByteBuffer buffer : buffers)
+			pool.release(buffer);
+
+		assertEquals(2, pool.getIdleCount());
+		pool.acquire(256);
+		pool.acquire(256);
+		pool.acquire(256);
+		assertEquals(2, pool.getReusedCount());
+		assertEquals(4, pool.getAllocatedCount());
+	}
+}
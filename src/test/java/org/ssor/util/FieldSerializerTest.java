@@ -0,0 +1,147 @@
+package org.ssor.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.ssor.conf.ClassConfigurator;
+
+/**
+ * The objects of registered classes that are written by fields.
+ *
+ * @author Tao Chen
+ *
+ */
+public class FieldSerializerTest extends TestCase {
+
+	static {
+		final FieldSerializer serializer = new FieldSerializer();
+		ClassConfigurator.register((short) 1101, Address.class, serializer);
+		ClassConfigurator.register((short) 1102, Account.class, serializer);
+		ClassConfigurator.register((short) 1103, Node.class, serializer);
+	}
+
+	public static class Address implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private String city;
+		private int zip;
+
+		private Address() {
+		}
+
+		public Address(String city, int zip) {
+			this.city = city;
+			this.zip = zip;
+		}
+	}
+
+	public static class Account implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private long id;
+		private String owner;
+		private double balance;
+		private Integer limit;
+		private String[] tags;
+		private Address home;
+		private Address billing;
+		private transient int cached;
+	}
+
+	public static class Node {
+
+		private int value;
+		private Node next;
+	}
+
+	public void testRoundTrip() throws Exception {
+		final Account account = createAccount();
+		account.cached = 7;
+
+		final Account copy = (Account) roundTrip(account);
+		assertEquals(account.id, copy.id);
+		assertEquals(account.owner, copy.owner);
+		assertEquals(account.balance, copy.balance);
+		assertEquals(account.limit, copy.limit);
+		assertTrue(Arrays.equals(account.tags, copy.tags));
+		assertEquals("Dublin", copy.home.city);
+		assertEquals(2, copy.home.zip);
+		// Not written
+		assertEquals(0, copy.cached);
+		// The shared object is read as copies
+		assertNotSame(copy.home, copy.billing);
+		assertEquals(copy.home.city, copy.billing.city);
+	}
+
+	public void testNullFields() throws Exception {
+		final Account copy = (Account) roundTrip(new Account());
+		assertNull(copy.owner);
+		assertNull(copy.limit);
+		assertNull(copy.tags);
+		assertNull(copy.home);
+	}
+
+	public void testCycleIsRejected() throws Exception {
+		final Node first = new Node();
+		final Node second = new Node();
+		first.next = second;
+		second.next = first;
+
+		try {
+			roundTrip(first);
+			fail();
+		} catch (IOException e) {
+		}
+
+		// The thread is not left in a broken state
+		second.next = null;
+		second.value = 2;
+		final Node copy = (Node) roundTrip(first);
+		assertEquals(2, copy.next.value);
+		assertNull(copy.next.next);
+	}
+
+	public void testSmallerThanSerializable() throws Exception {
+		final Account account = createAccount();
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(account);
+		out.close();
+
+		assertTrue(write(account).length * 2 < bytes.size());
+	}
+
+	private Account createAccount() {
+		final Account account = new Account();
+		account.id = 42L;
+		account.owner = "owner";
+		account.balance = 10.5;
+		account.limit = 1000;
+		account.tags = new String[] { "a", "b" };
+		account.home = account.billing = new Address("Dublin", 2);
+		return account;
+	}
+
+	private byte[] write(Object object) throws Exception {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(bytes);
+		Util.writeArbitraryObject(out, object);
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private Object roundTrip(Object object) throws Exception {
+		return Util.readArbitraryObject(new DataInputStream(
+				new ByteArrayInputStream(write(object))));
+	}
+}
@@ -0,0 +1,112 @@
+package org.ssor.util;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.ssor.Sequence;
+import org.ssor.protocol.replication.abcast.SequenceVector;
+
+/**
+ * The sequences are indexed by session ID and seqno.
+ *
+ * @author Tao Chen
+ *
+ */
+public class SequenceLinkedListTest extends TestCase {
+
+	private SequenceLinkedList list;
+
+	protected void setUp() throws Exception {
+		list = new SequenceLinkedList();
+	}
+
+	public void testAddAndRemove() {
+		list.add(sequence(null, 1, Sequence.NONE));
+		list.add(new Sequence[] { sequence(null, 2, Sequence.NONE),
+				sequence("a", 2, Sequence.NONE) });
+		list.add(new SequenceVector[] { new SequenceVector(0, sequence("b",
+				2, Sequence.NONE)) });
+		assertEquals(4, list.size());
+
+		// Neither of session nor seqno matches
+		list.remove(sequence("c", 2, Sequence.NONE));
+		list.remove(sequence(null, 3, Sequence.NONE));
+		assertEquals(4, list.size());
+
+		list.remove(sequence("a", 2, Sequence.NONE));
+		assertEquals(3, list.size());
+		assertEquals(set(sequence(null, 1, Sequence.NONE), sequence(null, 2,
+				Sequence.NONE), sequence("b", 2, Sequence.NONE)), set(list
+				.getAllForConsensus()));
+
+		// Emptied bucket can be added again
+		list.add(sequence("a", 2, Sequence.NONE));
+		assertEquals(4, list.size());
+	}
+
+	public void testRemoveWithConcurrentSequences() {
+		list.add(sequence("a", 4, 1));
+		list.add(sequence("a", 4, -1));
+		list.add(sequence("a", 4, -1));
+		list.add(sequence("b", 4, -1));
+		list.add(sequence("a", 5, Sequence.NONE));
+		list.add(sequence("a", 3, -1));
+		assertEquals(6, list.size());
+
+		list.removeWithConcurrentSequences(sequence("a", 5, Sequence.NONE));
+		// The concurrent ones of the other session, or of the earlier seqno,
+		// and the sequential one are kept
+		assertEquals(set(sequence("a", 4, 1), sequence("b", 4, -1), sequence(
+				"a", 3, -1)), set(list.getAllForConsensus()));
+		assertEquals(3, list.size());
+	}
+
+	public void testGetAllForConsensusExcludesProposed() {
+		list.add(sequence(null, 1, Sequence.NONE));
+		list.add(sequence("a", 1, Sequence.NONE));
+		list.markSequence();
+		list.add(sequence(null, 2, Sequence.NONE));
+
+		assertEquals(set(sequence(null, 2, Sequence.NONE)), set(list
+				.getAllForConsensus()));
+		assertEquals(3, list.size());
+	}
+
+	public void testPollDrainsAll() {
+		final Set<String> added = new HashSet<String>();
+		Sequence sequence = null;
+		for (int i = 0; i < 10; i++) {
+			// Some share the bucket
+			sequence = sequence(i % 2 == 0 ? null : "a", i / 4, i % 4 >= 2 ? -1
+					: Sequence.NONE);
+			list.add(sequence);
+			added.add(toString(sequence));
+		}
+		assertEquals(10, list.size());
+		assertEquals(10, added.size());
+
+		final Set<String> polled = new HashSet<String>();
+		while ((sequence = list.poll()) != null)
+			polled.add(toString(sequence));
+		assertEquals(added, polled);
+		assertEquals(0, list.size());
+		assertEquals(0, list.getAllForConsensus().length);
+	}
+
+	private Sequence sequence(String sessionId, int seqno, int concurrentno) {
+		return new Sequence(3, sessionId, Sequence.pack(seqno, concurrentno));
+	}
+
+	private Set<String> set(Sequence... sequences) {
+		final Set<String> set = new HashSet<String>();
+		for (Sequence sequence : sequences)
+			set.add(toString(sequence));
+		return set;
+	}
+
+	private String toString(Sequence sequence) {
+		return sequence.getSessionId() + ":" + sequence.getValue();
+	}
+}
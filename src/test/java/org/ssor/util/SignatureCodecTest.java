@@ -0,0 +1,138 @@
+package org.ssor.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import org.ssor.conf.ClassConfigurator;
+
+/**
+ * The arguments that are written by the codec of signature.
+ *
+ * @author Tao Chen
+ *
+ */
+public class SignatureCodecTest extends TestCase {
+
+	static {
+		ClassConfigurator.register((short) 1201, Money.class,
+				new FieldSerializer());
+	}
+
+	// Written without magic number
+	public static final class Point implements Streamable {
+
+		private int x;
+		private int y;
+
+		public Point() {
+		}
+
+		public Point(int x, int y) {
+			this.x = x;
+			this.y = y;
+		}
+
+		public void writeTo(DataOutputStream out) throws IOException {
+			out.writeInt(x);
+			out.writeInt(y);
+		}
+
+		public void readFrom(DataInputStream in) throws IOException {
+			x = in.readInt();
+			y = in.readInt();
+		}
+	}
+
+	// Written by the registered serializer
+	public static final class Money {
+
+		private long amount;
+		private String currency;
+	}
+
+	// Neither final nor Serializable
+	public static class Item implements Streamable {
+
+		private String name;
+
+		public void writeTo(DataOutputStream out) throws IOException {
+			out.writeUTF(name);
+		}
+
+		public void readFrom(DataInputStream in) throws IOException {
+			name = in.readUTF();
+		}
+	}
+
+	public void testRoundTrip() throws Exception {
+		final SignatureCodec codec = SignatureCodec.compile(new Class<?>[] {
+				int.class, long.class, boolean.class, double.class,
+				char.class, Point.class, Money.class, Item[].class,
+				Object.class, String.class });
+
+		final Money money = new Money();
+		money.amount = 100;
+		money.currency = "EUR";
+		final Item item = new Item();
+		item.name = "item";
+		final Object[] arguments = new Object[] { 1, 2L, true, 0.5, 'c',
+				new Point(3, 4), money, new Item[] { item, null }, "object",
+				"string" };
+
+		final Object[] copy = roundTrip(codec, arguments);
+		assertEquals(1, copy[0]);
+		assertEquals(2L, copy[1]);
+		assertEquals(Boolean.TRUE, copy[2]);
+		assertEquals(0.5, copy[3]);
+		assertEquals('c', copy[4]);
+		assertEquals(3, ((Point) copy[5]).x);
+		assertEquals(4, ((Point) copy[5]).y);
+		assertEquals(100, ((Money) copy[6]).amount);
+		assertEquals("EUR", ((Money) copy[6]).currency);
+		final Item[] items = (Item[]) copy[7];
+		assertEquals(2, items.length);
+		assertEquals("item", items[0].name);
+		assertNull(items[1]);
+		assertEquals("object", copy[8]);
+		assertEquals("string", copy[9]);
+	}
+
+	public void testNullArguments() throws Exception {
+		final SignatureCodec codec = SignatureCodec.compile(new Class<?>[] {
+				Point.class, Money.class, Item[].class, Object.class,
+				String.class });
+
+		final Object[] copy = roundTrip(codec, new Object[5]);
+		for (Object argument : copy)
+			assertNull(argument);
+	}
+
+	public void testAccept() {
+		final SignatureCodec codec = SignatureCodec
+				.compile(new Class<?>[] { int.class });
+		assertTrue(codec.accept(new Object[] { 1 }));
+		assertFalse(codec.accept(new Object[] { 1, 2 }));
+		assertFalse(codec.accept(new Integer[] { 1 }));
+		assertNull(SignatureCodec.compile(null));
+	}
+
+	private Object[] roundTrip(SignatureCodec codec, Object[] arguments)
+			throws Exception {
+		assertTrue(codec.accept(arguments));
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(bytes);
+		codec.writeTo(out, arguments);
+		out.flush();
+
+		final DataInputStream in = new DataInputStream(
+				new ByteArrayInputStream(bytes.toByteArray()));
+		final Object[] copy = codec.readFrom(in);
+		assertEquals(-1, in.read());
+		return copy;
+	}
+}